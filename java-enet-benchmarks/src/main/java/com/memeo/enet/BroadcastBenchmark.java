@@ -0,0 +1,85 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Host#broadcast} of one packet to every connected peer. The queued
+ * commands are handed back to the pool after each broadcast.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark
+{
+    @Param({ "100", "500" })
+    public int peerCount;
+    
+    @Param({ "256", "16384" })
+    public int packetSize;
+    
+    private Host host;
+    private Peer[] peers;
+    private Packet packet;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        this.host = new Host(new InetSocketAddress("127.0.0.1", 0), this.peerCount, 1, 0, 0);
+        this.peers = new Peer[this.peerCount];
+        for (int i = 0; i < this.peerCount; i++)
+        {
+            this.peers[i] = this.host.connect(new InetSocketAddress("127.0.0.1", 9), 1, 0);
+            this.peers[i].state = Peer.State.CONNECTED;
+        }
+        drain();
+        // Held across broadcasts; draining the queues drops the commands' references.
+        this.packet = new Packet(new byte[this.packetSize], EnumSet.of(Packet.Flag.RELIABLE)).retain();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.host.close();
+    }
+    
+    @Benchmark
+    public int broadcast() throws IOException
+    {
+        this.host.broadcast(0, this.packet);
+        return drain();
+    }
+    
+    private int drain()
+    {
+        int count = 0;
+        for (Peer peer : this.peers)
+        {
+            OutgoingCommand outgoingCommand;
+            while ((outgoingCommand = peer.outgoingReliableCommands.poll()) != null)
+            {
+                this.host.outgoingCommandPool.recycle(outgoingCommand);
+                count++;
+            }
+        }
+        return count;
+    }
+}
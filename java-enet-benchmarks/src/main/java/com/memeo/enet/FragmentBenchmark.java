@@ -0,0 +1,80 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting a large packet into fragment commands in {@link Peer#send}. The
+ * queued fragments are handed back to the pool after each send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentBenchmark
+{
+    @Param({ "4096", "65536", "1048576" })
+    public int packetSize;
+    
+    private Host host;
+    private Peer peer;
+    private Packet packet;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        this.host = new Host(new InetSocketAddress("127.0.0.1", 0), 1, 1, 0, 0);
+        this.peer = this.host.connect(new InetSocketAddress("127.0.0.1", 9), 1, 0);
+        this.peer.state = Peer.State.CONNECTED;
+        drain();
+        // Held across sends; draining the queue drops the fragments' references.
+        this.packet = new Packet(new byte[this.packetSize], EnumSet.of(Packet.Flag.RELIABLE)).retain();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.host.close();
+    }
+    
+    @Benchmark
+    public int send() throws IOException
+    {
+        this.peer.send(0, this.packet);
+        return drain();
+    }
+    
+    private int drain()
+    {
+        int count = 0;
+        OutgoingCommand outgoingCommand;
+        while ((outgoingCommand = this.peer.outgoingReliableCommands.poll()) != null)
+        {
+            this.host.outgoingCommandPool.recycle(outgoingCommand);
+            count++;
+        }
+        while ((outgoingCommand = this.peer.outgoingUnreliableCommands.poll()) != null)
+        {
+            this.host.outgoingCommandPool.recycle(outgoingCommand);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,236 @@
+package com.memeo.enet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A UDP relay on 127.0.0.1 that sits between a client and a server and
+ * impairs the datagrams passing through it. The client sends to
+ * {@link #address()} instead of the server; whatever address first sends
+ * from anywhere but the server is taken to be the client.
+ *
+ * Each direction is modelled as a FIFO link of the given bandwidth with a
+ * drop-tail queue, followed by a fixed delay plus uniform jitter. Lost
+ * datagrams are dropped before the link, duplicates are queued twice, and
+ * reordered datagrams are held back by an extra delay.
+ */
+class ImpairedRelay implements Runnable, Closeable
+{
+    static class Impairment
+    {
+        /** Probability that a datagram is dropped. */
+        double loss;
+        /** Probability that a datagram is delivered twice. */
+        double duplicate;
+        /** Probability that a datagram is held back by reorderDelay. */
+        double reorder;
+        /** One-way delay in milliseconds. */
+        int delay;
+        /** Up to this many milliseconds are added to the delay at random. */
+        int jitter;
+        int reorderDelay = 20;
+        /** Link bandwidth in bytes per second, or 0 for unlimited. */
+        long bandwidth;
+        /** Datagrams that would queue longer than this are dropped. */
+        int queueLimit = 200;
+        
+        @Override
+        public String toString()
+        {
+            return String.format("loss %.3f, duplicate %.3f, reorder %.3f (+%d ms), delay %d ms + %d ms jitter, "
+                                 + "bandwidth %s, queue %d ms",
+                                 loss, duplicate, reorder, reorderDelay, delay, jitter,
+                                 bandwidth == 0 ? "unlimited" : bandwidth + " B/s", queueLimit);
+        }
+    }
+    
+    private static class Delivery implements Comparable<Delivery>
+    {
+        final long releaseTime;
+        final long sequence;
+        final InetSocketAddress target;
+        final ByteBuffer data;
+        
+        Delivery(long releaseTime, long sequence, InetSocketAddress target, ByteBuffer data)
+        {
+            this.releaseTime = releaseTime;
+            this.sequence = sequence;
+            this.target = target;
+            this.data = data;
+        }
+        
+        public int compareTo(Delivery other)
+        {
+            if (this.releaseTime != other.releaseTime)
+                return this.releaseTime < other.releaseTime ? -1 : 1;
+            return this.sequence < other.sequence ? -1 : this.sequence > other.sequence ? 1 : 0;
+        }
+    }
+    
+    private final Impairment impairment;
+    private final InetSocketAddress server;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Random random;
+    private final PriorityQueue<Delivery> pending = new PriorityQueue<Delivery>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(Protocol.MAXIMUM_MTU);
+    private InetSocketAddress client;
+    private long sequence;
+    private long toServerFreeAt;
+    private long toClientFreeAt;
+    private volatile boolean running = true;
+    
+    // Counters, read once the relay has stopped.
+    long relayed;
+    long lost;
+    long queueDrops;
+    long duplicated;
+    long reordered;
+    
+    ImpairedRelay(InetSocketAddress server, Impairment impairment, long seed) throws IOException
+    {
+        this.server = server;
+        this.impairment = impairment;
+        this.random = new Random(seed);
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        this.selector = Selector.open();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+    }
+    
+    InetSocketAddress address()
+    {
+        return (InetSocketAddress) this.channel.socket().getLocalSocketAddress();
+    }
+    
+    public void run()
+    {
+        try
+        {
+            while (this.running)
+            {
+                long now = System.nanoTime();
+                Delivery next = this.pending.peek();
+                long wait = next == null ? 10 : TimeUnit.NANOSECONDS.toMillis(next.releaseTime - now);
+                if (wait > 0)
+                    this.selector.select(wait);
+                else
+                    this.selector.selectNow();
+                this.selector.selectedKeys().clear();
+                receive();
+                deliver();
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            try
+            {
+                this.selector.close();
+                this.channel.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Stops the relay; its thread closes the channel on the way out.
+     */
+    public void close()
+    {
+        this.running = false;
+        this.selector.wakeup();
+    }
+    
+    private void receive() throws IOException
+    {
+        for (;;)
+        {
+            this.buffer.clear();
+            InetSocketAddress from = (InetSocketAddress) this.channel.receive(this.buffer);
+            if (from == null)
+                return;
+            boolean toServer = !from.equals(this.server);
+            if (toServer)
+                this.client = from;
+            InetSocketAddress target = toServer ? this.server : this.client;
+            if (target == null)
+                continue;
+            
+            if (this.random.nextDouble() < this.impairment.loss)
+            {
+                this.lost++;
+                continue;
+            }
+            this.buffer.flip();
+            enqueue(toServer, target, this.buffer);
+            if (this.random.nextDouble() < this.impairment.duplicate)
+            {
+                this.duplicated++;
+                this.buffer.rewind();
+                enqueue(toServer, target, this.buffer);
+            }
+        }
+    }
+    
+    private void enqueue(boolean toServer, InetSocketAddress target, ByteBuffer datagram)
+    {
+        long now = System.nanoTime();
+        long release = now;
+        if (this.impairment.bandwidth > 0)
+        {
+            long start = Math.max(now, toServer ? this.toServerFreeAt : this.toClientFreeAt);
+            if (start - now > TimeUnit.MILLISECONDS.toNanos(this.impairment.queueLimit))
+            {
+                this.queueDrops++;
+                return;
+            }
+            release = start + datagram.remaining() * 1000000000L / this.impairment.bandwidth;
+            if (toServer)
+                this.toServerFreeAt = release;
+            else
+                this.toClientFreeAt = release;
+        }
+        long delay = this.impairment.delay;
+        if (this.impairment.jitter > 0)
+            delay += this.random.nextInt(this.impairment.jitter + 1);
+        if (this.random.nextDouble() < this.impairment.reorder)
+        {
+            this.reordered++;
+            delay += this.impairment.reorderDelay;
+        }
+        release += TimeUnit.MILLISECONDS.toNanos(delay);
+        
+        ByteBuffer data = ByteBuffer.allocate(datagram.remaining());
+        data.put(datagram);
+        data.flip();
+        this.pending.add(new Delivery(release, this.sequence++, target, data));
+    }
+    
+    private void deliver() throws IOException
+    {
+        long now = System.nanoTime();
+        Delivery delivery;
+        while ((delivery = this.pending.peek()) != null && delivery.releaseTime - now <= 0)
+        {
+            this.pending.poll();
+            this.channel.send(delivery.data, delivery.target);
+            this.relayed++;
+        }
+    }
+}
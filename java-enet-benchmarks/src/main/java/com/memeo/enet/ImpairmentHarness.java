@@ -0,0 +1,299 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Drives a send workload between two hosts on 127.0.0.1 through an
+ * {@link ImpairedRelay} and reports, per channel, goodput, delivery latency
+ * percentiles and retransmissions.
+ *
+ * <pre>
+ * java -cp java-enet-benchmarks/target/benchmarks.jar com.memeo.enet.ImpairmentHarness \
+ *     --loss 0.05 --delay 30 --jitter 20 --bandwidth 250000 --channels 2 --rate 200
+ * </pre>
+ *
+ * Every message carries its send time, so latency is measured from the
+ * client's Peer.send to the server's RECEIVE event. The client's service
+ * thread also sends; the server is serviced on a thread of its own.
+ *
+ * Every message also carries its number, and reliable messages that arrive
+ * out of order are counted. More than 65536 reliable messages on a channel
+ * take its 16-bit sequence numbers through the wrap, which the wraps column
+ * counts; this run crosses it a few times under loss and reordering:
+ *
+ * <pre>
+ * java -cp java-enet-benchmarks/target/benchmarks.jar com.memeo.enet.ImpairmentHarness \
+ *     --loss 0.05 --reorder 0.05 --channels 1 --size 64 --rate 0 --window 1024 --duration 20
+ * </pre>
+ */
+public class ImpairmentHarness
+{
+    private static final int HEADER_SIZE = 12;
+    
+    private final ImpairedRelay.Impairment impairment = new ImpairedRelay.Impairment();
+    private int duration = 10;
+    private int channels = 2;
+    private int size = 256;
+    private int rate = 200;
+    private int window = 256;
+    private String mode = "reliable";
+    private long seed = 1;
+    private volatile boolean stopped;
+    
+    // Per channel; written by the server thread, read after it has stopped.
+    private long[] delivered;
+    private long[] deliveredBytes;
+    private long[] outOfOrder;
+    private long[][] latencies;
+    
+    public static void main(String[] args) throws Exception
+    {
+        ImpairmentHarness harness = new ImpairmentHarness();
+        if (!harness.parse(args))
+        {
+            System.err.println("usage: ImpairmentHarness [--duration s] [--channels n] [--size bytes]"
+                               + " [--rate msgs/s/channel, 0 = as fast as the window allows] [--window msgs]"
+                               + " [--mode reliable|unreliable|unsequenced] [--loss p] [--duplicate p]"
+                               + " [--reorder p] [--reorder-delay ms] [--delay ms] [--jitter ms]"
+                               + " [--bandwidth bytes/s] [--queue ms] [--seed n]");
+            System.exit(2);
+        }
+        harness.run();
+    }
+    
+    private boolean parse(String[] args)
+    {
+        try
+        {
+            for (int i = 0; i < args.length; i += 2)
+            {
+                String name = args[i];
+                String value = args[i + 1];
+                if (name.equals("--duration"))
+                    this.duration = Integer.parseInt(value);
+                else if (name.equals("--channels"))
+                    this.channels = Integer.parseInt(value);
+                else if (name.equals("--size"))
+                    this.size = Math.max(HEADER_SIZE, Integer.parseInt(value));
+                else if (name.equals("--rate"))
+                    this.rate = Integer.parseInt(value);
+                else if (name.equals("--window"))
+                    this.window = Integer.parseInt(value);
+                else if (name.equals("--mode"))
+                    this.mode = value;
+                else if (name.equals("--loss"))
+                    this.impairment.loss = Double.parseDouble(value);
+                else if (name.equals("--duplicate"))
+                    this.impairment.duplicate = Double.parseDouble(value);
+                else if (name.equals("--reorder"))
+                    this.impairment.reorder = Double.parseDouble(value);
+                else if (name.equals("--reorder-delay"))
+                    this.impairment.reorderDelay = Integer.parseInt(value);
+                else if (name.equals("--delay"))
+                    this.impairment.delay = Integer.parseInt(value);
+                else if (name.equals("--jitter"))
+                    this.impairment.jitter = Integer.parseInt(value);
+                else if (name.equals("--bandwidth"))
+                    this.impairment.bandwidth = Long.parseLong(value);
+                else if (name.equals("--queue"))
+                    this.impairment.queueLimit = Integer.parseInt(value);
+                else if (name.equals("--seed"))
+                    this.seed = Long.parseLong(value);
+                else
+                    return false;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            return false;
+        }
+        return this.mode.equals("reliable") || this.mode.equals("unreliable") || this.mode.equals("unsequenced");
+    }
+    
+    private EnumSet<Packet.Flag> flags()
+    {
+        if (this.mode.equals("reliable"))
+            return EnumSet.of(Packet.Flag.RELIABLE);
+        if (this.mode.equals("unsequenced"))
+            return EnumSet.of(Packet.Flag.UNSEQUENCED);
+        return EnumSet.noneOf(Packet.Flag.class);
+    }
+    
+    private void run() throws Exception
+    {
+        this.delivered = new long[this.channels];
+        this.deliveredBytes = new long[this.channels];
+        this.outOfOrder = new long[this.channels];
+        this.latencies = new long[this.channels][1024];
+        
+        final Host server = new Host(new InetSocketAddress("127.0.0.1", 0), 1, this.channels, 0, 0);
+        Host client = new Host(new InetSocketAddress("127.0.0.1", 0), 1, this.channels, 0, 0);
+        ImpairedRelay relay = new ImpairedRelay(server.address(), this.impairment, this.seed);
+        Thread relayThread = new Thread(relay, "impaired-relay");
+        relayThread.setDaemon(true);
+        relayThread.start();
+        
+        Thread serverThread = new Thread("harness-server")
+        {
+            public void run()
+            {
+                try
+                {
+                    while (!ImpairmentHarness.this.stopped)
+                    {
+                        Event event = server.service(5);
+                        if (event == null)
+                            continue;
+                        if (event.getType() == Event.Type.RECEIVE)
+                            record(event);
+                        server.recycle(event);
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        serverThread.start();
+        
+        Peer peer = client.connect(relay.address(), this.channels, 0);
+        if (!awaitConnect(client))
+        {
+            System.err.println("connect through the relay timed out");
+            System.exit(1);
+        }
+        
+        System.out.println("impairment: " + this.impairment);
+        System.out.printf("workload: %d channels, %s, %d byte messages, %s for %d s%n", this.channels, this.mode,
+                          this.size, this.rate == 0 ? "window " + this.window : this.rate + " msgs/s/channel",
+                          this.duration);
+        
+        long[] sent = new long[this.channels];
+        byte[] payload = new byte[this.size];
+        ByteBuffer header = ByteBuffer.wrap(payload);
+        EnumSet<Packet.Flag> flags = flags();
+        long start = System.nanoTime();
+        long end = start + this.duration * 1000000000L;
+        long now;
+        while ((now = System.nanoTime()) < end)
+        {
+            for (int channel = 0; channel < this.channels; channel++)
+            {
+                long due = this.rate == 0
+                    ? readDelivered(channel) + this.window
+                    : (now - start) * this.rate / 1000000000L;
+                while (sent[channel] < due)
+                {
+                    header.putInt(0, (int) sent[channel]);
+                    header.putLong(4, System.nanoTime());
+                    Packet packet = client.createPacket(this.size, flags);
+                    packet.buffer().put(payload);
+                    peer.send(channel, packet);
+                    sent[channel]++;
+                }
+            }
+            Event event = client.service(1);
+            if (event != null)
+            {
+                if (event.getType() == Event.Type.DISCONNECT)
+                {
+                    System.out.println("client disconnected: the link is too impaired to keep the peer alive");
+                    break;
+                }
+                client.recycle(event);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        
+        // Let in-flight messages land before counting.
+        long drain = System.nanoTime() + 2000000000L;
+        while (System.nanoTime() < drain)
+        {
+            Event event = client.service(10);
+            if (event != null)
+                client.recycle(event);
+        }
+        this.stopped = true;
+        serverThread.join();
+        relay.close();
+        relayThread.join();
+        
+        report(peer, sent, elapsed);
+        System.out.printf("relay: relayed %d, lost %d, queue drops %d, duplicated %d, reordered %d%n",
+                          relay.relayed, relay.lost, relay.queueDrops, relay.duplicated, relay.reordered);
+        System.out.printf("peer: rtt %d ms (variance %d), packet loss %.2f%%, throttle %d/%d%n",
+                          peer.roundTripTime, peer.roundTripTimeVariance,
+                          peer.packetLoss * 100.0 / Peer.PACKET_LOSS_SCALE,
+                          peer.packetThrottle, Peer.PACKET_THROTTLE_SCALE);
+        client.close();
+        server.close();
+    }
+    
+    private boolean awaitConnect(Host client) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline)
+        {
+            Event event = client.service(10);
+            if (event == null)
+                continue;
+            Event.Type type = event.getType();
+            client.recycle(event);
+            if (type == Event.Type.CONNECT)
+                return true;
+        }
+        return false;
+    }
+    
+    private synchronized long readDelivered(int channel)
+    {
+        return this.delivered[channel];
+    }
+    
+    private synchronized void record(Event event)
+    {
+        int channel = event.getChannelID();
+        ByteBuffer data = event.getPacket().buffer();
+        long latency = System.nanoTime() - data.getLong(data.position() + 4);
+        int count = (int) this.delivered[channel];
+        if (this.mode.equals("reliable") && data.getInt(data.position()) != count)
+            this.outOfOrder[channel]++;
+        if (count == this.latencies[channel].length)
+            this.latencies[channel] = Arrays.copyOf(this.latencies[channel], count * 2);
+        this.latencies[channel][count] = latency;
+        this.delivered[channel]++;
+        this.deliveredBytes[channel] += data.remaining();
+        event.getPacket().release();
+    }
+    
+    private synchronized void report(Peer peer, long[] sent, double elapsed)
+    {
+        System.out.printf("%-8s %10s %10s %8s %12s %9s %9s %9s %9s %9s %6s%n", "channel", "sent", "delivered", "lost",
+                          "goodput", "p50 ms", "p99 ms", "p999 ms", "retrans", "disorder", "wraps");
+        for (int channel = 0; channel < this.channels; channel++)
+        {
+            int count = (int) this.delivered[channel];
+            long[] sorted = Arrays.copyOf(this.latencies[channel], count);
+            Arrays.sort(sorted);
+            int retransmissions = peer.channels != null ? peer.channels.get(channel).retransmissions : 0;
+            System.out.printf("%-8d %10d %10d %8d %9.1f KB/s %9.2f %9.2f %9.2f %9d %9d %6d%n", channel, sent[channel],
+                              count, sent[channel] - count, this.deliveredBytes[channel] / elapsed / 1024,
+                              percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                              retransmissions, this.outOfOrder[channel],
+                              this.mode.equals("reliable") ? sent[channel] >> 16 : 0);
+        }
+    }
+    
+    private static double percentile(long[] sorted, double fraction)
+    {
+        if (sorted.length == 0)
+            return Double.NaN;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,106 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reliable messages from one host to another over the loopback interface,
+ * serviced from a single thread. Each operation is one message delivered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark
+{
+    private static final int BATCH = 100;
+    
+    @Param({ "64", "1024" })
+    public int messageSize;
+    
+    private Host server;
+    private Host client;
+    private Peer peer;
+    private byte[] payload;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        this.server = new Host(new InetSocketAddress("127.0.0.1", 0), 1, 1, 0, 0);
+        this.client = new Host(new InetSocketAddress("127.0.0.1", 0), 1, 1, 0, 0);
+        this.peer = this.client.connect(this.server.address(), 1, 0);
+        this.payload = new byte[this.messageSize];
+        
+        boolean clientConnected = false;
+        boolean serverConnected = false;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!clientConnected || !serverConnected)
+        {
+            if (System.currentTimeMillis() > deadline)
+                throw new EnetException("loopback connect timed out");
+            Event event = this.client.service(1);
+            if (event != null)
+            {
+                clientConnected |= event.getType() == Event.Type.CONNECT;
+                this.client.recycle(event);
+            }
+            event = this.server.service(1);
+            if (event != null)
+            {
+                serverConnected |= event.getType() == Event.Type.CONNECT;
+                this.server.recycle(event);
+            }
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.client.close();
+        this.server.close();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int sendReceive() throws IOException
+    {
+        for (int i = 0; i < BATCH; i++)
+            this.peer.send(0, new Packet(this.payload, EnumSet.of(Packet.Flag.RELIABLE)));
+        
+        int received = 0;
+        while (received < BATCH)
+        {
+            Event event = this.client.service(0);
+            if (event != null)
+                this.client.recycle(event);
+            while ((event = this.server.service(0)) != null)
+            {
+                if (event.getType() == Event.Type.RECEIVE)
+                {
+                    received++;
+                    event.getPacket().release();
+                }
+                this.server.recycle(event);
+            }
+        }
+        return received;
+    }
+}
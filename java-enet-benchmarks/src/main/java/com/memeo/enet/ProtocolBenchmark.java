@@ -0,0 +1,141 @@
+package com.memeo.enet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of protocol commands through the flyweight views,
+ * over heap and direct buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark
+{
+    @Param({ "heap", "direct" })
+    public String buffer;
+    
+    private ByteBuffer data;
+    private ByteBuffer copy;
+    private Protocol.Header header;
+    private Protocol.SendReliable sendReliable;
+    private Protocol.SendFragment sendFragment;
+    private Protocol.Acknowledge acknowledge;
+    private int sequenceNumber;
+    
+    @Setup
+    public void setup()
+    {
+        int size = Protocol.MAXIMUM_COMMAND_SIZE * 4;
+        this.data = "direct".equals(this.buffer) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        this.copy = ByteBuffer.allocateDirect(size);
+        this.header = new Protocol.Header(this.data, 0);
+        this.sendReliable = new Protocol.SendReliable(this.data, Protocol.Header.length());
+        this.sendFragment = new Protocol.SendFragment(this.data, Protocol.MAXIMUM_COMMAND_SIZE);
+        this.acknowledge = new Protocol.Acknowledge(this.data, Protocol.MAXIMUM_COMMAND_SIZE * 2);
+        encodeSendReliable();
+        encodeSendFragment();
+        encodeAcknowledge();
+    }
+    
+    @Benchmark
+    public int encodeSendReliable()
+    {
+        this.header.setPeerID(17 | Protocol.HeaderFlag.SentTime.value);
+        this.header.setSentTime(this.sequenceNumber);
+        this.sendReliable.setCommand(Protocol.Command.SendReliable);
+        this.sendReliable.setFlag(Protocol.CommandFlag.Acknowledge);
+        this.sendReliable.setChannelID(1);
+        this.sendReliable.setReliableSequenceNumber(++this.sequenceNumber);
+        this.sendReliable.setDataLength(512);
+        return this.sendReliable.size();
+    }
+    
+    @Benchmark
+    public void decodeSendReliable(Blackhole blackhole)
+    {
+        blackhole.consume(this.header.peerID());
+        blackhole.consume(this.header.sentTime());
+        blackhole.consume(this.sendReliable.commandNumber());
+        blackhole.consume(this.sendReliable.hasFlag(Protocol.CommandFlag.Acknowledge));
+        blackhole.consume(this.sendReliable.channelID());
+        blackhole.consume(this.sendReliable.reliableSequenceNumber());
+        blackhole.consume(this.sendReliable.dataLength());
+    }
+    
+    @Benchmark
+    public int encodeSendFragment()
+    {
+        this.sendFragment.setCommand(Protocol.Command.SendFragment);
+        this.sendFragment.setFlag(Protocol.CommandFlag.Acknowledge);
+        this.sendFragment.setChannelID(1);
+        this.sendFragment.setReliableSequenceNumber(++this.sequenceNumber);
+        this.sendFragment.setStartSequenceNumber(this.sequenceNumber);
+        this.sendFragment.setDataLength(1372);
+        this.sendFragment.setFragmentCount(48);
+        this.sendFragment.setFragmentNumber(7);
+        this.sendFragment.setTotalLength(48 * 1372);
+        this.sendFragment.setFragmentOffset(7 * 1372);
+        return this.sendFragment.size();
+    }
+    
+    @Benchmark
+    public void decodeSendFragment(Blackhole blackhole)
+    {
+        blackhole.consume(this.sendFragment.commandNumber());
+        blackhole.consume(this.sendFragment.channelID());
+        blackhole.consume(this.sendFragment.reliableSequenceNumber());
+        blackhole.consume(this.sendFragment.startSequenceNumber());
+        blackhole.consume(this.sendFragment.dataLength());
+        blackhole.consume(this.sendFragment.fragmentCount());
+        blackhole.consume(this.sendFragment.fragmentNumber());
+        blackhole.consume(this.sendFragment.totalLength());
+        blackhole.consume(this.sendFragment.fragmentOffset());
+    }
+    
+    @Benchmark
+    public int encodeAcknowledge()
+    {
+        this.acknowledge.setCommand(Protocol.Command.Acknowledge);
+        this.acknowledge.setChannelID(1);
+        this.acknowledge.setReliableSequenceNumber(++this.sequenceNumber);
+        this.acknowledge.setReceivedReliableSequenceNumber(this.sequenceNumber);
+        this.acknowledge.setReceivedSentTime(this.sequenceNumber);
+        return this.acknowledge.size();
+    }
+    
+    @Benchmark
+    public void decodeAcknowledge(Blackhole blackhole)
+    {
+        blackhole.consume(this.acknowledge.commandNumber());
+        blackhole.consume(this.acknowledge.receivedReliableSequenceNumber());
+        blackhole.consume(this.acknowledge.receivedSentTime());
+    }
+    
+    /**
+     * Copies an encoded command into a datagram, as the send path does.
+     */
+    @Benchmark
+    public int copySendFragment()
+    {
+        this.copy.clear();
+        this.sendFragment.copyTo(this.copy);
+        return this.copy.position();
+    }
+}
@@ -0,0 +1,143 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that a channel's publisher copes with a subscriber whose onNext
+ * throws. The sender fills the subscriber's buffer until the channel is
+ * held, the subscriber then asks for one packet and throws; the publisher
+ * must pass the exception to onError, deliver nothing more, and let the
+ * channel go on so that every packet sent is acknowledged. Exits with
+ * status 1 if it does not.
+ *
+ * <pre>
+ * java -cp java-enet-benchmarks/target/benchmarks.jar com.memeo.enet.PublisherCheck
+ * </pre>
+ */
+public class PublisherCheck
+{
+    private static final long TIMEOUT = 10000;
+    
+    public static void main(String[] args)
+        throws IOException, InterruptedException
+    {
+        Host server = new Host(new InetSocketAddress("127.0.0.1", 0), 1, 1, 0, 0);
+        Host client = new Host(new InetSocketAddress("127.0.0.1", 0), 1, 1, 0, 0);
+        Peer clientPeer = client.connect(server.address(), 1, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        
+        final RuntimeException thrown = new IllegalStateException("subscriber failed");
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<Flow.Subscription>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger delivered = new AtomicInteger();
+        
+        Peer serverPeer = null;
+        boolean connected = false;
+        int total = server.publisherBufferSize * 4;
+        int sent = 0;
+        boolean requested = false;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline)
+        {
+            Event event;
+            while ((event = client.service(0)) != null)
+            {
+                connected |= event.getType() == Event.Type.CONNECT;
+                client.recycle(event);
+            }
+            while ((event = server.service(0)) != null)
+            {
+                if (event.getType() == Event.Type.CONNECT)
+                {
+                    serverPeer = event.getPeer();
+                    serverPeer.publisher(0, executor).subscribe(new Flow.Subscriber<Packet>()
+                    {
+                        public void onSubscribe(Flow.Subscription s)
+                        {
+                            subscription.set(s);
+                        }
+                        
+                        public void onNext(Packet packet)
+                        {
+                            delivered.incrementAndGet();
+                            packet.release();
+                            throw thrown;
+                        }
+                        
+                        public void onError(Throwable t)
+                        {
+                            error.compareAndSet(null, t);
+                        }
+                        
+                        public void onComplete()
+                        {
+                        }
+                    });
+                }
+                server.recycle(event);
+            }
+            
+            if (connected)
+            {
+                while (sent < total)
+                {
+                    clientPeer.send(0, new Packet(new byte[16], EnumSet.of(Packet.Flag.RELIABLE)));
+                    sent++;
+                }
+            }
+            if (!requested && serverPeer != null && serverPeer.heldChannels > 0)
+            {
+                subscription.get().request(1);
+                requested = true;
+            }
+            if (requested && error.get() != null && serverPeer.heldChannels == 0
+                && clientPeer.outgoingReliableCommands.size() == 0
+                && clientPeer.sentReliableCommands.size() == 0)
+            {
+                // Asking again must deliver nothing once cancelled.
+                subscription.get().request(1);
+                break;
+            }
+            Thread.yield();
+        }
+        
+        int unacknowledged = clientPeer.outgoingReliableCommands.size() + clientPeer.sentReliableCommands.size();
+        executor.shutdown();
+        executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+        client.close();
+        server.close();
+        
+        boolean failed = false;
+        if (!requested)
+        {
+            System.out.println("the channel was never held");
+            failed = true;
+        }
+        if (error.get() != thrown)
+        {
+            System.out.println("onError was given " + error.get());
+            failed = true;
+        }
+        if (delivered.get() != 1)
+        {
+            System.out.println("onNext was called " + delivered.get() + " times");
+            failed = true;
+        }
+        if (unacknowledged != 0)
+        {
+            System.out.printf("%d of %d packets were never acknowledged%n", unacknowledged, total);
+            failed = true;
+        }
+        System.out.println(failed ? "failed" : "ok");
+        if (failed)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,105 @@
+package com.memeo.enet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round-trips datagram-sized buffers through {@link RangeCoder} and reports
+ * the compression ratio of each kind of payload. Exits with status 1 if any
+ * buffer fails to come back unchanged.
+ *
+ * <pre>
+ * java -cp java-enet-benchmarks/target/benchmarks.jar com.memeo.enet.RangeCoderCheck [buffers] [seed] [directory]
+ * </pre>
+ *
+ * This only checks the coder against itself. Given a directory, it also
+ * writes each buffer there as a .raw file, for ENet's
+ * enet_range_coder_compress to encode into the vectors that
+ * {@link RangeCoderVectors} checks against.
+ */
+public class RangeCoderCheck
+{
+    private static final String[] KINDS = { "zeros", "repetitive", "text", "random" };
+    
+    public static void main(String[] args)
+        throws IOException
+    {
+        int buffers = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        File directory = args.length > 2 ? new File(args[2]) : null;
+        Random random = new Random(seed);
+        RangeCoder coder = new RangeCoder();
+        ByteBuffer in = ByteBuffer.allocate(Protocol.MAXIMUM_MTU);
+        ByteBuffer compressed = ByteBuffer.allocate(Protocol.MAXIMUM_MTU);
+        ByteBuffer out = ByteBuffer.allocate(Protocol.MAXIMUM_MTU);
+        long[] inBytes = new long[KINDS.length];
+        long[] outBytes = new long[KINDS.length];
+        int[] incompressible = new int[KINDS.length];
+        int failures = 0;
+        
+        for (int i = 0; i < buffers; i++)
+        {
+            int kind = i % KINDS.length;
+            int length = 1 + random.nextInt(Protocol.MAXIMUM_MTU - 1);
+            fill(in, length, kind, random);
+            if (directory != null)
+                Files.write(new File(directory, String.format("%05d-%s.raw", i, KINDS[kind])).toPath(),
+                            Arrays.copyOf(in.array(), length));
+            
+            int compressedLength = coder.compress(in, 0, length, compressed, 0, compressed.capacity());
+            inBytes[kind] += length;
+            if (compressedLength == 0)
+            {
+                // Would not fit; the host sends such datagrams uncompressed.
+                outBytes[kind] += length;
+                incompressible[kind]++;
+                continue;
+            }
+            outBytes[kind] += compressedLength;
+            
+            int outLength = coder.decompress(compressed, 0, compressedLength, out, 0, out.capacity());
+            if (outLength != length || !in.duplicate().limit(length).equals(out.duplicate().limit(length)))
+            {
+                System.out.printf("buffer %d (%s, %d bytes) did not round-trip%n", i, KINDS[kind], length);
+                failures++;
+            }
+        }
+        
+        System.out.printf("%-12s %10s %10s %8s %15s%n", "kind", "in", "out", "ratio", "incompressible");
+        for (int kind = 0; kind < KINDS.length; kind++)
+            System.out.printf("%-12s %10d %10d %8.3f %15d%n", KINDS[kind], inBytes[kind], outBytes[kind],
+                              (double) outBytes[kind] / inBytes[kind], incompressible[kind]);
+        System.out.printf("%d buffers, %d failed%n", buffers, failures);
+        if (failures > 0)
+            System.exit(1);
+    }
+    
+    private static void fill(ByteBuffer buffer, int length, int kind, Random random)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            int value;
+            switch (kind)
+            {
+            case 0:
+                value = 0;
+                break;
+            case 1:
+                // Small state updates: a few fields that mostly repeat.
+                value = (i % 16 < 12) ? i % 16 : random.nextInt(4);
+                break;
+            case 2:
+                value = 'a' + (int) Math.abs(random.nextGaussian() * 6) % 26;
+                break;
+            default:
+                value = random.nextInt(256);
+                break;
+            }
+            buffer.put(i, (byte) value);
+        }
+    }
+}
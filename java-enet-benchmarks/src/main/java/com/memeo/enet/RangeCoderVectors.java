@@ -0,0 +1,92 @@
+package com.memeo.enet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Checks {@link RangeCoder} against vectors produced by ENet's own range
+ * coder: every vector's compressed bytes must decode to its raw bytes, and
+ * its raw bytes must encode to exactly its compressed bytes. Exits with
+ * status 1 if any vector fails, and with status 2 if the directory holds
+ * none, since then nothing has been shown.
+ *
+ * <pre>
+ * java -cp java-enet-benchmarks/target/benchmarks.jar com.memeo.enet.RangeCoderVectors directory
+ * </pre>
+ *
+ * A vector is a pair of files, name.raw and name.enc. The .enc file must
+ * be written by the C library, for example by linking this against
+ * libenet and running it once per raw file:
+ *
+ * <pre>
+ * void * context = enet_range_coder_create ();
+ * ENetBuffer buffer = { .data = raw, .dataLength = rawLength };
+ * size_t length = enet_range_coder_compress (context, &amp;buffer, 1, rawLength,
+ *                                           enc, sizeof (enc));
+ * </pre>
+ *
+ * A length of 0 means ENet would send the datagram uncompressed; write no
+ * .enc file for it. {@link RangeCoderCheck} can supply raw files of
+ * typical payloads.
+ */
+public class RangeCoderVectors
+{
+    public static void main(String[] args)
+        throws IOException
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: RangeCoderVectors directory");
+            System.exit(2);
+        }
+        
+        File[] files = new File(args[0]).listFiles();
+        if (files == null)
+        {
+            System.err.println(args[0] + " is not a directory");
+            System.exit(2);
+        }
+        Arrays.sort(files);
+        
+        RangeCoder coder = new RangeCoder();
+        ByteBuffer out = ByteBuffer.allocate(Protocol.MAXIMUM_MTU);
+        int vectors = 0;
+        int failures = 0;
+        for (File rawFile : files)
+        {
+            String name = rawFile.getName();
+            if (!name.endsWith(".raw"))
+                continue;
+            File encodedFile = new File(rawFile.getParentFile(), name.substring(0, name.length() - 4) + ".enc");
+            if (!encodedFile.exists())
+                continue;
+            
+            byte[] raw = Files.readAllBytes(rawFile.toPath());
+            byte[] encoded = Files.readAllBytes(encodedFile.toPath());
+            vectors++;
+            
+            int length = coder.decompress(ByteBuffer.wrap(encoded), 0, encoded.length, out, 0, out.capacity());
+            if (length != raw.length || !out.duplicate().limit(length).equals(ByteBuffer.wrap(raw)))
+            {
+                System.out.printf("%s: ENet's output does not decode to the raw bytes%n", name);
+                failures++;
+            }
+            
+            length = coder.compress(ByteBuffer.wrap(raw), 0, raw.length, out, 0, out.capacity());
+            if (length != encoded.length || !out.duplicate().limit(length).equals(ByteBuffer.wrap(encoded)))
+            {
+                System.out.printf("%s: encodes to %d bytes unlike ENet's %d%n", name, length, encoded.length);
+                failures++;
+            }
+        }
+        
+        System.out.printf("%d vectors, %d failed%n", vectors, failures);
+        if (vectors == 0)
+            System.exit(2);
+        if (failures > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,118 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Host#bandwidthThrottle()} over connected peers whose combined
+ * traffic exceeds the host's outgoing bandwidth, so every pass adjusts
+ * throttles. The peers' counters are restored before each pass;
+ * {@link #restore()} measures that on its own. {@link #recalculate()} also
+ * recalculates the bandwidth limits advertised to the peers, as the host
+ * does after a peer connects or a limit changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThrottleBenchmark
+{
+    @Param({ "10", "1000", "4095" })
+    public int peerCount;
+    
+    /**
+     * Host bandwidth, both ways: at 1 MB/s the throttle bottoms out and no
+     * peer is limited by its own bandwidth; at 100 MB/s peers are limited
+     * a few at a time, each raising the throttle for the rest. The incoming
+     * limit gives every peer a BandwidthLimit to be sent.
+     */
+    @Param({ "1000000", "100000000" })
+    public int outgoingBandwidth;
+    
+    private Host host;
+    private Peer[] peers;
+    private int[] outgoingDataTotals;
+    
+    @Setup
+    public void setup() throws IOException
+    {
+        this.host = new Host(new InetSocketAddress("127.0.0.1", 0), this.peerCount, 1, this.outgoingBandwidth,
+                             this.outgoingBandwidth);
+        this.peers = new Peer[this.peerCount];
+        this.outgoingDataTotals = new int[this.peerCount];
+        Random random = new Random(this.peerCount);
+        for (int i = 0; i < this.peerCount; i++)
+        {
+            Peer peer = this.host.connect(new InetSocketAddress("127.0.0.1", 9), 1, 0);
+            peer.state = Peer.State.CONNECTED;
+            peer.incomingBandwidth = 10000 + random.nextInt(90000);
+            this.peers[i] = peer;
+            this.outgoingDataTotals[i] = 1000 + random.nextInt(99000);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.host.close();
+    }
+    
+    @Benchmark
+    public int throttle() throws IOException
+    {
+        restore();
+        this.host.bandwidthThrottle();
+        return this.peers[0].packetThrottleLimit;
+    }
+    
+    /**
+     * A pass that recalculates the bandwidth limits too. BandwidthLimit
+     * commands it queues are taken back before the next pass.
+     */
+    @Benchmark
+    public int recalculate() throws IOException
+    {
+        restore();
+        this.host.recalculateBandwidthLimits = true;
+        this.host.bandwidthThrottle();
+        for (Peer peer : this.peers)
+        {
+            OutgoingCommand outgoingCommand;
+            while ((outgoingCommand = peer.outgoingReliableCommands.poll()) != null)
+                this.host.outgoingCommandPool.recycle(outgoingCommand);
+        }
+        return this.peers[0].packetThrottleLimit;
+    }
+    
+    @Benchmark
+    public int restore()
+    {
+        for (int i = 0; i < this.peers.length; i++)
+        {
+            Peer peer = this.peers[i];
+            peer.outgoingDataTotal = this.outgoingDataTotals[i];
+            peer.outgoingBandwidthThrottleEpoch = 0;
+            peer.packetThrottle = Peer.DEFAULT_PACKET_THROTTLE;
+        }
+        this.host.serviceTime = Time.get();
+        this.host.bandwidthThrottleEpoch = this.host.serviceTime - Host.BANDWIDTH_THROTTLE_INTERVAL;
+        return this.host.bandwidthThrottleEpoch;
+    }
+}
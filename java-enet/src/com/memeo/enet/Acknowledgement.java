@@ -0,0 +1,20 @@
+package com.memeo.enet;
+
+/**
+ * A received reliable command waiting to be acknowledged.
+ */
+class Acknowledgement extends ListNode<Acknowledgement>
+{
+    int sentTime;
+    int command;
+    int channelID;
+    int reliableSequenceNumber;
+    
+    void reset()
+    {
+        sentTime = 0;
+        command = 0;
+        channelID = 0;
+        reliableSequenceNumber = 0;
+    }
+}
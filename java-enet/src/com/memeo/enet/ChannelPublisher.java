@@ -0,0 +1,269 @@
+package com.memeo.enet;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the packets arriving on one of a peer's channels to a single
+ * subscriber.
+ *
+ * The service thread offers packets as the channel dispatches them, into a
+ * bounded buffer that the subscriber's demand drains on the executor. Once
+ * the buffer is full the channel is held: reliable packets stay queued in
+ * the channel, which stops the peer's reliable window from advancing,
+ * unreliable ones are dropped, and the host advertises the least incoming
+ * bandwidth to the peer so that it shrinks its window and slows down. As
+ * soon as the subscriber makes room, the service thread is asked to resume
+ * the channel.
+ *
+ * @see Peer#publisher(int, Executor)
+ */
+class ChannelPublisher implements Flow.Publisher<Packet>
+{
+    private final Peer peer;
+    private final int channelID;
+    private final Executor executor;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Packet> buffer = new ConcurrentLinkedQueue<Packet>();
+    private final AtomicInteger size = new AtomicInteger();
+    
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    // Set once onSubscribe has returned.
+    private volatile Flow.Subscriber<? super Packet> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    // Drains scheduled and not yet run; only one runs at a time.
+    private final AtomicInteger drains = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile boolean closed;
+    // Set by the service thread when the buffer was full; whoever clears it
+    // first resumes the channel.
+    private final AtomicBoolean held = new AtomicBoolean();
+    
+    private final Runnable drainTask = new Runnable()
+    {
+        public void run()
+        {
+            drain();
+        }
+    };
+    
+    private final Flow.Subscription subscription = new Flow.Subscription()
+    {
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                cancel();
+                Flow.Subscriber<? super Packet> subscriber = ChannelPublisher.this.subscriber;
+                if (subscriber != null)
+                    subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+            for (;;)
+            {
+                long current = demand.get();
+                long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                if (demand.compareAndSet(current, next))
+                    break;
+            }
+            schedule();
+        }
+        
+        public void cancel()
+        {
+            cancelled = true;
+            // Let the channel go on; its packets are dropped from now on.
+            if (held.compareAndSet(true, false))
+                resume();
+            // The drain releases what is buffered.
+            schedule();
+        }
+    };
+    
+    ChannelPublisher(Peer peer, int channelID, Executor executor, int capacity)
+    {
+        this.peer = peer;
+        this.channelID = channelID;
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+    
+    public void subscribe(Flow.Subscriber<? super Packet> subscriber)
+    {
+        if (!this.claimed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+                public void request(long n)
+                {
+                }
+                
+                public void cancel()
+                {
+                }
+            });
+            subscriber.onError(new IllegalStateException("channel already has a subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(this.subscription);
+        this.subscriber = subscriber;
+        schedule();
+    }
+    
+    /**
+     * Hands a packet on; called by the service thread. Packets offered
+     * before the subscriber arrives wait for it, and packets offered after
+     * it cancels are released.
+     *
+     * @return false if the buffer is full, in which case the channel is
+     *  held until the subscriber makes room.
+     */
+    boolean offer(Packet packet)
+    {
+        if (this.cancelled)
+        {
+            packet.release();
+            return true;
+        }
+        for (;;)
+        {
+            if (this.size.get() < this.capacity)
+            {
+                add(packet);
+                return true;
+            }
+            this.held.set(true);
+            // The subscriber may have made room since; if so, try again.
+            if (this.size.get() >= this.capacity || !this.held.compareAndSet(true, false))
+                return false;
+        }
+    }
+    
+    /**
+     * Hands a packet on even if the buffer is full, for packets that were
+     * dispatched before the publisher was created and so cannot be held.
+     */
+    void add(Packet packet)
+    {
+        if (this.cancelled)
+        {
+            packet.release();
+            return;
+        }
+        this.buffer.add(packet);
+        this.size.incrementAndGet();
+        schedule();
+    }
+    
+    /**
+     * Completes the subscriber once it has been given what is buffered;
+     * called by the service thread when the peer is reset.
+     */
+    void close()
+    {
+        this.closed = true;
+        schedule();
+    }
+    
+    private void schedule()
+    {
+        if (this.drains.getAndIncrement() == 0)
+            this.executor.execute(this.drainTask);
+    }
+    
+    private void drain()
+    {
+        int missed = 1;
+        for (;;)
+        {
+            Flow.Subscriber<? super Packet> subscriber = this.subscriber;
+            if (subscriber != null && !this.cancelled)
+            {
+                long requested = this.demand.get();
+                long emitted = 0;
+                Packet packet;
+                while (emitted != requested && !this.cancelled && (packet = this.buffer.poll()) != null)
+                {
+                    this.size.decrementAndGet();
+                    if (this.held.get() && this.held.compareAndSet(true, false))
+                        resume();
+                    try
+                    {
+                        subscriber.onNext(packet);
+                    }
+                    catch (Throwable t)
+                    {
+                        // The subscription is cancelled (rule 2.13), which
+                        // also lets the channel go on.
+                        this.subscription.cancel();
+                        try
+                        {
+                            subscriber.onError(t);
+                        }
+                        catch (Throwable ignored)
+                        {
+                            // Nothing more can be signalled.
+                        }
+                        break;
+                    }
+                    emitted++;
+                }
+                if (emitted != 0 && requested != Long.MAX_VALUE)
+                    this.demand.addAndGet(-emitted);
+                if (this.closed && this.buffer.isEmpty() && !this.cancelled)
+                {
+                    this.cancelled = true;
+                    try
+                    {
+                        subscriber.onComplete();
+                    }
+                    catch (Throwable t)
+                    {
+                        // Already completed, so there is nothing left to
+                        // signal (rule 1.7); just let the channel go on.
+                        this.subscription.cancel();
+                    }
+                }
+            }
+            if (this.cancelled)
+                discard();
+            missed = this.drains.addAndGet(-missed);
+            if (missed == 0)
+                return;
+        }
+    }
+    
+    /**
+     * Releases what is buffered once the subscription is cancelled.
+     */
+    private void discard()
+    {
+        Packet packet;
+        while ((packet = this.buffer.poll()) != null)
+        {
+            this.size.decrementAndGet();
+            packet.release();
+        }
+    }
+    
+    /**
+     * Asks the service thread to carry on dispatching the channel.
+     */
+    private void resume()
+    {
+        try
+        {
+            this.peer.host.submit(RequestRing.Kind.RESUME, this.peer, null, this.channelID, 0, 0);
+        }
+        catch (EnetException e)
+        {
+            // Only the service thread, running the executor itself, is
+            // refused when the queue is full; retry on the next packet.
+            this.held.set(true);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.memeo.enet;
+
+/**
+ * The time source a host reads, once per pass of its service loop; every
+ * timestamp kept by its peers and commands is that sample. Tests can
+ * supply their own clock to drive a host through virtual time.
+ *
+ * @see Host#setClock(Clock)
+ */
+public interface Clock
+{
+    /**
+     * Monotonic milliseconds from {@link System#nanoTime()}, unaffected by
+     * changes to the wall clock.
+     */
+    Clock SYSTEM = new Clock()
+    {
+        public int time()
+        {
+            return Time.get();
+        }
+    };
+    
+    /**
+     * Returns the current time in milliseconds. Only differences between
+     * times are used, and they wrap around as ints do, but the time must
+     * never go backwards.
+     */
+    int time();
+}
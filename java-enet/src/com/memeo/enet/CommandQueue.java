@@ -0,0 +1,86 @@
+package com.memeo.enet;
+
+/**
+ * A queue of outgoing commands linked through the commands' own queue
+ * links, so that a command is taken out of the middle in O(1), as when it
+ * is acknowledged or times out. A command is in at most one queue at a
+ * time; its list node links belong to the timing wheel.
+ *
+ * Only touched by the thread servicing the host.
+ */
+class CommandQueue
+{
+    private OutgoingCommand head;
+    private OutgoingCommand tail;
+    private int size;
+    
+    boolean isEmpty()
+    {
+        return this.head == null;
+    }
+    
+    int size()
+    {
+        return this.size;
+    }
+    
+    /**
+     * @return The first command, or null; the rest follow through
+     *  {@link OutgoingCommand#queueNext}.
+     */
+    OutgoingCommand peek()
+    {
+        return this.head;
+    }
+    
+    OutgoingCommand poll()
+    {
+        OutgoingCommand outgoingCommand = this.head;
+        if (outgoingCommand != null)
+            remove(outgoingCommand);
+        return outgoingCommand;
+    }
+    
+    void add(OutgoingCommand outgoingCommand)
+    {
+        insertAfter(this.tail, outgoingCommand);
+    }
+    
+    /**
+     * Inserts a command after one already queued, or first if previous is
+     * null.
+     */
+    void insertAfter(OutgoingCommand previous, OutgoingCommand outgoingCommand)
+    {
+        OutgoingCommand next = previous != null ? previous.queueNext : this.head;
+        outgoingCommand.queuePrevious = previous;
+        outgoingCommand.queueNext = next;
+        if (previous != null)
+            previous.queueNext = outgoingCommand;
+        else
+            this.head = outgoingCommand;
+        if (next != null)
+            next.queuePrevious = outgoingCommand;
+        else
+            this.tail = outgoingCommand;
+        this.size++;
+    }
+    
+    /**
+     * Takes out a command, which must be in this queue.
+     */
+    void remove(OutgoingCommand outgoingCommand)
+    {
+        if (outgoingCommand.queuePrevious != null)
+            outgoingCommand.queuePrevious.queueNext = outgoingCommand.queueNext;
+        else
+            this.head = outgoingCommand.queueNext;
+        if (outgoingCommand.queueNext != null)
+            outgoingCommand.queueNext.queuePrevious = outgoingCommand.queuePrevious;
+        else
+            this.tail = outgoingCommand.queuePrevious;
+        outgoingCommand.queuePrevious = null;
+        outgoingCommand.queueNext = null;
+        this.size--;
+    }
+}
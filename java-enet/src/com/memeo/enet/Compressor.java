@@ -1,6 +1,32 @@
 package com.memeo.enet;
 
-public class Compressor
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the commands of outgoing datagrams and decompresses incoming
+ * ones. Both peers must use the same compressor.
+ *
+ * Offsets are absolute; implementations must not change the position or
+ * limit of either buffer. A compressor is only used by its host's service
+ * thread.
+ *
+ * @see Host#compress(Compressor)
+ */
+public interface Compressor
 {
-    // TODO
+    /**
+     * Compresses inLength bytes of in, starting at inOffset, into out.
+     *
+     * @return The compressed length, or 0 if the result would not fit in
+     *  outLimit bytes.
+     */
+    int compress(ByteBuffer in, int inOffset, int inLength, ByteBuffer out, int outOffset, int outLimit);
+    
+    /**
+     * Decompresses inLength bytes of in, starting at inOffset, into out.
+     *
+     * @return The decompressed length, or 0 if the data is corrupt or would
+     *  not fit in outLimit bytes.
+     */
+    int decompress(ByteBuffer in, int inOffset, int inLength, ByteBuffer out, int outOffset, int outLimit);
 }
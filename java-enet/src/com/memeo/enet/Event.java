@@ -1,6 +1,6 @@
 package com.memeo.enet;
 
-public class Event
+public class Event extends ListNode<Event>
 {
     public static enum Type
     {
@@ -56,4 +56,13 @@ public class Event
     {
         this.packet = packet;
     }
+    
+    void reset()
+    {
+        type = Type.NONE;
+        peer = null;
+        channelID = 0;
+        data = 0;
+        packet = null;
+    }
 }
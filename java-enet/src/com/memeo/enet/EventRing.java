@@ -0,0 +1,95 @@
+package com.memeo.enet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded ring of events handed from a shard's service thread to the
+ * threads reading them from its {@link ShardedHost}. It is the same bounded
+ * queue as {@link RequestRing}, except that consumers also claim slots
+ * with a compare-and-set, so any number of threads may read. Nothing is
+ * allocated per event.
+ */
+class EventRing
+{
+    private final int mask;
+    // Slot i is free for the producer at position p when it holds p, and
+    // full for a consumer at position p when it holds p + 1.
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final Event[] events;
+    
+    EventRing(int capacity)
+    {
+        capacity = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) * 2 - 1);
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            this.sequences.set(i, i);
+        this.events = new Event[capacity];
+    }
+    
+    /**
+     * Adds an event; called from any thread.
+     *
+     * @return false if the ring is full.
+     */
+    boolean offer(Event event)
+    {
+        long position = this.tail.get();
+        int index;
+        for (;;)
+        {
+            index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (this.tail.compareAndSet(position, position + 1))
+                    break;
+                position = this.tail.get();
+            }
+            else if (difference < 0)
+                return false;
+            else
+                position = this.tail.get();
+        }
+        
+        this.events[index] = event;
+        // A volatile write rather than lazySet, so that the caller's read of
+        // whether a consumer is blocked cannot be ordered before it.
+        this.sequences.set(index, position + 1);
+        return true;
+    }
+    
+    /**
+     * Takes the oldest event; called from any thread.
+     *
+     * @return The event, or null if the ring is empty.
+     */
+    Event poll()
+    {
+        long position = this.head.get();
+        int index;
+        for (;;)
+        {
+            index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                if (this.head.compareAndSet(position, position + 1))
+                    break;
+                position = this.head.get();
+            }
+            else if (difference < 0)
+                return null;
+            else
+                position = this.head.get();
+        }
+        
+        Event event = this.events[index];
+        this.events[index] = null;
+        this.sequences.lazySet(index, position + this.mask + 1);
+        return event;
+    }
+}
@@ -1,25 +1,45 @@
 package com.memeo.enet;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
 import java.util.prefs.PreferencesFactory;
+import java.util.zip.CRC32C;
 import java.util.zip.Checksum;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import com.memeo.enet.Peer.State;
 
+/**
+ * An ENet host. A host belongs to the thread servicing it: the thread that
+ * last called {@link #service(int)} or {@link #flush()}, or until then the
+ * thread that created it. Only that thread touches protocol state. Calls
+ * such as {@link Peer#send} made on it take effect at once; made on any
+ * other thread, they are handed over through a bounded lock-free ring and
+ * carried out by the service thread on its next pass, which a blocked
+ * service call is woken for.
+ */
 public class Host
 {
     static final Preferences enetProperties;
@@ -39,67 +59,315 @@ public class Host
     public static final int MAXIMUM_PEER_ID = 0xFFF;
     
     public static final int BANDWIDTH_THROTTLE_INTERVAL = 1000;
+    public static final int DEFAULT_MAXIMUM_PACKET_SIZE = 32 * 1024 * 1024;
+    public static final int DEFAULT_POOL_SIZE = 4096;
+    public static final int DEFAULT_ACKNOWLEDGEMENT_DELAY = 0;
+    public static final int DEFAULT_METRICS_INTERVAL = 0;
+    /** How long metrics() waits for the service thread to take a snapshot. */
+    public static final int METRICS_WAIT = 1000;
+    public static final int DEFAULT_REQUEST_QUEUE_SIZE = 16 * 1024;
+    public static final int DEFAULT_PUBLISHER_BUFFER_SIZE = 256;
+    public static final int DEFAULT_HELD_COMMAND_LIMIT = Peer.RELIABLE_WINDOW_SIZE;
+    
+    // Forwarding buffers kept per shard; more are allocated while busy.
+    private static final int FORWARDED_POOL_SIZE = 64;
+    
+    /**
+     * Offset of the first command in {@link #packetData}. Room is left in
+     * front of it so the header and checksum can be written once their size
+     * is known.
+     */
+    private static final int PACKET_DATA_OFFSET = Protocol.Header.length() + Protocol.CHECKSUM_SIZE;
     
     private InetSocketAddress address;
     private DatagramChannel channel;
     private Selector selector;
-    private ConcurrentMap<Short, Peer> peers;
+    // Indexed by incoming peer ID less peerIDBase; free indices are kept on
+    // a stack.
+    private final Peer[] peers;
+    
+    /*
+     * Scratch space for bandwidthThrottle: the indices of connected peers,
+     * peers chained by throttle threshold, and peers ordered by outgoing
+     * bandwidth.
+     */
+    private final int[] throttlePeers;
+    private final int[] throttleNext;
+    private final int[] throttleBuckets = new int[Peer.PACKET_THROTTLE_SCALE + 1];
+    private final long[] bandwidthOrder;
+    // Only touched by the service thread, like peers.
+    private final short[] freePeerIDs;
+    private int freePeerCount;
+    // Peer IDs not yet claimed by a connect or an incoming connection.
+    // Connects claim one on the calling thread, so that a full host throws
+    // there, and the service thread assigns it.
+    private final AtomicInteger unclaimedPeerCount;
+    private final int peerIDBase;
+    
+    // Set when this host is one shard of a ShardedHost.
+    private final ShardedHost shards;
+    // Datagrams other shards received for this shard's peers, guarded by
+    // the queue itself; forwarded is set while it may hold any.
+    private final ArrayDeque<ForwardedDatagram> forwardedDatagrams = new ArrayDeque<ForwardedDatagram>();
+    private volatile boolean forwarded;
+    private final Pool<ForwardedDatagram> forwardedDatagramPool;
+    // Peers this shard connected out to that have sockets of their own.
+    private final ArrayList<Peer> channelPeers = new ArrayList<Peer>();
     private Queue<Protocol.Command> commands;
     private int peerCount;
     
     private int incomingBandwidth;
     private int outgoingBandwidth;
-    private int bandwidthThrottleEpoch;
+    int bandwidthThrottleEpoch;
     
     private Peer lastServicedPeer;
-    private boolean recalculateBandwidthLimits;
+    boolean recalculateBandwidthLimits;
+    // Set when the command being handled was refused rather than
+    // discarded, and so must not be acknowledged.
+    boolean commandRefused;
     short mtu;
-    private ByteBuffer buffers;
-    private int bufferCount;
+    private final ByteBuffer packetData;
+    
+    // View of the last packet without a backing array that data was sent
+    // from; the fragments of a packet usually go out one after another.
+    private Packet payloadPacket;
+    private ByteBuffer payloadView;
+    // Compressed outgoing, or decompressed incoming, commands.
+    private final ByteBuffer compressedData;
+    private int packetSize;
+    private int commandCount;
+    private int headerFlags;
+    private boolean continueSending;
+    
+    /*
+     * Acknowledgements are held back for up to this many milliseconds so
+     * that they can share a datagram with outgoing data instead of being
+     * sent on their own. The remote counts the delay in its round trip
+     * time, which sets its throttle and retransmission timeouts, so it is
+     * 0 unless enet.ackdelay asks for one.
+     */
+    private final int acknowledgementDelay;
+    private boolean acknowledgementsDelayed;
     private int randomSeed;
     private int channelLimit;
     
     private InetSocketAddress receivedAddress;
-    private ByteBuffer receivedBuffer;
+    private final ByteBuffer receivedBuffer;
+    private int receivedDataLength;
+    private int receivedDataOffset;
+    
+    // Views used to decode received datagrams in place.
+    private final Protocol.Header header;
+    private final Protocol.CommandHeader commandHeader;
+    private final Protocol.Acknowledge acknowledge;
+    private final Protocol.Connect connect;
+    private final Protocol.VerifyConnect verifyConnect;
+    private final Protocol.Disconnect disconnect;
+    private final Protocol.SendReliable sendReliable;
+    private final Protocol.SendUnreliable sendUnreliable;
+    private final Protocol.SendUnsequenced sendUnsequenced;
+    private final Protocol.SendFragment sendFragment;
+    private final Protocol.BandwidthLimit bandwidthLimit;
+    private final Protocol.ThrottleConfigure throttleConfigure;
+    
+    // Views used to encode directly into the outgoing datagram.
+    private final Protocol.Header outgoingHeader;
+    private final Protocol.Acknowledge outgoingAcknowledge;
+    private final Protocol.BandwidthLimit outgoingBandwidthLimit;
+    
+    // Copy of a reliable fragment renumbered to the start of its packet.
+    private final Protocol.SendFragment fragmentStart;
+    
+    private Event event;
+    
+    // Requests from threads other than the service thread; see submit.
+    private final RequestRing requests;
+    private final RequestRing.Request request = new RequestRing.Request();
+    // Packets a channel's publisher holds for its subscriber.
+    final int publisherBufferSize;
+    // Reliable commands a channel with a publisher keeps waiting to be
+    // dispatched; see Peer#queueIncomingCommand.
+    final int heldCommandLimit;
+    volatile Thread serviceThread = Thread.currentThread();
+    // Set while the service thread is inside service or flush.
+    private boolean servicing;
+    // Set while the service thread waits on the selector.
+    private volatile boolean selecting;
+    
+    // Reliable commands in flight, keyed by retransmission time.
+    final TimingWheel timeouts;
+    
+    /*
+     * Recycled commands and events. Outgoing commands go back once they are
+     * acknowledged, or once sent if unreliable; incoming commands once
+     * dispatched to the application; events when the application passes
+     * them to recycle(Event).
+     */
+    final Pool<OutgoingCommand> outgoingCommandPool;
+    final PacketArena packetArena = new PacketArena();
+    final Pool<IncomingCommand> incomingCommandPool;
+    final Pool<Acknowledgement> acknowledgementPool;
+    private final Pool<Event> eventPool;
     
     private long totalSentData;
     private long totalSentPackets;
     private long totalReceivedData;
     private long totalReceivedPackets;
+    
+    // Taken every metricsInterval milliseconds by the service thread, or,
+    // if that is 0, whenever metrics() asks for one.
+    private final int metricsInterval;
+    private int metricsEpoch;
+    private volatile HostMetrics metrics;
+    private ObjectName mbeanName;
 
     private Compressor compressor;
     Checksum checksum;
     Queue<Peer> dispatchQueue;
-    private int serviceTime;
+    // Sampled from the clock once per pass of the service loop.
+    int serviceTime;
+    private Clock clock = Clock.SYSTEM;
     
     public Host(InetSocketAddress address, int peerCount, int channelLimit, int incomingBandwidth, int outgoingBandwidth)
         throws IOException
+    {
+        this(address, peerCount, channelLimit, incomingBandwidth, outgoingBandwidth, null, 0);
+    }
+    
+    /**
+     * Creates one shard of a sharded host: the channel is bound with
+     * SO_REUSEPORT, and peers are numbered from peerIDBase.
+     */
+    Host(InetSocketAddress address, int peerCount, int channelLimit, int incomingBandwidth, int outgoingBandwidth,
+         ShardedHost shards, int peerIDBase)
+        throws IOException
     {
         channel = DatagramChannel.open();
         channel.configureBlocking(false);
+        if (shards != null)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
         channel.socket().bind(address);
         channel.socket().setBroadcast(true);
         channel.socket().setReceiveBufferSize(enetProperties.getInt("sockopt.recvbuf", DEFAULT_RECEIVE_BUFFER_SIZE));
         channel.socket().setSendBufferSize(enetProperties.getInt("sockopt.sendbuf", DEFAULT_SEND_BUFFER_SIZE));
         selector = Selector.open();
         channel.register(selector, SelectionKey.OP_READ);
-        this.peerCount = Math.max(1, Math.min(peerCount, MAXIMUM_PEER_ID));
-        peers = new ConcurrentHashMap<Short, Peer>(this.peerCount);
+        this.shards = shards;
+        this.peerIDBase = peerIDBase;
+        this.peerCount = Math.max(1, Math.min(peerCount, MAXIMUM_PEER_ID - peerIDBase));
+        peers = new Peer[this.peerCount];
+        freePeerIDs = new short[this.peerCount];
+        throttlePeers = new int[this.peerCount];
+        throttleNext = new int[this.peerCount];
+        bandwidthOrder = new long[this.peerCount];
+        for (int i = 0; i < this.peerCount; i++)
+            freePeerIDs[i] = (short) (this.peerCount - 1 - i);
+        freePeerCount = this.peerCount;
+        unclaimedPeerCount = new AtomicInteger(this.peerCount);
         commands = new ConcurrentLinkedQueue<Protocol.Command>();
         this.address = (InetSocketAddress) channel.socket().getLocalSocketAddress();
-        randomSeed = (int) System.currentTimeMillis();
+        randomSeed = System.identityHashCode(this) + (int) System.currentTimeMillis();
         randomSeed = (randomSeed << 16) | (randomSeed >> 16);
         this.channelLimit = Math.max(MINIMUM_CHANNEL_COUNT, Math.min(MAXIMUM_CHANNEL_COUNT, channelLimit));
         this.incomingBandwidth = Math.max(0, incomingBandwidth);
         this.outgoingBandwidth = Math.max(0, outgoingBandwidth);
-        bandwidthThrottleEpoch = 0;
+        this.serviceTime = this.clock.time();
+        bandwidthThrottleEpoch = this.serviceTime;
         this.mtu = (short) enetProperties.getInt("enet.mtu", DEFAULT_MTU);
+        this.acknowledgementDelay = enetProperties.getInt("enet.ackdelay", DEFAULT_ACKNOWLEDGEMENT_DELAY);
+        packetData = ByteBuffer.allocateDirect(PACKET_DATA_OFFSET + Protocol.MAXIMUM_MTU);
+        outgoingHeader = new Protocol.Header(packetData, 0);
+        outgoingAcknowledge = new Protocol.Acknowledge(packetData, 0);
+        outgoingBandwidthLimit = new Protocol.BandwidthLimit(null, 0);
+        compressedData = ByteBuffer.allocateDirect(PACKET_DATA_OFFSET + Protocol.MAXIMUM_MTU);
         receivedAddress = new InetSocketAddress(0);
+        receivedBuffer = ByteBuffer.allocateDirect(Protocol.MAXIMUM_MTU);
+        header = new Protocol.Header(receivedBuffer, 0);
+        commandHeader = new Protocol.CommandHeader(receivedBuffer, 0);
+        acknowledge = new Protocol.Acknowledge(receivedBuffer, 0);
+        connect = new Protocol.Connect(receivedBuffer, 0);
+        verifyConnect = new Protocol.VerifyConnect(receivedBuffer, 0);
+        disconnect = new Protocol.Disconnect(receivedBuffer, 0);
+        sendReliable = new Protocol.SendReliable(receivedBuffer, 0);
+        sendUnreliable = new Protocol.SendUnreliable(receivedBuffer, 0);
+        sendUnsequenced = new Protocol.SendUnsequenced(receivedBuffer, 0);
+        sendFragment = new Protocol.SendFragment(receivedBuffer, 0);
+        fragmentStart = new Protocol.SendFragment(ByteBuffer.allocate(Protocol.SendFragment.length()), 0);
+        bandwidthLimit = new Protocol.BandwidthLimit(receivedBuffer, 0);
+        throttleConfigure = new Protocol.ThrottleConfigure(receivedBuffer, 0);
         totalSentData = 0;
         totalSentPackets = 0;
         totalReceivedData = 0;
         totalReceivedPackets = 0;
-        dispatchQueue = new ConcurrentLinkedQueue<Peer>();
+        this.metricsInterval = enetProperties.getInt("enet.metricsinterval", DEFAULT_METRICS_INTERVAL);
+        this.metrics = new HostMetrics(System.currentTimeMillis(), 0, 0, 0, 0, new PeerMetrics[0]);
+        this.metricsEpoch = this.serviceTime;
+        dispatchQueue = new ArrayDeque<Peer>();
+        requests = new RequestRing(enetProperties.getInt("enet.requestqueue", DEFAULT_REQUEST_QUEUE_SIZE));
+        this.publisherBufferSize = enetProperties.getInt("enet.publisherbuffer", DEFAULT_PUBLISHER_BUFFER_SIZE);
+        this.heldCommandLimit = enetProperties.getInt("enet.heldcommands", DEFAULT_HELD_COMMAND_LIMIT);
+        timeouts = new TimingWheel(this.serviceTime);
+        int poolSize = enetProperties.getInt("enet.poolsize", DEFAULT_POOL_SIZE);
+        outgoingCommandPool = new Pool<OutgoingCommand>(poolSize)
+        {
+            OutgoingCommand create()
+            {
+                return new OutgoingCommand();
+            }
+            
+            void reset(OutgoingCommand outgoingCommand)
+            {
+                outgoingCommand.reset();
+            }
+        };
+        incomingCommandPool = new Pool<IncomingCommand>(poolSize)
+        {
+            IncomingCommand create()
+            {
+                return new IncomingCommand();
+            }
+            
+            void reset(IncomingCommand incomingCommand)
+            {
+                incomingCommand.reset();
+            }
+        };
+        acknowledgementPool = new Pool<Acknowledgement>(poolSize)
+        {
+            Acknowledgement create()
+            {
+                return new Acknowledgement();
+            }
+            
+            void reset(Acknowledgement acknowledgement)
+            {
+                acknowledgement.reset();
+            }
+        };
+        forwardedDatagramPool = new Pool<ForwardedDatagram>(shards != null ? FORWARDED_POOL_SIZE : 0)
+        {
+            ForwardedDatagram create()
+            {
+                return new ForwardedDatagram();
+            }
+            
+            void reset(ForwardedDatagram forwarded)
+            {
+                forwarded.address = null;
+            }
+        };
+        eventPool = new Pool<Event>(poolSize)
+        {
+            Event create()
+            {
+                return new Event();
+            }
+            
+            void reset(Event event)
+            {
+                event.reset();
+            }
+        };
     }
     
     public InetSocketAddress address()
@@ -107,6 +375,20 @@ public class Host
         return this.address;
     }
     
+    /**
+     * Replaces the clock the host reads, such as with a virtual one in a
+     * test. Call it before the host has any peers, from the thread that
+     * services it; the host's own timers restart from the new clock's time.
+     */
+    public void setClock(Clock clock)
+    {
+        this.clock = clock;
+        this.serviceTime = clock.time();
+        this.bandwidthThrottleEpoch = this.serviceTime;
+        this.metricsEpoch = this.serviceTime;
+        this.timeouts.reset(this.serviceTime);
+    }
+    
     public void bandwidthLimit(int incomingBandwidth, int outgoingBandwidth)
     {
         this.incomingBandwidth = incomingBandwidth;
@@ -116,211 +398,2293 @@ public class Host
     
     void bandwidthThrottle() throws EnetException
     {
-        int timeCurrent = Time.get();
-        int elapsedTime = timeCurrent - this.bandwidthThrottleEpoch;
-        int peersTotal = 0;
-        int dataTotal = 0;
-        int peersRemaining;
-        int bandwidth;
-        int throttle = 0;
-        int bandwidthLimit = 0;
-        boolean needsAdjustment;
+        int timeCurrent = this.serviceTime;
+        // Measured as service() decides to call this, so that an epoch left
+        // behind the clock cannot make the throttle return early for good.
+        int elapsedTime = Time.difference(timeCurrent, this.bandwidthThrottleEpoch);
         
         if (elapsedTime < BANDWIDTH_THROTTLE_INTERVAL)
             return;
         
-        for (Peer peer : peers.values())
+        /*
+         * ENet passes over every peer until no more are limited by their own
+         * incoming bandwidth. A peer is limited once the throttle reaches
+         * its threshold, the least throttle at which its share of the
+         * outgoing bandwidth exceeds its incoming bandwidth. Thresholds only
+         * run up to PACKET_THROTTLE_SCALE, so peers are bucketed by them as
+         * they are counted, and the buckets taken in order while the
+         * throttle, recomputed as peers are limited, still reaches them.
+         */
+        Arrays.fill(this.throttleBuckets, -1);
+        int peersTotal = 0;
+        long dataTotal = 0;
+        for (int i = 0; i < this.peers.length; i++)
         {
+            Peer peer = this.peers[i];
+            if (peer == null)
+                continue;
             if (peer.state != Peer.State.CONNECTED && peer.state != Peer.State.DISCONNECT_LATER)
                 continue;
             
-            peersTotal++;
+            this.throttlePeers[peersTotal++] = i;
             dataTotal += peer.outgoingDataTotal;
+            
+            if (peer.incomingBandwidth == 0 || peer.outgoingBandwidthThrottleEpoch == timeCurrent)
+                continue;
+            long peerBandwidth = (int) (((long) peer.incomingBandwidth * elapsedTime) / 1000);
+            if (peer.outgoingDataTotal <= peerBandwidth)
+                continue;
+            long threshold = ((peerBandwidth + 1) * Peer.PACKET_THROTTLE_SCALE + peer.outgoingDataTotal - 1)
+                             / peer.outgoingDataTotal;
+            if (threshold > Peer.PACKET_THROTTLE_SCALE)
+                continue;
+            this.throttleNext[i] = this.throttleBuckets[(int) threshold];
+            this.throttleBuckets[(int) threshold] = i;
         }
         
         if (peersTotal == 0)
             return;
         
-        peersRemaining = peersTotal;
-        needsAdjustment = true;
-        
+        long bandwidth;
         if (this.outgoingBandwidth == 0)
-            bandwidth = ~0;
+            bandwidth = 0xFFFFFFFFL;
         else
-            bandwidth = (this.outgoingBandwidth * elapsedTime) / 1000;
+            bandwidth = ((long) this.outgoingBandwidth * elapsedTime) / 1000;
         
-        while (peersRemaining > 0 && needsAdjustment)
+        int throttle = throttle(bandwidth, dataTotal);
+        int bucket = 0;
+        while (bucket <= throttle)
         {
-            needsAdjustment = false;
-            
-            if (dataTotal < bandwidth)
-                throttle = Peer.PACKET_THROTTLE_SCALE;
-            else
-                throttle = (bandwidth * Peer.PACKET_THROTTLE_SCALE) / dataTotal;
-            
-            for (Peer peer : this.peers.values())
+            for (; bucket <= throttle; bucket++)
             {
-                int peerBandwidth;
-                
-                if ((peer.state != Peer.State.CONNECTED && peer.state != Peer.State.DISCONNECT_LATER)
-                    || peer.incomingBandwidth == 0
-                    || peer.outgoingBandwidthThrottleEpoch == timeCurrent)
-                    continue;
-                peerBandwidth = (peer.incomingBandwidth * elapsedTime) / 1000;
-                if ((throttle * peer.outgoingDataTotal) / Peer.PACKET_THROTTLE_SCALE <= peerBandwidth)
-                    continue;
-                peer.packetThrottleLimit = (peerBandwidth * Peer.PACKET_THROTTLE_SCALE) / peer.outgoingDataTotal;
-                if (peer.packetThrottleLimit == 0)
-                    peer.packetThrottleLimit = 1;
-                if (peer.packetThrottle > peer.packetThrottleLimit)
-                    peer.packetThrottle = peer.packetThrottleLimit;
-                peer.outgoingBandwidthThrottleEpoch = timeCurrent;
-                
-                needsAdjustment = true;
-                peersRemaining--;
-                bandwidth -= peerBandwidth;
-                dataTotal -= peerBandwidth;
+                for (int i = this.throttleBuckets[bucket]; i >= 0; i = this.throttleNext[i])
+                {
+                    Peer peer = this.peers[i];
+                    int peerBandwidth = (int) (((long) peer.incomingBandwidth * elapsedTime) / 1000);
+                    peer.packetThrottleLimit = (int) (((long) peerBandwidth * Peer.PACKET_THROTTLE_SCALE)
+                                                      / peer.outgoingDataTotal);
+                    if (peer.packetThrottleLimit == 0)
+                        peer.packetThrottleLimit = 1;
+                    if (peer.packetThrottle > peer.packetThrottleLimit)
+                        peer.packetThrottle = peer.packetThrottleLimit;
+                    peer.outgoingBandwidthThrottleEpoch = timeCurrent;
+                    
+                    bandwidth -= peerBandwidth;
+                    dataTotal -= peerBandwidth;
+                }
             }
+            throttle = throttle(bandwidth, dataTotal);
+        }
+        
+        if (this.recalculateBandwidthLimits)
+        {
+            this.recalculateBandwidthLimits = false;
+            recalculateBandwidthLimits(peersTotal, timeCurrent);
         }
         
-        if (peersRemaining > 0)
+        this.bandwidthThrottleEpoch = timeCurrent;
+        for (Peer peer : this.peers)
         {
-            for (Peer peer : this.peers.values())
+            if (peer == null)
+                continue;
+            if ((peer.state == Peer.State.CONNECTED || peer.state == Peer.State.DISCONNECT_LATER)
+                && peer.outgoingBandwidthThrottleEpoch != timeCurrent)
             {
-                if ((peer.state != Peer.State.CONNECTED && peer.state != Peer.State.DISCONNECT_LATER)
-                    || peer.outgoingBandwidthThrottleEpoch == timeCurrent)
-                    continue;
                 peer.packetThrottleLimit = throttle;
                 if (peer.packetThrottle > peer.packetThrottleLimit)
                     peer.packetThrottle = peer.packetThrottleLimit;
             }
+            peer.incomingDataTotal = 0;
+            peer.outgoingDataTotal = 0;
         }
+    }
+    
+    private static int throttle(long bandwidth, long dataTotal)
+    {
+        if (dataTotal <= bandwidth || dataTotal <= 0)
+            return Peer.PACKET_THROTTLE_SCALE;
+        return (int) ((bandwidth * Peer.PACKET_THROTTLE_SCALE) / dataTotal);
+    }
+    
+    /**
+     * Shares the incoming bandwidth out between the connected peers listed
+     * in throttlePeers. Peers sending less than an even share keep what they
+     * send and the rest split what is left; with the peers in order of
+     * outgoing bandwidth, each round of ENet's adjustment takes the next
+     * run of them. Peers are only told when their share changes.
+     */
+    private void recalculateBandwidthLimits(int peersTotal, int timeCurrent) throws EnetException
+    {
+        int bandwidthLimit = 0;
+        long bandwidth = this.incomingBandwidth;
         
-        if (this.recalculateBandwidthLimits)
+        if (bandwidth != 0)
         {
-            this.recalculateBandwidthLimits = false;
-            
-            peersRemaining = peersTotal;
-            bandwidth = this.incomingBandwidth;
-            needsAdjustment = true;
+            for (int n = 0; n < peersTotal; n++)
+            {
+                int i = this.throttlePeers[n];
+                this.bandwidthOrder[n] = ((long) this.peers[i].outgoingBandwidth << 32) | i;
+            }
+            Arrays.sort(this.bandwidthOrder, 0, peersTotal);
             
-            if (bandwidth == 0)
-                bandwidthLimit = 0;
-            else
+            int peersRemaining = peersTotal;
+            int next = 0;
+            boolean needsAdjustment = true;
+            while (peersRemaining > 0 && needsAdjustment)
             {
-                while (peersRemaining > 0 && needsAdjustment)
-                {
-                    needsAdjustment = false;
-                    bandwidthLimit = bandwidth / peersRemaining;
-                    
-                    for (Peer peer : this.peers.values())
-                    {
-                        if ((peer.state != Peer.State.CONNECTED && peer.state != Peer.State.DISCONNECT_LATER)
-                            || peer.incomingBandwidthThrottleEpoch == timeCurrent)
-                            continue;
-                        
-                        if (peer.outgoingBandwidth > 0
-                            && peer.outgoingBandwidth >= bandwidthLimit)
-                            continue;
-                        
-                        peer.incomingBandwidthThrottleEpoch = timeCurrent;
-                        needsAdjustment = true;
-                        peersRemaining--;
-                        bandwidth -= peer.outgoingBandwidth;
-                    }
-                }
+                needsAdjustment = false;
+                bandwidthLimit = (int) (bandwidth / peersRemaining);
                 
-                for (Peer peer : this.peers.values())
+                for (; next < peersTotal; next++)
                 {
-                    if (peer.state != Peer.State.CONNECTED && peer.state != Peer.State.DISCONNECT_LATER)
-                        continue;
+                    Peer peer = this.peers[(int) this.bandwidthOrder[next]];
+                    if (peer.outgoingBandwidth > 0 && peer.outgoingBandwidth >= bandwidthLimit)
+                        break;
                     
-                    Protocol.BandwidthLimit command = new Protocol.BandwidthLimit();
-                    command.setCommand(Protocol.Command.BandwidthLimit);
-                    command.setChannelID(0xFF);
-                    command.setOutgoingBandwidth(this.outgoingBandwidth);
-                    if (peer.incomingBandwidthThrottleEpoch == timeCurrent)
-                        command.setIncomingBandwidth(peer.outgoingBandwidth);
-                    else
-                        command.setIncomingBandwidth(bandwidthLimit);
-                    peer.enqueueOutgoingCommand(command, null, 0, (short) 0);
+                    peer.incomingBandwidthThrottleEpoch = timeCurrent;
+                    needsAdjustment = true;
+                    peersRemaining--;
+                    bandwidth -= peer.outgoingBandwidth;
                 }
             }
         }
         
-        this.bandwidthThrottleEpoch = timeCurrent;
-        for (Peer peer : this.peers.values())
+        for (int n = 0; n < peersTotal; n++)
         {
-            peer.incomingDataTotal = 0;
-            peer.outgoingDataTotal = 0;
+            Peer peer = this.peers[this.throttlePeers[n]];
+            peer.incomingBandwidthShare = peer.incomingBandwidthThrottleEpoch == timeCurrent
+                                          ? peer.outgoingBandwidth : bandwidthLimit;
+            advertiseBandwidthLimit(peer);
         }
     }
     
+    /**
+     * Sends a peer its share of the incoming bandwidth, unless that is what
+     * it was last told. A peer sending faster than a channel's subscriber
+     * takes its packets is given the least bandwidth, and so the least
+     * window. Called as soon as a channel is held or resumed, rather than at
+     * the next throttle, so the window follows the subscriber within a
+     * round trip.
+     */
+    void advertiseBandwidthLimit(Peer peer) throws EnetException
+    {
+        int incomingBandwidth = peer.incomingBandwidthShare >= 0 ? peer.incomingBandwidthShare : this.incomingBandwidth;
+        if (peer.heldChannels > 0 && (incomingBandwidth == 0 || incomingBandwidth > Peer.WINDOW_SIZE_SCALE))
+            incomingBandwidth = Peer.WINDOW_SIZE_SCALE;
+        if (incomingBandwidth == peer.advertisedIncomingBandwidth
+            && this.outgoingBandwidth == peer.advertisedOutgoingBandwidth)
+            return;
+        
+        OutgoingCommand outgoingCommand = this.outgoingCommandPool.take();
+        Protocol.BandwidthLimit command = this.outgoingBandwidthLimit;
+        command.wrap(outgoingCommand.commandData, 0);
+        command.setCommand(Protocol.Command.BandwidthLimit);
+        command.setFlag(Protocol.CommandFlag.Acknowledge);
+        command.setChannelID(0xFF);
+        command.setOutgoingBandwidth(this.outgoingBandwidth);
+        command.setIncomingBandwidth(incomingBandwidth);
+        peer.enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
+        peer.advertisedIncomingBandwidth = incomingBandwidth;
+        peer.advertisedOutgoingBandwidth = this.outgoingBandwidth;
+    }
+    
+    /**
+     * Sends a packet to every connected peer. Like ENet, a packet that no
+     * peer took is freed.
+     */
     public void broadcast(int channelID, Packet packet)
         throws IOException
     {
-        for (Peer peer : peers.values())
+        if (enterDirect())
+            broadcastPacket(channelID, packet);
+        else
+            submit(RequestRing.Kind.BROADCAST, null, packet, channelID, 0, 0);
+    }
+    
+    private void broadcastPacket(int channelID, Packet packet)
+        throws IOException
+    {
+        packet.retain();
+        try
         {
-            if (peer.state != Peer.State.CONNECTED)
-                continue;
-            peer.send(channelID, packet);
+            Peer.CommandTemplate template = null;
+            for (Peer peer : this.peers)
+            {
+                if (peer != null)
+                    template = peer.queueBroadcast(template, channelID, packet);
+            }
+        }
+        finally
+        {
+            packet.release();
         }
     }
     
+    /**
+     * Creates a packet whose payload is a pooled direct buffer of the given
+     * length, to be filled in through {@link Packet#buffer()}. The buffer
+     * goes back to the host's arena when the packet is freed.
+     * 
+     * @see Packet#release()
+     */
+    public Packet createPacket(int length, EnumSet<Packet.Flag> flags)
+    {
+        return new Packet(this.packetArena, length, flags);
+    }
+    
     public void channelLimit(int channelLimit)
     {
         this.channelLimit = Math.max(MINIMUM_CHANNEL_COUNT, Math.min(MAXIMUM_CHANNEL_COUNT, channelLimit));
     }
     
+    /**
+     * Sets the checksum stamped on outgoing datagrams and verified on
+     * incoming ones; null turns checksums off. Both ends must agree. Use a
+     * {@link java.util.zip.CRC32} to interoperate with ENet's enet_crc32.
+     */
+    public void checksum(Checksum checksum)
+    {
+        this.checksum = checksum;
+    }
+    
+    /**
+     * Checksums datagrams with CRC32C, which the JIT computes with hardware
+     * instructions directly over the direct packet buffers.
+     */
+    public void checksumWithCrc32c()
+    {
+        checksum(new CRC32C());
+    }
+    
+    /**
+     * Sets the compressor used for outgoing datagrams and expected of
+     * incoming ones; null turns compression off. Datagrams are only sent
+     * compressed when that makes them smaller.
+     */
+    public void compress(Compressor compressor)
+    {
+        this.compressor = compressor;
+    }
+    
+    /**
+     * Compresses datagrams with a {@link RangeCoder}, ported from the coder
+     * that ENet's enet_host_compress_with_range_coder uses. Its output has
+     * not been checked against ENet's, so both ends should be this library.
+     */
+    public void compressWithRangeCoder()
+    {
+        compress(new RangeCoder());
+    }
+    
     public Peer connect(InetSocketAddress address, int channelCount, int data)
         throws IOException
+    {
+        return connect(address, channelCount, data, null);
+    }
+    
+    /**
+     * Starts connecting to a remote host, as {@link #connect} does, and
+     * returns a future completed with the peer once the remote host has
+     * verified the connection. It completes exceptionally if the attempt
+     * fails or times out, or at once if it cannot be started.
+     * 
+     * The future is completed by the thread servicing the host, so the
+     * host must be serviced for it to complete. Dependent actions that are
+     * not run asynchronously run on that thread too, and must not block.
+     * Waiting on the future parks the waiting thread, so it suits virtual
+     * threads.
+     */
+    public CompletableFuture<Peer> connectAsync(InetSocketAddress address, int channelCount, int data)
+    {
+        CompletableFuture<Peer> future = new CompletableFuture<Peer>();
+        try
+        {
+            connect(address, channelCount, data, future);
+        }
+        catch (IOException e)
+        {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    Peer connect(InetSocketAddress address, int channelCount, int data, CompletableFuture<Peer> connected)
+        throws IOException
     {
         channelCount = Math.max(MINIMUM_CHANNEL_COUNT, Math.min(MAXIMUM_CHANNEL_COUNT, channelCount));
         Peer peer = new Peer(this);
-        peer.channelCount = channelCount;
-        peer.state = State.CONNECTING;
+        peer.setupChannels(channelCount);
         peer.address = address;
-        peer.connectID = ++randomSeed;
-        short i;
-        do
-        {
-            if (peers.size() == peerCount)
-                throw new EnetException("maximum number of peers connected");
-            for (i = 0; peers.containsKey(Short.valueOf(i)); i++);
-            peer.incomingPeerID = i;
-        } while (peers.putIfAbsent(i, peer) != peer);
+        if (!claimPeer())
+            throw new EnetException("maximum number of peers connected");
         if (this.outgoingBandwidth == 0)
             peer.windowSize = Protocol.MAXIMUM_WINDOW_SIZE;
         else
-            peer.windowSize = (this.outgoingBandwidth / Peer.WINDOW_SIZE_SCALE) * Protocol.MAXIMUM_WINDOW_SIZE;
-        peer.windowSize = Math.max(Protocol.MINIMUM_WINDOW_SIZE, Math.max(Protocol.MAXIMUM_WINDOW_SIZE, peer.windowSize));
-        peer.channels = new ArrayList<Peer.Channel>(peer.channelCount);
-        Protocol.Connect connect = new Protocol.Connect();
+            peer.windowSize = (this.outgoingBandwidth / Peer.WINDOW_SIZE_SCALE) * Protocol.MINIMUM_WINDOW_SIZE;
+        peer.windowSize = Math.max(Protocol.MINIMUM_WINDOW_SIZE, Math.min(Protocol.MAXIMUM_WINDOW_SIZE, peer.windowSize));
+        // Set before the request is handed over, which publishes it.
+        peer.connected = connected;
+        // The service thread adds the peer to the host as it sends the
+        // connect.
+        if (enterDirect())
+            startConnect(peer, data);
+        else
+        {
+            try
+            {
+                submit(RequestRing.Kind.CONNECT, peer, null, data, 0, 0);
+            }
+            catch (EnetException e)
+            {
+                this.unclaimedPeerCount.incrementAndGet();
+                throw e;
+            }
+        }
+        return peer;
+    }
+    
+    private void startConnect(Peer peer, int data)
+        throws EnetException
+    {
+        addPeer(peer);
+        peer.connectID = ++randomSeed;
+        peer.state = State.CONNECTING;
+        if (this.shards != null)
+            openPeerChannel(peer);
+        OutgoingCommand outgoingCommand = this.outgoingCommandPool.take();
+        Protocol.Connect connect = new Protocol.Connect(outgoingCommand.commandData, 0);
         connect.setCommand(Protocol.Command.Connect);
+        connect.setFlag(Protocol.CommandFlag.Acknowledge);
         connect.setChannelID(0xFF);
         connect.setOutgoingPeerID(peer.incomingPeerID);
-        connect.setOutgoingSessionID(0xFF);
-        connect.setIncomingSessionID(0xFF);
-        connect.setMtu(this.mtu);
+        connect.setOutgoingSessionID(peer.outgoingSessionID);
+        connect.setIncomingSessionID(peer.incomingSessionID);
+        connect.setMtu(peer.mtu);
         connect.setWindowSize(peer.windowSize);
-        connect.setChannelCount(channelCount);
+        connect.setChannelCount(peer.channelCount);
         connect.setIncomingBandwidth(this.incomingBandwidth);
         connect.setOutgoingBandwidth(this.outgoingBandwidth);
         connect.setPacketThrottleInterval(peer.packetThrottleInterval);
         connect.setPacketThrottleAcceleration(peer.packetThrottleAcceleration);
         connect.setPacketThrottleDeceleration(peer.packetThrottleDeceleration);
-        peer.enqueueOutgoingCommand(connect, null, 0, (short) 0);
-        return peer;
+        connect.setConnectID(peer.connectID);
+        connect.setData(data);
+        peer.enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
+    }
+    
+    /**
+     * Gives a peer this shard connects out to a socket of its own, bound to
+     * the shared port and connected to the remote host. The kernel hands a
+     * datagram to a connected socket in the port's group before choosing
+     * one of the shards by hash, so the remote's replies reach this shard
+     * instead of being forwarded for as long as the peer lives. Peers
+     * connected to the same address share one socket's traffic, so
+     * ShardedHost keeps them on one shard. Where the kernel does not do
+     * this, or the socket cannot be opened, the peer uses the shard's
+     * socket and its datagrams are forwarded as before.
+     */
+    private void openPeerChannel(Peer peer)
+    {
+        DatagramChannel channel = null;
+        try
+        {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(this.address);
+            channel.connect(peer.address);
+            channel.register(this.selector, SelectionKey.OP_READ);
+        }
+        catch (IOException e)
+        {
+            closePeerChannel(channel);
+            return;
+        }
+        peer.channel = channel;
+        this.channelPeers.add(peer);
+    }
+    
+    private static void closePeerChannel(DatagramChannel channel)
+    {
+        if (channel == null)
+            return;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing more to release.
+        }
     }
     
+    /**
+     * Sends queued commands without waiting for or receiving datagrams.
+     * The calling thread becomes the service thread.
+     */
     public void flush() throws IOException
     {
-        this.serviceTime = Time.get();
+        this.serviceThread = Thread.currentThread();
+        this.servicing = true;
+        try
+        {
+            runRequests();
+            flushCommands();
+        }
+        finally
+        {
+            this.servicing = false;
+        }
+    }
+    
+    void flushCommands() throws IOException
+    {
+        this.serviceTime = this.clock.time();
         this.sendOutgoingCommands(null, false);
     }
     
-    void sendOutgoingCommands(Event event, boolean checkForTimeouts) throws IOException
+    boolean isServiceThread()
+    {
+        return Thread.currentThread() == this.serviceThread;
+    }
+    
+    /**
+     * Whether the calling thread may carry out a request itself: it is the
+     * service thread and not already inside service or flush, as it is when
+     * a free callback sends. Requests queued by other threads are run
+     * first, so that requests keep their order.
+     */
+    boolean enterDirect()
+    {
+        if (Thread.currentThread() != this.serviceThread || this.servicing)
+            return false;
+        runRequests();
+        return true;
+    }
+    
+    /**
+     * Hands a request to the service thread, holding a reference to its
+     * packet until it has been carried out. Waits while the ring is full,
+     * unless called on the service thread, which is what empties it.
+     */
+    void submit(RequestRing.Kind kind, Peer peer, Packet packet, int a, int b, int c)
+        throws EnetException
+    {
+        submit(kind, peer, packet, a, b, c, null);
+    }
+    
+    /**
+     * Hands a request to the service thread, which completes the future
+     * once it has carried the request out, or completes it exceptionally
+     * if it could not.
+     */
+    void submit(RequestRing.Kind kind, Peer peer, Packet packet, int a, int b, int c, CompletableFuture<Void> future)
+        throws EnetException
+    {
+        if (packet != null)
+            packet.retain();
+        while (!this.requests.offer(kind, peer, packet, a, b, c, future))
+        {
+            if (isServiceThread())
+            {
+                if (packet != null)
+                    packet.unretain();
+                throw new EnetException("request queue full");
+            }
+            Thread.yield();
+        }
+        if (this.selecting)
+            this.selector.wakeup();
+    }
+    
+    /**
+     * Carries out queued requests on the service thread, up to one ring's
+     * worth so that busy producers cannot hold it up indefinitely. A request
+     * that can no longer be carried out, such as a send to a peer that has
+     * since disconnected, is dropped; the thread that made it has moved on,
+     * unless it left a future to be told.
+     */
+    private void runRequests()
+    {
+        RequestRing.Request request = this.request;
+        for (int i = this.requests.capacity(); i > 0 && this.requests.poll(request); i--)
+        {
+            try
+            {
+                runRequest(request);
+                if (request.future != null)
+                    request.future.complete(null);
+            }
+            catch (IOException e)
+            {
+                // Dropped, as above, unless someone is waiting to hear.
+                if (request.future != null)
+                    request.future.completeExceptionally(e);
+            }
+            catch (Throwable t)
+            {
+                // A bug rather than a request gone stale: the waiting thread
+                // hears of it, or else service throws it.
+                if (request.future == null)
+                    throw t;
+                request.future.completeExceptionally(t);
+            }
+            finally
+            {
+                if (request.packet != null)
+                    request.packet.release();
+                request.clear();
+            }
+        }
+    }
+    
+    private void runRequest(RequestRing.Request request) throws IOException
+    {
+        Peer peer = request.peer;
+        switch (request.kind)
+        {
+        case CONNECT:
+            if (peer.state == State.DISCONNECTED)
+                startConnect(peer, request.a);
+            break;
+        
+        case SEND:
+            if (peer.state == State.CONNECTED || request.future != null)
+                peer.queuePacket(request.a, request.packet);
+            break;
+        
+        case BROADCAST:
+            broadcastPacket(request.a, request.packet);
+            break;
+        
+        case PING:
+            if (peer.state == State.CONNECTED)
+                peer.queuePing();
+            break;
+        
+        case DISCONNECT:
+            peer.queueDisconnect(request.a);
+            break;
+        
+        case DISCONNECT_LATER:
+            peer.queueDisconnectLater(request.a);
+            break;
+        
+        case DISCONNECT_NOW:
+            peer.queueDisconnectNow(request.a);
+            break;
+        
+        case THROTTLE_CONFIGURE:
+            peer.queueThrottleConfigure(request.a, request.b, request.c);
+            break;
+        
+        case RESUME:
+            if (peer.state == State.CONNECTED || peer.state == State.DISCONNECT_LATER)
+                peer.resumeChannel(request.a);
+            break;
+        
+        case METRICS:
+            updateMetrics();
+            break;
+        }
+    }
+    
+    /**
+     * Claims a peer ID for a peer about to be added, on any thread.
+     * 
+     * @return false if every peer ID is in use or claimed.
+     */
+    private boolean claimPeer()
+    {
+        for (;;)
+        {
+            int count = this.unclaimedPeerCount.get();
+            if (count == 0)
+                return false;
+            if (this.unclaimedPeerCount.compareAndSet(count, count - 1))
+                return true;
+        }
+    }
+    
+    /**
+     * Assigns the peer a free incoming peer ID, claimed beforehand, and
+     * adds it to the host.
+     */
+    private void addPeer(Peer peer)
+    {
+        short index = this.freePeerIDs[--this.freePeerCount];
+        peer.incomingPeerID = (short) (this.peerIDBase + index);
+        this.peers[index] = peer;
+    }
+    
+    void removePeer(Peer peer)
+    {
+        if (peer.channel != null)
+        {
+            closePeerChannel(peer.channel);
+            peer.channel = null;
+            this.channelPeers.remove(peer);
+        }
+        int index = peer.incomingPeerID - this.peerIDBase;
+        if (index < 0 || index >= this.peers.length || this.peers[index] != peer)
+            return;
+        this.peers[index] = null;
+        this.freePeerIDs[this.freePeerCount++] = (short) index;
+        this.unclaimedPeerCount.incrementAndGet();
+    }
+    
+    void changeState(Peer peer, Peer.State state)
+    {
+        peer.state = state;
+        if (state == State.CONNECTED && peer.connected != null)
+        {
+            CompletableFuture<Peer> connected = peer.connected;
+            peer.connected = null;
+            connected.complete(peer);
+        }
+    }
+    
+    void notifyConnect(Peer peer, Event event)
     {
-        Protocol.Header header = new Protocol.Header();
+        this.recalculateBandwidthLimits = true;
+        
+        if (event != null)
+        {
+            changeState(peer, State.CONNECTED);
+            event.type = Event.Type.CONNECT;
+            event.peer = peer;
+            event.data = peer.eventData;
+        }
+        else
+            dispatchState(peer, peer.state == State.CONNECTING ? State.CONNECTION_SUCCEEDED : State.CONNECTION_PENDING);
+    }
+    
+    void dispatchState(Peer peer, Peer.State state)
+    {
+        changeState(peer, state);
+        if (!peer.needsDispatch)
+        {
+            dispatchQueue.add(peer);
+            peer.needsDispatch = true;
+        }
+    }
+    
+    void notifyDisconnect(Peer peer, Event event)
+    {
+        if (peer.state.compareTo(State.CONNECTION_PENDING) >= 0)
+            this.recalculateBandwidthLimits = true;
+        
+        if (peer.state != State.CONNECTING && peer.state.compareTo(State.CONNECTION_SUCCEEDED) < 0)
+            peer.reset();
+        else if (event != null)
+        {
+            event.type = Event.Type.DISCONNECT;
+            event.peer = peer;
+            event.data = 0;
+            peer.reset();
+        }
+        else
+        {
+            peer.eventData = 0;
+            dispatchState(peer, State.ZOMBIE);
+        }
+    }
+    
+    /**
+     * Appends the data of an outgoing command to the datagram being built,
+     * copying it straight out of its packet. Packets without a backing array
+     * are read through one view per packet rather than one per fragment.
+     */
+    private void putPayload(OutgoingCommand outgoingCommand)
+    {
+        ByteBuffer data = outgoingCommand.packet.buffer;
+        int offset = data.position() + outgoingCommand.fragmentOffset;
+        int length = outgoingCommand.fragmentLength & 0xFFFF;
+        if (data.hasArray())
+        {
+            this.packetData.put(data.array(), data.arrayOffset() + offset, length);
+            return;
+        }
+        
+        if (this.payloadPacket != outgoingCommand.packet)
+        {
+            this.payloadPacket = outgoingCommand.packet;
+            this.payloadView = data.duplicate();
+        }
+        this.payloadView.limit(offset + length);
+        this.payloadView.position(offset);
+        this.packetData.put(this.payloadView);
+    }
+    
+    private void sendAcknowledgements(Peer peer)
+    {
+        Acknowledgement acknowledgement;
+        while ((acknowledgement = peer.acknowledgements.peek()) != null)
+        {
+            if (this.commandCount >= Protocol.MAXIMUM_PACKET_COMMANDS
+                || peer.mtu - this.packetSize < Protocol.Acknowledge.length())
+            {
+                this.continueSending = true;
+                break;
+            }
+            
+            peer.acknowledgements.poll();
+            peer.acknowledgementCount--;
+            
+            Protocol.Acknowledge command = this.outgoingAcknowledge;
+            command.wrap(this.packetData, this.packetData.position());
+            command.setCommand(Protocol.Command.Acknowledge);
+            command.setChannelID(acknowledgement.channelID);
+            command.setReliableSequenceNumber(acknowledgement.reliableSequenceNumber);
+            command.setReceivedReliableSequenceNumber(acknowledgement.reliableSequenceNumber);
+            command.setReceivedSentTime(acknowledgement.sentTime);
+            this.packetData.position(this.packetData.position() + Protocol.Acknowledge.length());
+            this.packetSize += Protocol.Acknowledge.length();
+            this.commandCount++;
+            
+            if ((acknowledgement.command & Protocol.COMMAND_MASK) == Protocol.Command.Disconnect.value)
+                dispatchState(peer, State.ZOMBIE);
+            this.acknowledgementPool.recycle(acknowledgement);
+        }
+    }
+    
+    /**
+     * Acknowledgements go out with any outgoing commands, once there are
+     * enough of them to fill a datagram, or once the oldest has waited for
+     * the acknowledgement delay. A flush sends them regardless.
+     */
+    private boolean shouldSendAcknowledgements(Peer peer, boolean flush)
+    {
+        return flush
+            || !peer.outgoingReliableCommands.isEmpty()
+            || !peer.outgoingUnreliableCommands.isEmpty()
+            || peer.acknowledgementCount >= Protocol.MAXIMUM_PACKET_COMMANDS
+            || Time.difference(this.serviceTime, peer.acknowledgementTime) >= this.acknowledgementDelay;
+    }
+    
+    /**
+     * Handles the reliable commands whose retransmission timeout has passed,
+     * either queueing them to be resent or timing out their peer. Only due
+     * commands are visited; they come off the host's timing wheel.
+     * 
+     * @return true if a peer timed out and produced an event.
+     */
+    private boolean checkTimeouts(Event event)
+    {
+        this.timeouts.advance(this.serviceTime);
+        
+        OutgoingCommand outgoingCommand;
+        while ((outgoingCommand = this.timeouts.poll()) != null)
+        {
+            Peer peer = outgoingCommand.peer;
+            
+            if (peer.state == State.DISCONNECTED || peer.state == State.ZOMBIE)
+                continue;
+            
+            if (peer.earliestTimeout == 0 || Time.less(outgoingCommand.sentTime, peer.earliestTimeout))
+                peer.earliestTimeout = outgoingCommand.sentTime;
+            
+            if (peer.earliestTimeout != 0
+                && (Time.difference(this.serviceTime, peer.earliestTimeout) >= Peer.TIMEOUT_MAXIMUM
+                    || (outgoingCommand.roundTripTimeout >= outgoingCommand.roundTripTimeoutLimit
+                        && Time.difference(this.serviceTime, peer.earliestTimeout) >= Peer.TIMEOUT_MINIMUM)))
+            {
+                notifyDisconnect(peer, event);
+                if (event != null && event.type != Event.Type.NONE)
+                    return true;
+                continue;
+            }
+            
+            if (outgoingCommand.packet != null)
+                peer.reliableDataInTransit -= outgoingCommand.fragmentLength & 0xFFFF;
+            peer.packetsLost++;
+            int channelID = outgoingCommand.command.channelID();
+            if (channelID < peer.channelCount)
+                peer.channels.get(channelID).retransmissions++;
+            outgoingCommand.roundTripTimeout *= 2;
+            
+            peer.sentReliableCommands.remove(outgoingCommand);
+            queueResend(peer, outgoingCommand);
+            
+            OutgoingCommand front = peer.sentReliableCommands.peek();
+            if (front != null)
+                peer.nextTimeout = front.sentTime + front.roundTripTimeout;
+        }
+        return false;
+    }
+    
+    /**
+     * Puts a timed-out command back ahead of the commands that have never
+     * been sent, as ENet does, so that the window it holds up is filled
+     * before new data takes the window's free room. Commands waiting to be
+     * resent are always at the front of the queue, in the order they timed
+     * out.
+     */
+    private void queueResend(Peer peer, OutgoingCommand outgoingCommand)
+    {
+        peer.countQueued(outgoingCommand, 1);
+        peer.outgoingReliableCommands.insertAfter(peer.lastResend, outgoingCommand);
+        peer.lastResend = outgoingCommand;
+    }
+    
+    /**
+     * Sends as many of a peer's queued reliable commands as fit, as
+     * enet_protocol_send_reliable_outgoing_commands does. A channel's
+     * commands are held back when sending them would start a window of
+     * sequence numbers the receiver may still be using, and commands that
+     * carry data are held back once the peer's reliable data in transit
+     * would exceed its window size scaled by the packet throttle. Held
+     * commands stay queued, in order, until acknowledgements free the
+     * window.
+     */
+    private boolean sendReliableOutgoingCommands(Peer peer)
+    {
+        boolean canPing = true;
+        boolean windowWrap = false;
+        boolean windowExceeded = false;
+        OutgoingCommand next;
+        for (OutgoingCommand outgoingCommand = peer.outgoingReliableCommands.peek(); outgoingCommand != null;
+             outgoingCommand = next)
+        {
+            next = outgoingCommand.queueNext;
+            int commandSize = outgoingCommand.command.size();
+            int fragmentLength = outgoingCommand.fragmentLength & 0xFFFF;
+            int channelID = outgoingCommand.command.channelID();
+            Peer.Channel channel = channelID < peer.channelCount ? peer.channels.get(channelID) : null;
+            int reliableSequenceNumber = outgoingCommand.reliableSequenceNumber & 0xFFFF;
+            int reliableWindow = reliableSequenceNumber / Peer.RELIABLE_WINDOW_SIZE;
+            
+            if (channel != null)
+            {
+                if (!windowWrap
+                    && outgoingCommand.sendAttempts < 1
+                    && reliableSequenceNumber % Peer.RELIABLE_WINDOW_SIZE == 0
+                    && (channel.reliableWindows[(reliableWindow + Peer.RELIABLE_WINDOWS - 1) % Peer.RELIABLE_WINDOWS]
+                        >= Peer.RELIABLE_WINDOW_SIZE
+                        || ((channel.usedReliableWindows & 0xFFFF) & freeReliableWindows(reliableWindow)) != 0))
+                    windowWrap = true;
+                if (windowWrap)
+                    continue;
+            }
+            
+            if (outgoingCommand.packet != null)
+            {
+                if (!windowExceeded)
+                {
+                    int windowSize = peer.packetThrottle * peer.windowSize / Peer.PACKET_THROTTLE_SCALE;
+                    if (peer.reliableDataInTransit + fragmentLength > Math.max(windowSize, peer.mtu))
+                        windowExceeded = true;
+                }
+                if (windowExceeded)
+                    continue;
+            }
+            
+            canPing = false;
+            
+            if (this.commandCount >= Protocol.MAXIMUM_PACKET_COMMANDS
+                || peer.mtu - this.packetSize < commandSize
+                || (outgoingCommand.packet != null
+                    && peer.mtu - this.packetSize < commandSize + fragmentLength))
+            {
+                this.continueSending = true;
+                break;
+            }
+            
+            peer.removeOutgoingReliableCommand(outgoingCommand);
+            
+            if (outgoingCommand.sendAttempts < 1)
+            {
+                if (channel != null)
+                {
+                    channel.usedReliableWindows |= 1 << reliableWindow;
+                    channel.reliableWindows[reliableWindow]++;
+                }
+                peer.sentCommands(channelID).put(outgoingCommand);
+            }
+            
+            outgoingCommand.sendAttempts++;
+            if (outgoingCommand.roundTripTimeout == 0)
+            {
+                outgoingCommand.roundTripTimeout = peer.roundTripTime + 4 * peer.roundTripTimeVariance;
+                outgoingCommand.roundTripTimeoutLimit = Peer.TIMEOUT_LIMIT * outgoingCommand.roundTripTimeout;
+            }
+            
+            if (peer.sentReliableCommands.isEmpty())
+                peer.nextTimeout = this.serviceTime + outgoingCommand.roundTripTimeout;
+            peer.sentReliableCommands.add(outgoingCommand);
+            outgoingCommand.sentTime = this.serviceTime;
+            this.timeouts.schedule(outgoingCommand, this.serviceTime + outgoingCommand.roundTripTimeout);
+            
+            this.headerFlags |= Protocol.HeaderFlag.SentTime.value;
+            outgoingCommand.command.copyTo(this.packetData);
+            this.packetSize += commandSize;
+            if (outgoingCommand.packet != null)
+            {
+                putPayload(outgoingCommand);
+                this.packetSize += fragmentLength;
+                peer.reliableDataInTransit += fragmentLength;
+            }
+            
+            peer.packetsSent++;
+            this.commandCount++;
+        }
+        return canPing;
+    }
+    
+    /**
+     * The windows that must be free before a channel starts sending in the
+     * given one: it and the ones after it, wrapping around.
+     */
+    private static int freeReliableWindows(int reliableWindow)
+    {
+        int windows = (1 << Peer.FREE_RELIABLE_WINDOWS) - 1;
+        return ((windows << reliableWindow) | (windows >> (Peer.RELIABLE_WINDOWS - reliableWindow))) & 0xFFFF;
+    }
+    
+    private void sendUnreliableOutgoingCommands(Peer peer) throws IOException
+    {
+        OutgoingCommand outgoingCommand;
+        while ((outgoingCommand = peer.outgoingUnreliableCommands.peek()) != null)
+        {
+            int commandSize = outgoingCommand.command.size();
+            int fragmentLength = outgoingCommand.fragmentLength & 0xFFFF;
+            
+            if (this.commandCount >= Protocol.MAXIMUM_PACKET_COMMANDS
+                || peer.mtu - this.packetSize < commandSize
+                || (outgoingCommand.packet != null
+                    && peer.mtu - this.packetSize < commandSize + fragmentLength))
+            {
+                this.continueSending = true;
+                break;
+            }
+            
+            peer.outgoingUnreliableCommands.poll();
+            peer.countQueued(outgoingCommand, -1);
+            
+            if (outgoingCommand.packet != null && outgoingCommand.fragmentOffset == 0)
+            {
+                peer.packetThrottleCounter += Peer.PACKET_THROTTLE_COUNTER;
+                peer.packetThrottleCounter %= Peer.PACKET_THROTTLE_SCALE;
+                
+                if (peer.packetThrottleCounter > peer.packetThrottle)
+                {
+                    // Throttled: drop the packet, including any remaining fragments.
+                    Packet packet = outgoingCommand.packet;
+                    this.outgoingCommandPool.recycle(outgoingCommand);
+                    while ((outgoingCommand = peer.outgoingUnreliableCommands.peek()) != null
+                           && outgoingCommand.packet == packet
+                           && outgoingCommand.fragmentOffset != 0)
+                    {
+                        peer.outgoingUnreliableCommands.poll();
+                        peer.countQueued(outgoingCommand, -1);
+                        this.outgoingCommandPool.recycle(outgoingCommand);
+                    }
+                    continue;
+                }
+            }
+            
+            outgoingCommand.command.copyTo(this.packetData);
+            this.packetSize += commandSize;
+            if (outgoingCommand.packet != null)
+            {
+                putPayload(outgoingCommand);
+                this.packetSize += fragmentLength;
+                peer.sentUnreliableCommands.add(outgoingCommand);
+            }
+            else
+                this.outgoingCommandPool.recycle(outgoingCommand);
+            
+            this.commandCount++;
+        }
+        
+        if (peer.state == State.DISCONNECT_LATER
+            && peer.outgoingReliableCommands.isEmpty()
+            && peer.outgoingUnreliableCommands.isEmpty()
+            && peer.sentReliableCommands.isEmpty())
+            peer.queueDisconnect(peer.eventData);
+    }
+    
+    /**
+     * Sends queued commands to every peer, packing acknowledgements,
+     * reliable and unreliable commands into as few datagrams as the peer's
+     * MTU and {@link Protocol#MAXIMUM_PACKET_COMMANDS} allow.
+     * 
+     * @return true if a timeout produced an event.
+     */
+    boolean sendOutgoingCommands(Event event, boolean checkForTimeouts) throws IOException
+    {
+        if (checkForTimeouts && checkTimeouts(event))
+            return true;
+        
+        this.acknowledgementsDelayed = false;
+        this.continueSending = true;
+        while (this.continueSending)
+        {
+            this.continueSending = false;
+            for (Peer peer : this.peers)
+            {
+                if (peer == null)
+                    continue;
+                if (peer.state == State.DISCONNECTED || peer.state == State.ZOMBIE)
+                    continue;
+                
+                this.headerFlags = 0;
+                this.commandCount = 0;
+                this.packetSize = Protocol.Header.length();
+                if (this.checksum != null)
+                    this.packetSize += Protocol.CHECKSUM_SIZE;
+                this.packetData.clear();
+                this.packetData.position(PACKET_DATA_OFFSET);
+                
+                if (!peer.acknowledgements.isEmpty())
+                {
+                    // Only service passes check for timeouts; flush() does not.
+                    if (shouldSendAcknowledgements(peer, !checkForTimeouts))
+                        sendAcknowledgements(peer);
+                    else
+                        this.acknowledgementsDelayed = true;
+                }
+                
+                if ((peer.outgoingReliableCommands.isEmpty() || sendReliableOutgoingCommands(peer))
+                    && peer.sentReliableCommands.isEmpty()
+                    && peer.state == State.CONNECTED
+                    && Time.difference(this.serviceTime, peer.lastReceiveTime) >= Peer.PING_INTERVAL
+                    && peer.mtu - this.packetSize >= Protocol.Ping.length())
+                {
+                    peer.queuePing();
+                    sendReliableOutgoingCommands(peer);
+                }
+                
+                if (!peer.outgoingUnreliableCommands.isEmpty())
+                    sendUnreliableOutgoingCommands(peer);
+                
+                if (this.commandCount == 0)
+                    continue;
+                
+                if (peer.packetLossEpoch == 0)
+                    peer.packetLossEpoch = this.serviceTime;
+                else if (Time.difference(this.serviceTime, peer.packetLossEpoch) >= Peer.PACKET_LOSS_INTERVAL
+                         && peer.packetsSent > 0)
+                {
+                    int packetLoss = (int) ((long) peer.packetsLost * Peer.PACKET_LOSS_SCALE / peer.packetsSent);
+                    peer.packetLossVariance = (peer.packetLossVariance * 3 + Math.abs(packetLoss - peer.packetLoss)) / 4;
+                    peer.packetLoss = (peer.packetLoss * 7 + packetLoss) / 8;
+                    peer.packetLossEpoch = this.serviceTime;
+                    peer.packetsSent = 0;
+                    peer.packetsLost = 0;
+                }
+                
+                if (peer.outgoingPeerID < Protocol.MAXIMUM_PEER_ID)
+                    this.headerFlags |= peer.outgoingSessionID << Protocol.HEADER_SESSION_SHIFT;
+                
+                ByteBuffer datagram = this.packetData;
+                int end = this.packetData.position();
+                if (this.compressor != null)
+                {
+                    int originalSize = end - PACKET_DATA_OFFSET;
+                    this.compressedData.clear();
+                    int compressedSize = this.compressor.compress(this.packetData, PACKET_DATA_OFFSET, originalSize,
+                                                                  this.compressedData, PACKET_DATA_OFFSET, originalSize);
+                    if (compressedSize > 0 && compressedSize < originalSize)
+                    {
+                        this.headerFlags |= Protocol.HeaderFlag.Compressed.value;
+                        datagram = this.compressedData;
+                        end = PACKET_DATA_OFFSET + compressedSize;
+                    }
+                }
+                
+                int headerLength = Protocol.Header.length(this.headerFlags);
+                if (this.checksum != null)
+                    headerLength += Protocol.CHECKSUM_SIZE;
+                int start = PACKET_DATA_OFFSET - headerLength;
+                this.outgoingHeader.wrap(this.packetData, start);
+                this.outgoingHeader.setPeerID(peer.outgoingPeerID | this.headerFlags);
+                if ((this.headerFlags & Protocol.HeaderFlag.SentTime.value) != 0)
+                    this.outgoingHeader.setSentTime(this.serviceTime);
+                if (this.checksum != null)
+                {
+                    // Like ENet, the checksum covers the uncompressed commands.
+                    int checksumOffset = PACKET_DATA_OFFSET - Protocol.CHECKSUM_SIZE;
+                    this.packetData.putInt(checksumOffset,
+                                           peer.outgoingPeerID < Protocol.MAXIMUM_PEER_ID ? peer.connectID : 0);
+                    this.packetData.limit(this.packetData.position());
+                    this.packetData.position(start);
+                    this.checksum.reset();
+                    this.checksum.update(this.packetData);
+                    this.packetData.putInt(checksumOffset, (int) this.checksum.getValue());
+                }
+                if (datagram != this.packetData)
+                {
+                    for (int i = start; i < PACKET_DATA_OFFSET; i++)
+                        datagram.put(i, this.packetData.get(i));
+                }
+                datagram.limit(end);
+                datagram.position(start);
+                
+                peer.lastSendTime = this.serviceTime;
+                
+                int sentLength = (peer.channel != null ? peer.channel : this.channel).send(datagram, peer.address);
+                
+                peer.removeSentUnreliableCommands();
+                
+                this.totalSentData += sentLength;
+                this.totalSentPackets++;
+            }
+        }
+        this.payloadPacket = null;
+        this.payloadView = null;
+        return false;
+    }
+    
+    /**
+     * Waits up to timeout milliseconds for an event, sending and receiving
+     * datagrams as needed.
+     * 
+     * @return The next event, or null if the timeout expired first. Pass
+     *  it to {@link #recycle(Event)} once it has been handled.
+     */
+    public Event service(int timeout) throws IOException
+    {
+        this.serviceThread = Thread.currentThread();
+        this.servicing = true;
+        try
+        {
+            return serviceEvents(timeout);
+        }
+        finally
+        {
+            this.servicing = false;
+        }
+    }
+    
+    private Event serviceEvents(int timeout) throws IOException
+    {
+        if (this.event == null)
+            this.event = this.eventPool.take();
+        Event event = this.event;
+        event.reset();
+        
+        if (dispatchIncomingCommands(event))
+            return takeEvent();
+        
+        this.serviceTime = this.clock.time();
+        int deadline = this.serviceTime + timeout;
+        int ready;
+        int wait;
+        int selectTime;
+        boolean timerFirst;
+        
+        do
+        {
+            runRequests();
+            
+            if (Time.difference(this.serviceTime, this.bandwidthThrottleEpoch) >= BANDWIDTH_THROTTLE_INTERVAL)
+                bandwidthThrottle();
+            
+            if (this.metricsInterval > 0
+                && Time.difference(this.serviceTime, this.metricsEpoch) >= this.metricsInterval)
+                updateMetrics();
+            
+            if (sendOutgoingCommands(event, true))
+                return takeEvent();
+            
+            if (receiveIncomingCommands(event))
+                return takeEvent();
+            
+            if (sendOutgoingCommands(event, true))
+                return takeEvent();
+            
+            if (dispatchIncomingCommands(event))
+                return takeEvent();
+            
+            if (Time.greaterEqual(this.serviceTime, deadline))
+                return null;
+            
+            this.serviceTime = this.clock.time();
+            if (Time.greaterEqual(this.serviceTime, deadline))
+                return null;
+            
+            wait = Time.difference(deadline, this.serviceTime);
+            if (this.acknowledgementsDelayed && wait > this.acknowledgementDelay)
+                wait = this.acknowledgementDelay;
+            // Woken for a timer, the loop goes round again rather than
+            // returning before the timeout.
+            int timerWait = timerWait();
+            timerFirst = timerWait < wait;
+            if (timerFirst)
+                wait = timerWait;
+            selectTime = this.serviceTime;
+            // A request submitted after the check below sees selecting set
+            // and wakes the selector.
+            this.selecting = true;
+            if (this.requests.isEmpty() && wait > 0)
+                ready = this.selector.select(wait);
+            else
+                ready = this.selector.selectNow();
+            this.selecting = false;
+            this.selector.selectedKeys().clear();
+            
+            this.serviceTime = this.clock.time();
+        } while (ready > 0 || this.acknowledgementsDelayed || this.forwarded
+                 || !this.requests.isEmpty()
+                 || (timerFirst && Time.difference(this.serviceTime, selectTime) >= wait));
+        
+        return null;
+    }
+    
+    /**
+     * How long the service thread may wait on the selector before one of
+     * its own timers is due: the next retransmission and, while any peer is
+     * in use, the next bandwidth throttle and a ping interval, since idle
+     * peers are pinged on that schedule.
+     */
+    private int timerWait()
+    {
+        int wait = Time.difference(this.timeouts.nextTime(), this.serviceTime);
+        if (this.metricsInterval > 0)
+            wait = Math.min(wait, Time.difference(this.metricsEpoch + this.metricsInterval, this.serviceTime));
+        if (this.freePeerCount < this.peerCount)
+        {
+            wait = Math.min(wait, Time.difference(this.bandwidthThrottleEpoch + BANDWIDTH_THROTTLE_INTERVAL,
+                                                  this.serviceTime));
+            wait = Math.min(wait, Peer.PING_INTERVAL);
+        }
+        return Math.max(0, wait);
+    }
+    
+    /**
+     * Returns a metrics snapshot. With enet.metricsinterval set, it is the
+     * latest one the service thread took on that schedule. Otherwise the
+     * service thread takes one now, and the caller waits up to
+     * {@link #METRICS_WAIT} milliseconds for it before settling for the
+     * last one taken, as it must if the host is not being serviced.
+     */
+    public HostMetrics metrics()
+    {
+        if (this.metricsInterval > 0)
+            return this.metrics;
+        if (isServiceThread())
+        {
+            updateMetrics();
+            return this.metrics;
+        }
+        
+        CompletableFuture<Void> taken = new CompletableFuture<Void>();
+        try
+        {
+            submit(RequestRing.Kind.METRICS, null, null, 0, 0, 0, taken);
+            taken.get(METRICS_WAIT, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            // Not taken in time, or not at all; settle for the last one.
+        }
+        return this.metrics;
+    }
+    
+    private void updateMetrics()
+    {
+        this.metricsEpoch = this.serviceTime;
+        int peerCount = 0;
+        for (Peer peer : this.peers)
+        {
+            if (peer != null && peer.state != Peer.State.DISCONNECTED)
+                peerCount++;
+        }
+        PeerMetrics[] peerMetrics = new PeerMetrics[peerCount];
+        peerCount = 0;
+        for (Peer peer : this.peers)
+        {
+            if (peer != null && peer.state != Peer.State.DISCONNECTED)
+                peerMetrics[peerCount++] = new PeerMetrics(peer);
+        }
+        this.metrics = new HostMetrics(System.currentTimeMillis(), this.totalSentData, this.totalSentPackets,
+                                       this.totalReceivedData, this.totalReceivedPackets, peerMetrics);
+    }
+    
+    /**
+     * Registers a {@link HostMXBean} for this host with the platform MBean
+     * server, as com.memeo.enet:type=Host,address="host:port". It is
+     * unregistered when the host is closed.
+     */
+    public ObjectName registerMBean() throws EnetException
+    {
+        return registerMBean("type=Host,address=" + ObjectName.quote(this.address.toString()));
+    }
+    
+    synchronized ObjectName registerMBean(String properties) throws EnetException
+    {
+        if (this.mbeanName != null)
+            return this.mbeanName;
+        try
+        {
+            ObjectName name = new ObjectName("com.memeo.enet:" + properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), name);
+            this.mbeanName = name;
+            return name;
+        }
+        catch (JMException e)
+        {
+            throw new EnetException("could not register MBean", e);
+        }
+    }
+    
+    private synchronized void unregisterMBean()
+    {
+        if (this.mbeanName == null)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.mbeanName);
+        }
+        catch (JMException e)
+        {
+            // Already gone.
+        }
+        this.mbeanName = null;
+    }
+    
+    /**
+     * Closes the host's channel. Peers are not told; disconnect them first.
+     */
+    public void close() throws IOException
+    {
+        unregisterMBean();
+        for (Peer peer : this.channelPeers)
+            closePeerChannel(peer.channel);
+        this.selector.close();
+        this.channel.close();
+    }
+    
+    /**
+     * Wakes the service thread if it is waiting on the selector, or keeps
+     * its next wait from blocking.
+     */
+    void wakeup()
+    {
+        this.selector.wakeup();
+    }
+    
+    /**
+     * Queues a datagram that another shard received for one of this host's
+     * peers, and wakes the service thread to handle it.
+     */
+    void forward(InetSocketAddress address, ByteBuffer datagram, int length)
+    {
+        ForwardedDatagram forwarded = this.forwardedDatagramPool.take();
+        forwarded.address = address;
+        forwarded.data.clear();
+        datagram.limit(length);
+        datagram.position(0);
+        forwarded.data.put(datagram);
+        forwarded.data.flip();
+        synchronized (this.forwardedDatagrams)
+        {
+            this.forwardedDatagrams.add(forwarded);
+            this.forwarded = true;
+        }
+        this.selector.wakeup();
+    }
+    
+    /**
+     * Returns an event obtained from {@link #service(int)} for reuse. The
+     * event must not be used after it has been recycled.
+     */
+    public void recycle(Event event)
+    {
+        this.eventPool.recycle(event);
+    }
+    
+    /**
+     * Hands the filled-in event to the caller; the next call to
+     * {@link #service(int)} starts with a fresh one.
+     */
+    private Event takeEvent()
+    {
+        Event event = this.event;
+        this.event = null;
+        return event;
+    }
+    
+    private boolean dispatchIncomingCommands(Event event)
+    {
+        Peer peer;
+        while ((peer = this.dispatchQueue.poll()) != null)
+        {
+            peer.needsDispatch = false;
+            
+            switch (peer.state)
+            {
+            case CONNECTION_PENDING:
+            case CONNECTION_SUCCEEDED:
+                changeState(peer, State.CONNECTED);
+                event.type = Event.Type.CONNECT;
+                event.peer = peer;
+                event.data = peer.eventData;
+                return true;
+            
+            case ZOMBIE:
+                this.recalculateBandwidthLimits = true;
+                event.type = Event.Type.DISCONNECT;
+                event.peer = peer;
+                event.data = peer.eventData;
+                peer.reset();
+                return true;
+            
+            case CONNECTED:
+                if (peer.publishersAdded)
+                    peer.publishDispatched();
+                if (peer.receiving)
+                {
+                    // Handed to the threads waiting in Peer.receive instead.
+                    peer.inbox.addAll(peer.dispatchedCommands);
+                    continue;
+                }
+                IncomingCommand incomingCommand = peer.dispatchedCommands.poll();
+                if (incomingCommand == null)
+                    continue;
+                event.type = Event.Type.RECEIVE;
+                event.peer = peer;
+                event.channelID = incomingCommand.channelID;
+                event.packet = incomingCommand.packet;
+                incomingCommand.packet = null;
+                this.incomingCommandPool.recycle(incomingCommand);
+                if (!peer.dispatchedCommands.isEmpty())
+                {
+                    peer.needsDispatch = true;
+                    this.dispatchQueue.add(peer);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reads pending datagrams into the receive buffer and handles them.
+     * Nothing is allocated per datagram: the buffer is reused, commands are
+     * decoded by views over it, and the channel hands back the same cached
+     * address object for as long as the sender does not change.
+     */
+    private boolean receiveIncomingCommands(Event event) throws IOException
+    {
+        while (this.forwarded)
+        {
+            ForwardedDatagram forwarded;
+            synchronized (this.forwardedDatagrams)
+            {
+                forwarded = this.forwardedDatagrams.poll();
+                if (forwarded == null)
+                    this.forwarded = false;
+            }
+            if (forwarded == null)
+                break;
+            this.receivedBuffer.clear();
+            this.receivedBuffer.put(forwarded.data);
+            this.receivedAddress = forwarded.address;
+            this.receivedDataLength = this.receivedBuffer.position();
+            this.forwardedDatagramPool.recycle(forwarded);
+            if (handleIncomingCommands(event))
+                return true;
+        }
+        
+        for (int packets = 0; packets < 256; packets++)
+        {
+            this.receivedBuffer.clear();
+            InetSocketAddress address = (InetSocketAddress) this.channel.receive(this.receivedBuffer);
+            if (address == null)
+                break;
+            
+            this.receivedAddress = address;
+            this.receivedDataLength = this.receivedBuffer.position();
+            this.totalReceivedData += this.receivedDataLength;
+            this.totalReceivedPackets++;
+            
+            if (handleIncomingCommands(event))
+                return true;
+        }
+        return receivePeerChannels(event);
+    }
+    
+    /**
+     * Reads the sockets of the peers this shard connected out to. There
+     * are usually few, so each is polled rather than tracked through the
+     * selector's keys.
+     */
+    private boolean receivePeerChannels(Event event) throws IOException
+    {
+        for (int i = 0; i < this.channelPeers.size(); i++)
+        {
+            Peer peer = this.channelPeers.get(i);
+            for (int packets = 0; packets < 256; packets++)
+            {
+                this.receivedBuffer.clear();
+                InetSocketAddress address = (InetSocketAddress) peer.channel.receive(this.receivedBuffer);
+                if (address == null)
+                    break;
+                
+                this.receivedAddress = address;
+                this.receivedDataLength = this.receivedBuffer.position();
+                this.totalReceivedData += this.receivedDataLength;
+                this.totalReceivedPackets++;
+                
+                // May reset the peer, which takes it off the list.
+                if (handleIncomingCommands(event))
+                    return true;
+                if (peer.channel == null)
+                {
+                    i--;
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private boolean handleIncomingCommands(Event event) throws IOException
+    {
+        if (this.receivedDataLength < Protocol.Header.length(0))
+            return false;
+        
+        int peerID = this.header.peerID();
+        int sessionID = (peerID & Protocol.HEADER_SESSION_MASK) >> Protocol.HEADER_SESSION_SHIFT;
+        int flags = peerID & Protocol.HEADER_FLAG_MASK;
+        peerID &= ~(Protocol.HEADER_FLAG_MASK | Protocol.HEADER_SESSION_MASK);
+        
+        int headerSize = Protocol.Header.length(flags);
+        if (this.checksum != null)
+            headerSize += Protocol.CHECKSUM_SIZE;
+        if (this.receivedDataLength < headerSize)
+            return false;
+        
+        Peer peer;
+        if (peerID == Protocol.MAXIMUM_PEER_ID)
+            peer = null;
+        else if (peerID - this.peerIDBase < 0 || peerID - this.peerIDBase >= this.peerCount)
+        {
+            // Replies to our own connects may be steered to another shard.
+            if (this.shards != null)
+                this.shards.forward(peerID, this.receivedAddress, this.receivedBuffer, this.receivedDataLength);
+            return false;
+        }
+        else
+        {
+            peer = this.peers[peerID - this.peerIDBase];
+            if (peer == null
+                || peer.state == State.DISCONNECTED
+                || peer.state == State.ZOMBIE
+                || !this.receivedAddress.equals(peer.address)
+                || (peer.outgoingPeerID < Protocol.MAXIMUM_PEER_ID && sessionID != peer.incomingSessionID))
+                return false;
+        }
+        
+        if ((flags & Protocol.HeaderFlag.Compressed.value) != 0)
+        {
+            if (this.compressor == null)
+                return false;
+            this.compressedData.clear();
+            int originalSize = this.compressor.decompress(this.receivedBuffer, headerSize,
+                                                          this.receivedDataLength - headerSize,
+                                                          this.compressedData, headerSize,
+                                                          Protocol.MAXIMUM_MTU - headerSize);
+            if (originalSize <= 0)
+                return false;
+            this.compressedData.limit(headerSize + originalSize);
+            this.compressedData.position(headerSize);
+            this.receivedBuffer.clear();
+            this.receivedBuffer.position(headerSize);
+            this.receivedBuffer.put(this.compressedData);
+            this.receivedDataLength = headerSize + originalSize;
+        }
+        
+        if (this.checksum != null)
+        {
+            int checksumOffset = headerSize - Protocol.CHECKSUM_SIZE;
+            int desiredChecksum = this.receivedBuffer.getInt(checksumOffset);
+            this.receivedBuffer.putInt(checksumOffset, peer != null ? peer.connectID : 0);
+            this.receivedBuffer.limit(this.receivedDataLength);
+            this.receivedBuffer.position(0);
+            this.checksum.reset();
+            this.checksum.update(this.receivedBuffer);
+            if ((int) this.checksum.getValue() != desiredChecksum)
+                return false;
+        }
+        
+        if (peer != null)
+        {
+            peer.address = this.receivedAddress;
+            peer.incomingDataTotal += this.receivedDataLength;
+        }
+        
+        this.receivedDataOffset = headerSize;
+        commands: while (this.receivedDataOffset < this.receivedDataLength)
+        {
+            if (this.receivedDataOffset + Protocol.CommandHeader.length() > this.receivedDataLength)
+                break;
+            
+            int command = this.receivedDataOffset;
+            this.commandHeader.wrap(this.receivedBuffer, command);
+            int commandNumber = this.commandHeader.commandNumber();
+            int commandSize = Protocol.commandSize(commandNumber);
+            if (commandSize == 0 || command + commandSize > this.receivedDataLength)
+                break;
+            
+            this.receivedDataOffset += commandSize;
+            
+            if (peer == null && commandNumber != Protocol.Command.Connect.value)
+                break;
+            
+            this.commandRefused = false;
+            
+            switch (this.commandHeader.command())
+            {
+            case Acknowledge:
+                this.acknowledge.wrap(this.receivedBuffer, command);
+                if (!handleAcknowledge(event, peer))
+                    break commands;
+                break;
+            
+            case Connect:
+                if (peer != null)
+                    break commands;
+                this.connect.wrap(this.receivedBuffer, command);
+                peer = handleConnect();
+                if (peer == null)
+                    break commands;
+                break;
+            
+            case VerifyConnect:
+                this.verifyConnect.wrap(this.receivedBuffer, command);
+                if (!handleVerifyConnect(event, peer))
+                    break commands;
+                break;
+            
+            case Disconnect:
+                this.disconnect.wrap(this.receivedBuffer, command);
+                handleDisconnect(peer);
+                break;
+            
+            case Ping:
+                if (!handlePing(peer))
+                    break commands;
+                break;
+            
+            case SendReliable:
+                this.sendReliable.wrap(this.receivedBuffer, command);
+                if (!handleSendReliable(peer))
+                    break commands;
+                break;
+            
+            case SendUnreliable:
+                this.sendUnreliable.wrap(this.receivedBuffer, command);
+                if (!handleSendUnreliable(peer))
+                    break commands;
+                break;
+            
+            case SendUnsequenced:
+                this.sendUnsequenced.wrap(this.receivedBuffer, command);
+                if (!handleSendUnsequenced(peer))
+                    break commands;
+                break;
+            
+            case SendFragment:
+                this.sendFragment.wrap(this.receivedBuffer, command);
+                if (!handleSendFragment(peer))
+                    break commands;
+                break;
+            
+            case SendUnreliableFragment:
+                this.sendFragment.wrap(this.receivedBuffer, command);
+                if (!handleSendUnreliableFragment(peer))
+                    break commands;
+                break;
+            
+            case BandwidthLimit:
+                this.bandwidthLimit.wrap(this.receivedBuffer, command);
+                if (!handleBandwidthLimit(peer))
+                    break commands;
+                break;
+            
+            case ThrottleConfigure:
+                this.throttleConfigure.wrap(this.receivedBuffer, command);
+                if (!handleThrottleConfigure(peer))
+                    break commands;
+                break;
+            
+            default:
+                break commands;
+            }
+            
+            if (peer != null && !this.commandRefused && this.commandHeader.hasFlag(Protocol.CommandFlag.Acknowledge))
+            {
+                if ((flags & Protocol.HeaderFlag.SentTime.value) == 0)
+                    break;
+                
+                int sentTime = this.header.sentTime();
+                
+                switch (peer.state)
+                {
+                case DISCONNECTING:
+                case ACKNOWLEDGING_CONNECT:
+                case DISCONNECTED:
+                case ZOMBIE:
+                    break;
+                
+                case ACKNOWLEDGING_DISCONNECT:
+                    if (commandNumber == Protocol.Command.Disconnect.value)
+                        peer.queueAcknowledgement(this.commandHeader, sentTime);
+                    break;
+                
+                default:
+                    peer.queueAcknowledgement(this.commandHeader, sentTime);
+                    break;
+                }
+            }
+        }
+        
+        return event != null && event.type != Event.Type.NONE;
+    }
+    
+    private boolean handleAcknowledge(Event event, Peer peer) throws IOException
+    {
+        if (peer.state == State.DISCONNECTED || peer.state == State.ZOMBIE)
+            return true;
+        
+        int receivedSentTime = this.acknowledge.receivedSentTime();
+        receivedSentTime |= this.serviceTime & 0xFFFF0000;
+        if ((receivedSentTime & 0x8000) > (this.serviceTime & 0x8000))
+            receivedSentTime -= 0x10000;
+        
+        if (Time.less(this.serviceTime, receivedSentTime))
+            return true;
+        
+        peer.lastReceiveTime = this.serviceTime;
+        peer.earliestTimeout = 0;
+        
+        int roundTripTime = Time.difference(this.serviceTime, receivedSentTime);
+        
+        peer.throttle(roundTripTime);
+        
+        peer.roundTripTimeVariance -= peer.roundTripTimeVariance / 4;
+        
+        if (roundTripTime >= peer.roundTripTime)
+        {
+            peer.roundTripTime += (roundTripTime - peer.roundTripTime) / 8;
+            peer.roundTripTimeVariance += (roundTripTime - peer.roundTripTime) / 4;
+        }
+        else
+        {
+            peer.roundTripTime -= (peer.roundTripTime - roundTripTime) / 8;
+            peer.roundTripTimeVariance += (peer.roundTripTime - roundTripTime) / 4;
+        }
+        
+        if (peer.roundTripTime < peer.lowestRoundTripTime)
+            peer.lowestRoundTripTime = peer.roundTripTime;
+        
+        if (peer.roundTripTimeVariance > peer.highestRoundTripTimeVariance)
+            peer.highestRoundTripTimeVariance = peer.roundTripTimeVariance;
+        
+        if (peer.packetThrottleEpoch == 0
+            || Time.difference(this.serviceTime, peer.packetThrottleEpoch) >= peer.packetThrottleInterval)
+        {
+            peer.lastRoundTripTime = peer.lowestRoundTripTime;
+            peer.lastRoundTripTimeVariance = peer.highestRoundTripTimeVariance;
+            peer.lowestRoundTripTime = peer.roundTripTime;
+            peer.highestRoundTripTimeVariance = peer.roundTripTimeVariance;
+            peer.packetThrottleEpoch = this.serviceTime;
+        }
+        
+        Protocol.Command commandNumber = peer.removeSentReliableCommand(this.acknowledge.receivedReliableSequenceNumber(),
+                                                                        this.acknowledge.channelID());
+        
+        switch (peer.state)
+        {
+        case ACKNOWLEDGING_CONNECT:
+            if (commandNumber != Protocol.Command.VerifyConnect)
+                return false;
+            notifyConnect(peer, event);
+            break;
+        
+        case DISCONNECTING:
+            if (commandNumber != Protocol.Command.Disconnect)
+                return false;
+            notifyDisconnect(peer, event);
+            break;
+        
+        case DISCONNECT_LATER:
+            if (peer.outgoingReliableCommands.isEmpty()
+                && peer.outgoingUnreliableCommands.isEmpty()
+                && peer.sentReliableCommands.isEmpty())
+                peer.queueDisconnect(peer.eventData);
+            break;
+        }
+        
+        return true;
+    }
+    
+    private Peer handleConnect() throws EnetException
+    {
+        int channelCount = this.connect.channelCount();
+        
+        if (channelCount < Protocol.MINIMUM_CHANNEL_COUNT || channelCount > Protocol.MAXIMUM_CHANNEL_COUNT)
+            return null;
+        
+        for (Peer peer : this.peers)
+        {
+            if (peer == null)
+                continue;
+            if (peer.state != State.DISCONNECTED
+                && this.receivedAddress.equals(peer.address)
+                && peer.connectID == this.connect.connectID())
+                return null;
+        }
+        
+        if (!claimPeer())
+            return null;
+        Peer peer = new Peer(this);
+        addPeer(peer);
+        
+        if (channelCount > this.channelLimit)
+            channelCount = this.channelLimit;
+        peer.setupChannels(channelCount);
+        peer.state = State.ACKNOWLEDGING_CONNECT;
+        peer.connectID = this.connect.connectID();
+        peer.address = this.receivedAddress;
+        peer.outgoingPeerID = (short) this.connect.outgoingPeerID();
+        peer.incomingBandwidth = this.connect.incomingBandwidth();
+        peer.outgoingBandwidth = this.connect.outgoingBandwidth();
+        peer.packetThrottleInterval = this.connect.packetThrottleInterval();
+        peer.packetThrottleAcceleration = this.connect.packetThrottleAcceleration();
+        peer.packetThrottleDeceleration = this.connect.packetThrottleDeceleration();
+        peer.eventData = this.connect.data();
+        
+        int sessionMask = Protocol.HEADER_SESSION_MASK >> Protocol.HEADER_SESSION_SHIFT;
+        int incomingSessionID = this.connect.incomingSessionID() == 0xFF ? peer.outgoingSessionID : this.connect.incomingSessionID();
+        incomingSessionID = (incomingSessionID + 1) & sessionMask;
+        if (incomingSessionID == peer.outgoingSessionID)
+            incomingSessionID = (incomingSessionID + 1) & sessionMask;
+        peer.outgoingSessionID = incomingSessionID;
+        
+        int outgoingSessionID = this.connect.outgoingSessionID() == 0xFF ? peer.incomingSessionID : this.connect.outgoingSessionID();
+        outgoingSessionID = (outgoingSessionID + 1) & sessionMask;
+        if (outgoingSessionID == peer.incomingSessionID)
+            outgoingSessionID = (outgoingSessionID + 1) & sessionMask;
+        peer.incomingSessionID = outgoingSessionID;
+        
+        peer.mtu = Math.max(Protocol.MINIMUM_MTU, Math.min(Protocol.MAXIMUM_MTU, this.connect.mtu()));
+        
+        if (this.outgoingBandwidth == 0 && peer.incomingBandwidth == 0)
+            peer.windowSize = Protocol.MAXIMUM_WINDOW_SIZE;
+        else if (this.outgoingBandwidth == 0 || peer.incomingBandwidth == 0)
+            peer.windowSize = (Math.max(this.outgoingBandwidth, peer.incomingBandwidth) / Peer.WINDOW_SIZE_SCALE)
+                              * Protocol.MINIMUM_WINDOW_SIZE;
+        else
+            peer.windowSize = (Math.min(this.outgoingBandwidth, peer.incomingBandwidth) / Peer.WINDOW_SIZE_SCALE)
+                              * Protocol.MINIMUM_WINDOW_SIZE;
+        peer.windowSize = Math.max(Protocol.MINIMUM_WINDOW_SIZE, Math.min(Protocol.MAXIMUM_WINDOW_SIZE, peer.windowSize));
+        
+        int windowSize;
+        if (this.incomingBandwidth == 0)
+            windowSize = Protocol.MAXIMUM_WINDOW_SIZE;
+        else
+            windowSize = (this.incomingBandwidth / Peer.WINDOW_SIZE_SCALE) * Protocol.MINIMUM_WINDOW_SIZE;
+        if (windowSize > this.connect.windowSize())
+            windowSize = this.connect.windowSize();
+        windowSize = Math.max(Protocol.MINIMUM_WINDOW_SIZE, Math.min(Protocol.MAXIMUM_WINDOW_SIZE, windowSize));
+        
+        OutgoingCommand outgoingCommand = this.outgoingCommandPool.take();
+        Protocol.VerifyConnect verifyConnect = new Protocol.VerifyConnect(outgoingCommand.commandData, 0);
+        verifyConnect.setCommand(Protocol.Command.VerifyConnect);
+        verifyConnect.setFlag(Protocol.CommandFlag.Acknowledge);
+        verifyConnect.setChannelID(0xFF);
+        verifyConnect.setOutgoingPeerID(peer.incomingPeerID);
+        verifyConnect.setIncomingSessionID(incomingSessionID);
+        verifyConnect.setOutgoingSessionID(outgoingSessionID);
+        verifyConnect.setMtu(peer.mtu);
+        verifyConnect.setWindowSize(windowSize);
+        verifyConnect.setChannelCount(channelCount);
+        verifyConnect.setIncomingBandwidth(this.incomingBandwidth);
+        verifyConnect.setOutgoingBandwidth(this.outgoingBandwidth);
+        verifyConnect.setPacketThrottleInterval(peer.packetThrottleInterval);
+        verifyConnect.setPacketThrottleAcceleration(peer.packetThrottleAcceleration);
+        verifyConnect.setPacketThrottleDeceleration(peer.packetThrottleDeceleration);
+        verifyConnect.setConnectID(peer.connectID);
+        peer.enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
+        
+        return peer;
+    }
+    
+    private boolean handleVerifyConnect(Event event, Peer peer) throws EnetException
+    {
+        if (peer.state != State.CONNECTING)
+            return true;
+        
+        int channelCount = this.verifyConnect.channelCount();
+        
+        if (channelCount < Protocol.MINIMUM_CHANNEL_COUNT || channelCount > Protocol.MAXIMUM_CHANNEL_COUNT
+            || this.verifyConnect.packetThrottleInterval() != peer.packetThrottleInterval
+            || this.verifyConnect.packetThrottleAcceleration() != peer.packetThrottleAcceleration
+            || this.verifyConnect.packetThrottleDeceleration() != peer.packetThrottleDeceleration
+            || this.verifyConnect.connectID() != peer.connectID)
+        {
+            peer.eventData = 0;
+            dispatchState(peer, State.ZOMBIE);
+            return false;
+        }
+        
+        peer.removeSentReliableCommand(1, 0xFF);
+        
+        if (channelCount < peer.channelCount)
+            peer.channelCount = channelCount;
+        
+        peer.outgoingPeerID = (short) this.verifyConnect.outgoingPeerID();
+        peer.incomingSessionID = this.verifyConnect.incomingSessionID();
+        peer.outgoingSessionID = this.verifyConnect.outgoingSessionID();
+        
+        int mtu = Math.max(Protocol.MINIMUM_MTU, Math.min(Protocol.MAXIMUM_MTU, this.verifyConnect.mtu()));
+        if (mtu < peer.mtu)
+            peer.mtu = mtu;
+        
+        int windowSize = Math.max(Protocol.MINIMUM_WINDOW_SIZE,
+                                  Math.min(Protocol.MAXIMUM_WINDOW_SIZE, this.verifyConnect.windowSize()));
+        if (windowSize < peer.windowSize)
+            peer.windowSize = windowSize;
+        
+        peer.incomingBandwidth = this.verifyConnect.incomingBandwidth();
+        peer.outgoingBandwidth = this.verifyConnect.outgoingBandwidth();
+        
+        notifyConnect(peer, event);
+        return true;
+    }
+    
+    private void handleDisconnect(Peer peer)
+    {
+        if (peer.state == State.DISCONNECTED
+            || peer.state == State.ZOMBIE
+            || peer.state == State.ACKNOWLEDGING_DISCONNECT)
+            return;
+        
+        peer.resetQueues();
+        
+        if (peer.state == State.CONNECTION_SUCCEEDED
+            || peer.state == State.DISCONNECTING
+            || peer.state == State.CONNECTING)
+            dispatchState(peer, State.ZOMBIE);
+        else if (peer.state != State.CONNECTED && peer.state != State.DISCONNECT_LATER)
+        {
+            if (peer.state == State.CONNECTION_PENDING)
+                this.recalculateBandwidthLimits = true;
+            peer.reset();
+        }
+        else if (this.disconnect.hasFlag(Protocol.CommandFlag.Acknowledge))
+            changeState(peer, State.ACKNOWLEDGING_DISCONNECT);
+        else
+            dispatchState(peer, State.ZOMBIE);
+        
+        if (peer.state != State.DISCONNECTED)
+            peer.eventData = this.disconnect.data();
+    }
+    
+    private boolean handlePing(Peer peer)
+    {
+        return peer.state == State.CONNECTED || peer.state == State.DISCONNECT_LATER;
+    }
+    
+    /**
+     * Checks that a data command is on a valid channel of a connected peer
+     * and that its payload fits in the datagram, and skips the payload.
+     * 
+     * @return The offset of the payload, or -1 if the command is invalid.
+     */
+    private int receivePayload(Peer peer, Protocol.CommandHeader command, int dataLength)
+    {
+        if (command.channelID() >= peer.channelCount
+            || (peer.state != State.CONNECTED && peer.state != State.DISCONNECT_LATER))
+            return -1;
+        
+        int data = this.receivedDataOffset;
+        this.receivedDataOffset += dataLength;
+        if (dataLength > DEFAULT_MAXIMUM_PACKET_SIZE || this.receivedDataOffset > this.receivedDataLength)
+            return -1;
+        return data;
+    }
+    
+    private boolean handleSendReliable(Peer peer) throws EnetException
+    {
+        int dataLength = this.sendReliable.dataLength();
+        int data = receivePayload(peer, this.sendReliable, dataLength);
+        if (data < 0)
+            return false;
+        
+        return peer.queueIncomingCommand(this.sendReliable, this.receivedBuffer, data, dataLength,
+                                         Packet.Flag.RELIABLE, 0) != null;
+    }
+    
+    private boolean handleSendUnreliable(Peer peer) throws EnetException
+    {
+        int dataLength = this.sendUnreliable.dataLength();
+        int data = receivePayload(peer, this.sendUnreliable, dataLength);
+        if (data < 0)
+            return false;
+        
+        return peer.queueIncomingCommand(this.sendUnreliable, this.receivedBuffer, data, dataLength,
+                                         null, 0) != null;
+    }
+    
+    private boolean handleSendUnsequenced(Peer peer) throws EnetException
+    {
+        int dataLength = this.sendUnsequenced.dataLength();
+        int data = receivePayload(peer, this.sendUnsequenced, dataLength);
+        if (data < 0)
+            return false;
+        
+        // Duplicates are skipped before anything is copied or allocated.
+        if (!peer.acceptUnsequencedGroup(this.sendUnsequenced.unsequencedGroup()))
+            return true;
+        
+        if (peer.queueIncomingCommand(this.sendUnsequenced, this.receivedBuffer, data, dataLength,
+                                      Packet.Flag.UNSEQUENCED, 0) == null)
+            return false;
+        peer.markUnsequencedGroup(this.sendUnsequenced.unsequencedGroup());
+        return true;
+    }
+    
+    /**
+     * Checks the fields a fragment shares with the rest of its packet.
+     */
+    private boolean validFragment(int fragmentLength)
+    {
+        int fragmentCount = this.sendFragment.fragmentCount();
+        int fragmentNumber = this.sendFragment.fragmentNumber();
+        int totalLength = this.sendFragment.totalLength();
+        int fragmentOffset = this.sendFragment.fragmentOffset();
+        
+        return fragmentCount > 0 && fragmentCount <= Protocol.MAXIMUM_FRAGMENT_COUNT
+               && fragmentNumber >= 0 && fragmentNumber < fragmentCount
+               && totalLength > 0 && totalLength <= DEFAULT_MAXIMUM_PACKET_SIZE
+               && totalLength >= fragmentCount
+               && fragmentOffset >= 0 && fragmentOffset < totalLength
+               && fragmentLength <= totalLength - fragmentOffset;
+    }
+    
+    private boolean handleSendFragment(Peer peer) throws EnetException
+    {
+        int fragmentLength = this.sendFragment.dataLength();
+        int data = receivePayload(peer, this.sendFragment, fragmentLength);
+        if (data < 0 || fragmentLength == 0)
+            return false;
+        
+        Peer.Channel channel = peer.channels.get(this.sendFragment.channelID());
+        int incomingReliableSequenceNumber = channel.incomingReliableSequenceNumber & 0xFFFF;
+        int startSequenceNumber = this.sendFragment.startSequenceNumber();
+        int startWindow = startSequenceNumber / Peer.RELIABLE_WINDOW_SIZE;
+        int currentWindow = incomingReliableSequenceNumber / Peer.RELIABLE_WINDOW_SIZE;
+        
+        if (startSequenceNumber < incomingReliableSequenceNumber)
+            startWindow += Peer.RELIABLE_WINDOWS;
+        
+        if (startWindow < currentWindow || startWindow >= currentWindow + Peer.FREE_RELIABLE_WINDOWS - 1)
+            return true;
+        
+        if (!validFragment(fragmentLength))
+            return false;
+        
+        int fragmentCount = this.sendFragment.fragmentCount();
+        int totalLength = this.sendFragment.totalLength();
+        IncomingCommand startCommand = channel.incomingReliableCommands.get(startSequenceNumber);
+        if (startCommand != null)
+        {
+            if ((startCommand.command & Protocol.COMMAND_MASK) != Protocol.Command.SendFragment.value
+                || totalLength != startCommand.packet.length()
+                || fragmentCount != startCommand.fragmentCount)
+                return false;
+        }
+        else
+        {
+            for (int i = 0; i < Protocol.SendFragment.length(); i++)
+                this.fragmentStart.buffer.put(i, this.receivedBuffer.get(this.sendFragment.offset + i));
+            this.fragmentStart.setReliableSequenceNumber(startSequenceNumber);
+            
+            startCommand = peer.queueIncomingCommand(this.fragmentStart, null, 0, totalLength,
+                                                     Packet.Flag.RELIABLE, fragmentCount);
+            if (startCommand == null)
+                return false;
+            if (this.commandRefused)
+                return true;
+        }
+        
+        peer.receiveFragment(startCommand, this.sendFragment.fragmentNumber(), this.sendFragment.fragmentOffset(),
+                             this.receivedBuffer, data, fragmentLength);
+        return true;
+    }
+    
+    private boolean handleSendUnreliableFragment(Peer peer) throws EnetException
+    {
+        int fragmentLength = this.sendFragment.dataLength();
+        int data = receivePayload(peer, this.sendFragment, fragmentLength);
+        if (data < 0 || fragmentLength == 0)
+            return false;
+        
+        Peer.Channel channel = peer.channels.get(this.sendFragment.channelID());
+        int incomingReliableSequenceNumber = channel.incomingReliableSequenceNumber & 0xFFFF;
+        int reliableSequenceNumber = this.sendFragment.reliableSequenceNumber();
+        int startSequenceNumber = this.sendFragment.startSequenceNumber();
+        int reliableWindow = reliableSequenceNumber / Peer.RELIABLE_WINDOW_SIZE;
+        int currentWindow = incomingReliableSequenceNumber / Peer.RELIABLE_WINDOW_SIZE;
+        
+        if (reliableSequenceNumber < incomingReliableSequenceNumber)
+            reliableWindow += Peer.RELIABLE_WINDOWS;
+        
+        if (reliableWindow < currentWindow || reliableWindow >= currentWindow + Peer.FREE_RELIABLE_WINDOWS - 1)
+            return true;
+        
+        if (reliableSequenceNumber == incomingReliableSequenceNumber
+            && startSequenceNumber <= (channel.incomingUnreliableSequenceNumber & 0xFFFF))
+            return true;
+        
+        if (!validFragment(fragmentLength))
+            return false;
+        
+        int fragmentCount = this.sendFragment.fragmentCount();
+        int totalLength = this.sendFragment.totalLength();
+        IncomingCommand startCommand = null;
+        
+        for (Iterator<IncomingCommand> it = channel.incomingUnreliableCommands.descendingIterator(); it.hasNext(); )
+        {
+            IncomingCommand incomingCommand = it.next();
+            int sequenceNumber = incomingCommand.reliableSequenceNumber & 0xFFFF;
+            
+            if ((incomingCommand.command & Protocol.COMMAND_MASK) == Protocol.Command.SendUnsequenced.value)
+                continue;
+            
+            if (reliableSequenceNumber >= incomingReliableSequenceNumber)
+            {
+                if (sequenceNumber < incomingReliableSequenceNumber)
+                    continue;
+            }
+            else if (sequenceNumber >= incomingReliableSequenceNumber)
+                break;
+            
+            if (sequenceNumber < reliableSequenceNumber)
+                break;
+            
+            if (sequenceNumber > reliableSequenceNumber)
+                continue;
+            
+            if ((incomingCommand.unreliableSequenceNumber & 0xFFFF) <= startSequenceNumber)
+            {
+                if ((incomingCommand.unreliableSequenceNumber & 0xFFFF) < startSequenceNumber)
+                    break;
+                
+                if ((incomingCommand.command & Protocol.COMMAND_MASK) != Protocol.Command.SendUnreliableFragment.value
+                    || totalLength != incomingCommand.packet.length()
+                    || fragmentCount != incomingCommand.fragmentCount)
+                    return false;
+                
+                startCommand = incomingCommand;
+                break;
+            }
+        }
+        
+        if (startCommand == null)
+        {
+            startCommand = peer.queueIncomingCommand(this.sendFragment, null, 0, totalLength,
+                                                     Packet.Flag.UNRELIABLE_FRAGMENT, fragmentCount);
+            if (startCommand == null)
+                return false;
+        }
+        
+        peer.receiveFragment(startCommand, this.sendFragment.fragmentNumber(), this.sendFragment.fragmentOffset(),
+                             this.receivedBuffer, data, fragmentLength);
+        return true;
+    }
+    
+    private boolean handleBandwidthLimit(Peer peer)
+    {
+        if (peer.state != State.CONNECTED && peer.state != State.DISCONNECT_LATER)
+            return false;
+        
+        peer.incomingBandwidth = this.bandwidthLimit.incomingBandwidth();
+        peer.outgoingBandwidth = this.bandwidthLimit.outgoingBandwidth();
+        
+        if (peer.incomingBandwidth == 0 && this.outgoingBandwidth == 0)
+            peer.windowSize = Protocol.MAXIMUM_WINDOW_SIZE;
+        else if (peer.incomingBandwidth == 0 || this.outgoingBandwidth == 0)
+            peer.windowSize = (Math.max(peer.incomingBandwidth, this.outgoingBandwidth) / Peer.WINDOW_SIZE_SCALE)
+                              * Protocol.MINIMUM_WINDOW_SIZE;
+        else
+            peer.windowSize = (Math.min(peer.incomingBandwidth, this.outgoingBandwidth) / Peer.WINDOW_SIZE_SCALE)
+                              * Protocol.MINIMUM_WINDOW_SIZE;
+        peer.windowSize = Math.max(Protocol.MINIMUM_WINDOW_SIZE, Math.min(Protocol.MAXIMUM_WINDOW_SIZE, peer.windowSize));
+        return true;
+    }
+    
+    private boolean handleThrottleConfigure(Peer peer)
+    {
+        if (peer.state != State.CONNECTED && peer.state != State.DISCONNECT_LATER)
+            return false;
+        
+        peer.packetThrottleInterval = this.throttleConfigure.packetThrottleInterval();
+        peer.packetThrottleAcceleration = this.throttleConfigure.packetThrottleAcceleration();
+        peer.packetThrottleDeceleration = this.throttleConfigure.packetThrottleDeceleration();
+        return true;
+    }
+    
+    private static final class ForwardedDatagram extends ListNode<ForwardedDatagram>
+    {
+        InetSocketAddress address;
+        final ByteBuffer data = ByteBuffer.allocateDirect(Protocol.MAXIMUM_MTU);
+    }
+    
+    private class MetricsBean implements HostMXBean
+    {
+        public String getAddress()
+        {
+            return Host.this.address.toString();
+        }
+        
+        public long getTime()
+        {
+            return metrics().getTime();
+        }
+        
+        public long getTotalSentData()
+        {
+            return metrics().getTotalSentData();
+        }
+        
+        public long getTotalSentPackets()
+        {
+            return metrics().getTotalSentPackets();
+        }
+        
+        public long getTotalReceivedData()
+        {
+            return metrics().getTotalReceivedData();
+        }
+        
+        public long getTotalReceivedPackets()
+        {
+            return metrics().getTotalReceivedPackets();
+        }
+        
+        public int getPeerCount()
+        {
+            return metrics().getPeerCount();
+        }
+        
+        public int getThrottledPeerCount()
+        {
+            return metrics().throttledPeers().size();
+        }
+        
+        public PeerMetrics[] getPeers()
+        {
+            return metrics().getPeers();
+        }
     }
 }
@@ -0,0 +1,30 @@
+package com.memeo.enet;
+
+/**
+ * A host's metrics as seen over JMX. Each attribute is read from
+ * {@link Host#metrics()}, so from a snapshot taken for the read unless a
+ * metrics interval is set.
+ *
+ * @see Host#registerMBean()
+ */
+public interface HostMXBean
+{
+    String getAddress();
+    
+    /** When the snapshot was taken, in milliseconds since the epoch. */
+    long getTime();
+    
+    long getTotalSentData();
+    
+    long getTotalSentPackets();
+    
+    long getTotalReceivedData();
+    
+    long getTotalReceivedPackets();
+    
+    int getPeerCount();
+    
+    int getThrottledPeerCount();
+    
+    PeerMetrics[] getPeers();
+}
@@ -0,0 +1,100 @@
+package com.memeo.enet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of a host's traffic totals and of every peer not
+ * disconnected. The service thread takes one every metrics interval, if
+ * one is set, or when {@link Host#metrics()} asks, and publishes it with
+ * a single volatile write.
+ *
+ * @see Host#metrics()
+ */
+public class HostMetrics
+{
+    private final long time;
+    private final long totalSentData;
+    private final long totalSentPackets;
+    private final long totalReceivedData;
+    private final long totalReceivedPackets;
+    private final PeerMetrics[] peers;
+    
+    HostMetrics(long time, long totalSentData, long totalSentPackets, long totalReceivedData,
+                long totalReceivedPackets, PeerMetrics[] peers)
+    {
+        this.time = time;
+        this.totalSentData = totalSentData;
+        this.totalSentPackets = totalSentPackets;
+        this.totalReceivedData = totalReceivedData;
+        this.totalReceivedPackets = totalReceivedPackets;
+        this.peers = peers;
+    }
+    
+    /** When the snapshot was taken, in milliseconds since the epoch. */
+    public long getTime()
+    {
+        return time;
+    }
+    
+    /** Bytes sent, counting protocol headers. */
+    public long getTotalSentData()
+    {
+        return totalSentData;
+    }
+    
+    /** Datagrams sent. */
+    public long getTotalSentPackets()
+    {
+        return totalSentPackets;
+    }
+    
+    public long getTotalReceivedData()
+    {
+        return totalReceivedData;
+    }
+    
+    public long getTotalReceivedPackets()
+    {
+        return totalReceivedPackets;
+    }
+    
+    public int getPeerCount()
+    {
+        return peers.length;
+    }
+    
+    public PeerMetrics[] getPeers()
+    {
+        return peers.clone();
+    }
+    
+    /**
+     * Returns the peers whose packet throttle is below the scale.
+     */
+    public List<PeerMetrics> throttledPeers()
+    {
+        List<PeerMetrics> throttled = new ArrayList<PeerMetrics>();
+        for (PeerMetrics peer : peers)
+        {
+            if (peer.isThrottled())
+                throttled.add(peer);
+        }
+        return throttled;
+    }
+    
+    /**
+     * Returns the peers losing more than the given fraction, from 0 to 1,
+     * of reliable commands.
+     */
+    public List<PeerMetrics> lossyPeers(double packetLoss)
+    {
+        List<PeerMetrics> lossy = new ArrayList<PeerMetrics>();
+        for (PeerMetrics peer : peers)
+        {
+            if (peer.getPacketLoss() > packetLoss)
+                lossy.add(peer);
+        }
+        return lossy;
+    }
+}
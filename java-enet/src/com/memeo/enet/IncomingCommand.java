@@ -1,14 +1,30 @@
 package com.memeo.enet;
 
-import java.nio.ByteBuffer;
-
 public class IncomingCommand extends ListNode<IncomingCommand>
 {
     short reliableSequenceNumber;
     short unreliableSequenceNumber;
-    Protocol.CommandHeader command;
+    int command;
+    int channelID;
     int fragmentCount;
     int fragmentsRemaining;
-    ByteBuffer fragments;
+    /** One bit per fragment received; kept across reuse from the pool. */
+    int[] fragments;
+    /** Released when the command is recycled, unless delivered and cleared. */
     Packet packet;
+    
+    void reset()
+    {
+        reliableSequenceNumber = 0;
+        unreliableSequenceNumber = 0;
+        command = 0;
+        channelID = 0;
+        fragmentCount = 0;
+        fragmentsRemaining = 0;
+        if (packet != null)
+        {
+            packet.release();
+            packet = null;
+        }
+    }
 }
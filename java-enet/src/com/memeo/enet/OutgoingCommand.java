@@ -1,5 +1,8 @@
 package com.memeo.enet;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class OutgoingCommand extends ListNode<OutgoingCommand>
 {
     short reliableSequenceNumber;
@@ -10,6 +13,35 @@ public class OutgoingCommand extends ListNode<OutgoingCommand>
     int fragmentOffset;
     short fragmentLength;
     short sendAttempts;
-    Protocol.CommandHeader command;
+    // When the command times out while in the host's timing wheel.
+    int timeout;
+    Peer peer;
+    // Links in the peer's reliable CommandQueue the command is in, if any.
+    OutgoingCommand queuePrevious;
+    OutgoingCommand queueNext;
+    // The encoded command, kept until it is acknowledged so that it can be
+    // retransmitted as-is.
+    final ByteBuffer commandData = ByteBuffer.allocate(Protocol.MAXIMUM_COMMAND_SIZE);
+    final Protocol.CommandHeader command = new Protocol.CommandHeader(commandData, 0);
     Packet packet;
+    
+    void reset()
+    {
+        reliableSequenceNumber = 0;
+        unreliableSequenceNumber = 0;
+        sentTime = 0;
+        roundTripTimeout = 0;
+        roundTripTimeoutLimit = 0;
+        fragmentOffset = 0;
+        fragmentLength = 0;
+        sendAttempts = 0;
+        timeout = 0;
+        peer = null;
+        Arrays.fill(commandData.array(), (byte) 0);
+        if (packet != null)
+        {
+            packet.release();
+            packet = null;
+        }
+    }
 }
@@ -2,6 +2,7 @@ package com.memeo.enet;
 
 import java.nio.ByteBuffer;
 import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Packet
 {
@@ -19,8 +20,34 @@ public class Packet
         }
     }
     
+    /**
+     * Told when a packet is freed, each time its reference count falls to
+     * zero.
+     * Called on whichever thread dropped the last reference, often the
+     * host's service thread.
+     */
+    public static interface FreeCallback
+    {
+        void free(Packet packet);
+    }
+    
+    // Flag sets shared by received packets, copied before being changed.
+    private static final EnumSet<Flag> NO_FLAGS = EnumSet.noneOf(Flag.class);
+    private static final EnumSet<Flag> RELIABLE_FLAGS = EnumSet.of(Flag.RELIABLE);
+    private static final EnumSet<Flag> UNSEQUENCED_FLAGS = EnumSet.of(Flag.UNSEQUENCED);
+    private static final EnumSet<Flag> UNRELIABLE_FRAGMENT_FLAGS = EnumSet.of(Flag.UNRELIABLE_FRAGMENT);
+    
     final ByteBuffer buffer;
     EnumSet<Flag> flags;
+    private boolean flagsShared;
+    
+    // Count of references, or -1 once a packet from an arena is freed.
+    private final AtomicInteger referenceCount = new AtomicInteger();
+    private volatile FreeCallback freeCallback;
+    
+    // Where the payload goes back to once the packet is freed, if anywhere.
+    private final PacketArena arena;
+    private final ByteBuffer arenaBuffer;
     
     public Packet(byte[] data)
     {
@@ -40,7 +67,9 @@ public class Packet
     public Packet(byte[] data, int offset, int length, EnumSet<Flag> flags)
     {
         this.flags = flags;
-        buffer = ByteBuffer.wrap(data, offset, length);
+        this.buffer = ByteBuffer.wrap(data, offset, length);
+        this.arena = null;
+        this.arenaBuffer = null;
     }
     
     public Packet(ByteBuffer buffer)
@@ -52,6 +81,42 @@ public class Packet
     {
         this.flags = flags;
         this.buffer = buffer.slice();
+        this.arena = null;
+        this.arenaBuffer = null;
+    }
+    
+    Packet(PacketArena arena, int length, EnumSet<Flag> flags)
+    {
+        this.flags = flags;
+        this.arena = arena;
+        this.arenaBuffer = arena.take(length);
+        this.arenaBuffer.limit(length);
+        this.buffer = this.arenaBuffer.slice();
+    }
+    
+    /**
+     * Creates a received packet, its payload taken from the arena and its
+     * flags one of the shared sets.
+     */
+    Packet(PacketArena arena, int length, Flag flag)
+    {
+        this(arena, length, sharedFlags(flag));
+        this.flagsShared = true;
+    }
+    
+    private static EnumSet<Flag> sharedFlags(Flag flag)
+    {
+        if (flag == null)
+            return NO_FLAGS;
+        switch (flag)
+        {
+        case RELIABLE:
+            return RELIABLE_FLAGS;
+        case UNSEQUENCED:
+            return UNSEQUENCED_FLAGS;
+        default:
+            return UNRELIABLE_FRAGMENT_FLAGS;
+        }
     }
     
     public ByteBuffer buffer()
@@ -66,14 +131,120 @@ public class Packet
     
     public boolean setFlag(Flag flag)
     {
+        if (flags.contains(flag))
+            return false;
+        unshareFlags();
         return flags.add(flag);
     }
     
     public boolean unsetFlag(Flag flag)
     {
+        if (!flags.contains(flag))
+            return false;
+        unshareFlags();
         return flags.remove(flag);
     }
     
+    private void unshareFlags()
+    {
+        if (this.flagsShared)
+        {
+            this.flags = this.flags.clone();
+            this.flagsShared = false;
+        }
+    }
+    
+    public void setFreeCallback(FreeCallback freeCallback)
+    {
+        this.freeCallback = freeCallback;
+    }
+    
+    public int referenceCount()
+    {
+        return Math.max(0, this.referenceCount.get());
+    }
+    
+    /**
+     * Adds a reference, keeping the packet from being freed. The host holds
+     * one for every queued command that carries the packet, so a packet that
+     * has been sent is freed once it is acknowledged, or once it is sent if
+     * unreliable, unless the application retains it.
+     * 
+     * @throws IllegalStateException if the packet came from an arena and
+     *  has been freed.
+     */
+    public Packet retain()
+    {
+        for (;;)
+        {
+            int count = this.referenceCount.get();
+            if (count < 0)
+                throw new IllegalStateException("packet already freed");
+            if (this.referenceCount.compareAndSet(count, count + 1))
+                return this;
+        }
+    }
+    
+    /**
+     * Drops a reference and frees the packet if it was the last. Releasing
+     * a packet that holds no references, such as one never sent, frees it
+     * at once. Freeing runs the free callback. A packet from
+     * {@link Host#createPacket}, or one received, gives its buffer back to
+     * be reused and must not be sent or read again; any other packet goes
+     * back to holding no references, and may be sent again, freeing it
+     * again once done. A received packet that is never released is left to
+     * the garbage collector.
+     * 
+     * @throws IllegalStateException if the packet came from an arena and
+     *  has been freed.
+     */
+    public void release()
+    {
+        for (;;)
+        {
+            int count = this.referenceCount.get();
+            if (count < 0)
+                throw new IllegalStateException("packet already freed");
+            if (count > 1)
+            {
+                if (this.referenceCount.compareAndSet(count, count - 1))
+                    return;
+            }
+            else if (this.referenceCount.compareAndSet(count, this.arena != null ? -1 : 0))
+            {
+                free();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Adds several references at once, for a caller that already holds one
+     * and so knows the packet is live.
+     */
+    void retain(int count)
+    {
+        this.referenceCount.addAndGet(count);
+    }
+    
+    /**
+     * Drops a reference taken for a send that then failed, without freeing
+     * the packet, so that it is the caller's again.
+     */
+    void unretain()
+    {
+        this.referenceCount.decrementAndGet();
+    }
+    
+    private void free()
+    {
+        FreeCallback freeCallback = this.freeCallback;
+        if (freeCallback != null)
+            freeCallback.free(this);
+        if (this.arena != null)
+            this.arena.recycle(this.arenaBuffer);
+    }
+    
     public int length()
     {
         return buffer.remaining();
@@ -0,0 +1,97 @@
+package com.memeo.enet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pooled direct buffers for packet payloads, in power-of-two size classes
+ * from 64 bytes to 1 MB. Buffers up to 64 KB are cut from shared slabs;
+ * larger ones are allocated singly. Each class keeps at most about 1 MB of
+ * free buffers; anything beyond that, and any payload over 1 MB, is left
+ * to the garbage collector.
+ *
+ * Packets are taken by the application and given back when their reference
+ * count falls to zero, often on the service thread, so access is
+ * synchronized per class.
+ *
+ * @see Host#createPacket(int, java.util.EnumSet)
+ */
+class PacketArena
+{
+    private static final int MINIMUM_SHIFT = 6;
+    private static final int MAXIMUM_SHIFT = 20;
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int CLASS_LIMIT = 1024 * 1024;
+    
+    private final ArrayDeque<ByteBuffer>[] free;
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    PacketArena()
+    {
+        this.free = new ArrayDeque[MAXIMUM_SHIFT - MINIMUM_SHIFT + 1];
+        for (int i = 0; i < this.free.length; i++)
+            this.free[i] = new ArrayDeque<ByteBuffer>();
+    }
+    
+    private static int sizeClass(int length)
+    {
+        if (length <= 1 << MINIMUM_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MINIMUM_SHIFT;
+    }
+    
+    /**
+     * Returns a cleared buffer with room for at least length bytes.
+     */
+    ByteBuffer take(int length)
+    {
+        int sizeClass = sizeClass(length);
+        if (sizeClass >= this.free.length)
+            return ByteBuffer.allocateDirect(length);
+        
+        ArrayDeque<ByteBuffer> buffers = this.free[sizeClass];
+        synchronized (buffers)
+        {
+            if (buffers.isEmpty())
+                refill(buffers, 1 << (sizeClass + MINIMUM_SHIFT));
+            ByteBuffer buffer = buffers.pop();
+            buffer.clear();
+            return buffer;
+        }
+    }
+    
+    /**
+     * Returns a buffer obtained from {@link #take(int)}.
+     */
+    void recycle(ByteBuffer buffer)
+    {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= this.free.length || capacity != 1 << (sizeClass + MINIMUM_SHIFT))
+            return;
+        
+        ArrayDeque<ByteBuffer> buffers = this.free[sizeClass];
+        synchronized (buffers)
+        {
+            if ((buffers.size() + 1) * capacity <= Math.max(CLASS_LIMIT, SLAB_SIZE))
+                buffers.push(buffer);
+        }
+    }
+    
+    private static void refill(ArrayDeque<ByteBuffer> buffers, int size)
+    {
+        if (size >= SLAB_SIZE)
+        {
+            buffers.push(ByteBuffer.allocateDirect(size));
+            return;
+        }
+        
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        for (int offset = 0; offset < SLAB_SIZE; offset += size)
+        {
+            slab.limit(offset + size);
+            slab.position(offset);
+            buffers.push(slab.slice());
+        }
+    }
+}
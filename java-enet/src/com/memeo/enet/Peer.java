@@ -2,13 +2,25 @@ package com.memeo.enet;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.memeo.enet.Protocol.Command;
 
@@ -33,12 +45,161 @@ public class Peer extends ListNode<Peer>
         
         short outgoingReliableSequenceNumber;
         short outgoingUnreliableSequenceNumber;
+        // Per window of reliable sequence numbers, commands sent and not yet
+        // acknowledged, with a bit set in usedReliableWindows for each
+        // window that has any.
         short usedReliableWindows;
         final short[] reliableWindows = new short[RELIABLE_WINDOWS];
         short incomingReliableSequenceNumber;
         short incomingUnreliableSequenceNumber;
-        final Queue<IncomingCommand> incomingReliableCommands = new ConcurrentLinkedQueue<IncomingCommand>();
-        final Queue<IncomingCommand> incomingUnreliableCommands = new ConcurrentLinkedQueue<IncomingCommand>();
+        // Only touched by the service thread; the unreliable commands are
+        // kept in sequence order.
+        final SequenceRing incomingReliableCommands = new SequenceRing();
+        final LinkedList<IncomingCommand> incomingUnreliableCommands = new LinkedList<IncomingCommand>();
+        final SentCommandRing sentReliableCommands = new SentCommandRing();
+        // Reliable commands sent again after their acknowledgement timed out.
+        int retransmissions;
+        // Commands in the outgoing queues, including those waiting to be
+        // resent; see Peer#countQueued.
+        int queuedCommands;
+        // Set once the application asks for the channel's publisher.
+        volatile ChannelPublisher publisher;
+        // Whether the publisher had no room; only the service thread
+        // touches it.
+        boolean held;
+    }
+    
+    /**
+     * Packets dispatched to a peer whose application threads wait for them
+     * in {@link Peer#receive(int[], long, TimeUnit)}. Waiters park on a lock
+     * condition rather than a monitor, so virtual threads waiting here do
+     * not pin their carrier threads.
+     */
+    static class Inbox
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = this.lock.newCondition();
+        private final ArrayDeque<IncomingCommand> commands = new ArrayDeque<IncomingCommand>();
+        private boolean closed;
+        
+        /**
+         * Moves every command out of the queue; called by the service
+         * thread.
+         */
+        void addAll(Queue<IncomingCommand> dispatched)
+        {
+            this.lock.lock();
+            try
+            {
+                IncomingCommand incomingCommand;
+                while ((incomingCommand = dispatched.poll()) != null)
+                {
+                    this.commands.add(incomingCommand);
+                    this.notEmpty.signal();
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * Wakes every waiter once the peer has disconnected; commands
+         * already here can still be taken.
+         */
+        void close()
+        {
+            this.lock.lock();
+            try
+            {
+                this.closed = true;
+                this.notEmpty.signalAll();
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * @return The oldest command, or null if none arrived in time.
+         * @throws EnetException if the inbox is closed and empty.
+         */
+        IncomingCommand poll(long nanos)
+            throws EnetException, InterruptedException
+        {
+            this.lock.lockInterruptibly();
+            try
+            {
+                for (;;)
+                {
+                    IncomingCommand incomingCommand = this.commands.poll();
+                    if (incomingCommand != null)
+                        return incomingCommand;
+                    if (this.closed)
+                        throw new EnetException("peer disconnected");
+                    if (nanos <= 0)
+                        return null;
+                    nanos = this.notEmpty.awaitNanos(nanos);
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * The commands a broadcast packet goes out as for peers with a given
+     * fragment layout, encoded once and copied for each peer. At most two
+     * commands are ever needed: the one the packet's flags ask for, and
+     * reliable for channels out of unreliable sequence numbers.
+     */
+    static class CommandTemplate
+    {
+        final Packet packet;
+        final int channelID;
+        final int fragmentLength;
+        // 0 if the packet fits in one command.
+        final int fragmentCount;
+        private Protocol.Command firstCommand;
+        private byte[] first;
+        private Protocol.Command secondCommand;
+        private byte[] second;
+        
+        CommandTemplate(Packet packet, int channelID, int fragmentLength)
+        {
+            this.packet = packet;
+            this.channelID = channelID;
+            this.fragmentLength = fragmentLength;
+            int packetLength = packet.length();
+            this.fragmentCount = packetLength > fragmentLength ? (packetLength + fragmentLength - 1) / fragmentLength : 0;
+        }
+        
+        byte[] encoded(Protocol.Command command)
+        {
+            if (command == this.firstCommand)
+                return this.first;
+            if (command == this.secondCommand)
+                return this.second;
+            return null;
+        }
+        
+        void setEncoded(Protocol.Command command, byte[] encoded)
+        {
+            if (this.firstCommand == null)
+            {
+                this.firstCommand = command;
+                this.first = encoded;
+            }
+            else
+            {
+                this.secondCommand = command;
+                this.second = encoded;
+            }
+        }
     }
     
     static final int DEFAULT_ROUND_TRIP_TIME      = 500;
@@ -62,10 +223,19 @@ public class Peer extends ListNode<Peer>
     static final int RELIABLE_WINDOW_SIZE         = 0x1000;
     static final int FREE_RELIABLE_WINDOWS        = 8;
     
+    /**
+     * Returned by {@link #queueIncomingCommand} for commands that were
+     * dropped without error (duplicates, stale sequence numbers).
+     */
+    private static final IncomingCommand discardedCommand = new IncomingCommand();
+    
     short outgoingPeerID;
     short incomingPeerID;
     InetSocketAddress address;
-    State state;
+    // Written only by the service thread, which sets the channel count and
+    // MTU before it sets CONNECTED. Volatile so that checkSend on another
+    // thread sees both once it has seen CONNECTED.
+    volatile State state;
     int channelCount;
     List<Channel> channels;
     int connectID;
@@ -74,6 +244,12 @@ public class Peer extends ListNode<Peer>
     int outgoingBandwidth;
     int incomingBandwidthThrottleEpoch;
     int outgoingBandwidthThrottleEpoch;
+    // The limits last sent in a BandwidthLimit command, or -1.
+    int advertisedIncomingBandwidth;
+    int advertisedOutgoingBandwidth;
+    // The peer's share of the host's incoming bandwidth, or -1 until the
+    // throttle first works it out.
+    int incomingBandwidthShare;
     int incomingDataTotal;
     int outgoingDataTotal;
     int lastSendTime;
@@ -101,26 +277,58 @@ public class Peer extends ListNode<Peer>
     int   mtu;
     int   reliableDataInTransit;
     short   outgoingReliableSequenceNumber;    
+    int incomingSessionID;
+    int outgoingSessionID;
     short incomingUnsequencedGroup;
     short outgoingUnsequencedGroup;
     int eventData;
     final int[] unsequencedWindow = new int[UNSEQUENCED_WINDOW_SIZE / 32];
     boolean needsDispatch;
     List<Object> dispatchList;
-    final Queue<OutgoingCommand> sentReliableCommands = new ConcurrentLinkedQueue<OutgoingCommand>();
-    final Queue<OutgoingCommand> sentUnreliableCommands = new ConcurrentLinkedQueue<OutgoingCommand>();
-    final Queue<OutgoingCommand> outgoingReliableCommands = new ConcurrentLinkedQueue<OutgoingCommand>();
-    final Queue<OutgoingCommand> outgoingUnreliableCommands = new ConcurrentLinkedQueue<OutgoingCommand>();
+    // Only touched by the thread servicing the host; see Host#submit.
+    final CommandQueue sentReliableCommands = new CommandQueue();
+    final Queue<OutgoingCommand> sentUnreliableCommands = new ArrayDeque<OutgoingCommand>();
+    // Commands waiting to be resent come first, up to lastResend; see
+    // Host#checkTimeouts.
+    final CommandQueue outgoingReliableCommands = new CommandQueue();
+    OutgoingCommand lastResend;
+    // Sent reliable commands not on any channel, such as a connect.
+    final SentCommandRing sentControlCommands = new SentCommandRing();
+    final Queue<OutgoingCommand> outgoingUnreliableCommands = new ArrayDeque<OutgoingCommand>();
+    final Queue<Acknowledgement> acknowledgements = new ArrayDeque<Acknowledgement>();
+    // Filled by the service thread; receive(int[]) may take from any thread.
     final Queue<IncomingCommand> dispatchedCommands = new ConcurrentLinkedQueue<IncomingCommand>();
-    // TODO fix type param
-    final Queue<Object> acknowledgements = new ConcurrentLinkedQueue<Object>();
+    // Set once an application thread waits in receive; from then on the
+    // service thread hands dispatched packets to the inbox.
+    volatile boolean receiving;
+    final Inbox inbox;
+    // Completed by the service thread once the peer is connected.
+    CompletableFuture<Peer> connected;
+    // Channels held back by their publishers.
+    int heldChannels;
+    // Set when a channel gets a publisher, so that the service thread moves
+    // the channel's packets already dispatched over to it.
+    volatile boolean publishersAdded;
+    int acknowledgementCount;
+    // When the oldest pending acknowledgement was queued.
+    int acknowledgementTime;
     
     final Host host;
+    // On a shard, the socket of a peer it connected out to, or null; see
+    // Host#openPeerChannel.
+    DatagramChannel channel;
+    
+    // Views used to encode commands into the storage of outgoing commands.
+    private final Protocol.SendReliable sendReliable = new Protocol.SendReliable(null, 0);
+    private final Protocol.SendUnreliable sendUnreliable = new Protocol.SendUnreliable(null, 0);
+    private final Protocol.SendUnsequenced sendUnsequenced = new Protocol.SendUnsequenced(null, 0);
+    private final Protocol.SendFragment sendFragment = new Protocol.SendFragment(null, 0);
     
     Peer(Host host)
     {
         this.host = host;
         reset();
+        this.inbox = new Inbox();
     }
     
     public short getIncomingPeerID()
@@ -142,6 +350,9 @@ public class Peer extends ListNode<Peer>
         outgoingBandwidth = 0;
         incomingBandwidthThrottleEpoch = 0;
         outgoingBandwidthThrottleEpoch = 0;
+        advertisedIncomingBandwidth = -1;
+        advertisedOutgoingBandwidth = -1;
+        incomingBandwidthShare = -1;
         incomingDataTotal = 0;
         outgoingDataTotal = 0;
         lastSendTime = 0;
@@ -170,11 +381,22 @@ public class Peer extends ListNode<Peer>
         reliableDataInTransit = 0;
         outgoingReliableSequenceNumber = 0;
         windowSize = Protocol.MAXIMUM_WINDOW_SIZE;
+        incomingSessionID = 0xFF;
+        outgoingSessionID = 0xFF;
         incomingUnsequencedGroup = 0;
         outgoingUnsequencedGroup = 0;
         eventData = 0;
         Arrays.fill(unsequencedWindow, 0);
         resetQueues();
+        host.removePeer(this);
+        if (inbox != null)
+            inbox.close();
+        if (connected != null)
+        {
+            CompletableFuture<Peer> connected = this.connected;
+            this.connected = null;
+            connected.completeExceptionally(new EnetException("connection failed"));
+        }
     }
     
     void resetQueues()
@@ -184,38 +406,86 @@ public class Peer extends ListNode<Peer>
             this.host.dispatchQueue.remove(this);
             this.needsDispatch = false;
         }
-        this.sentReliableCommands.clear();
-        this.sentUnreliableCommands.clear();
-        this.outgoingReliableCommands.clear();
-        this.outgoingUnreliableCommands.clear();
-        this.dispatchedCommands.clear();
-        this.acknowledgements.clear();
-        for (Channel channel : this.channels)
+        recycleOutgoingCommands(this.sentReliableCommands);
+        recycleOutgoingCommands(this.sentUnreliableCommands);
+        recycleOutgoingCommands(this.outgoingReliableCommands);
+        this.lastResend = null;
+        this.sentControlCommands.clear();
+        recycleOutgoingCommands(this.outgoingUnreliableCommands);
+        recycleIncomingCommands(this.dispatchedCommands);
+        Acknowledgement acknowledgement;
+        while ((acknowledgement = this.acknowledgements.poll()) != null)
+            this.host.acknowledgementPool.recycle(acknowledgement);
+        this.acknowledgementCount = 0;
+        if (this.channels != null)
+        {
+            for (Channel channel : this.channels)
+            {
+                channel.incomingReliableCommands.recycle(this.host.incomingCommandPool);
+                recycleIncomingCommands(channel.incomingUnreliableCommands);
+                if (channel.publisher != null)
+                    channel.publisher.close();
+            }
+        }
+        this.channels = null;
+        this.channelCount = 0;
+        this.heldChannels = 0;
+    }
+    
+    private void recycleOutgoingCommands(Queue<OutgoingCommand> queue)
+    {
+        OutgoingCommand outgoingCommand;
+        while ((outgoingCommand = queue.poll()) != null)
+        {
+            this.host.timeouts.cancel(outgoingCommand);
+            this.host.outgoingCommandPool.recycle(outgoingCommand);
+        }
+    }
+    
+    private void recycleOutgoingCommands(CommandQueue queue)
+    {
+        OutgoingCommand outgoingCommand;
+        while ((outgoingCommand = queue.poll()) != null)
         {
-            channel.incomingReliableCommands.clear();
-            channel.incomingUnreliableCommands.clear();
+            this.host.timeouts.cancel(outgoingCommand);
+            this.host.outgoingCommandPool.recycle(outgoingCommand);
         }
     }
     
-    @SuppressWarnings("static-access")
+    private void recycleIncomingCommands(Queue<IncomingCommand> queue)
+    {
+        IncomingCommand incomingCommand;
+        while ((incomingCommand = queue.poll()) != null)
+            this.host.incomingCommandPool.recycle(incomingCommand);
+    }
+    
+    void setupChannels(int channelCount)
+    {
+        this.channels = new ArrayList<Channel>(channelCount);
+        for (int i = 0; i < channelCount; i++)
+            this.channels.add(new Channel());
+        this.channelCount = channelCount;
+    }
+    
     void setupOutgoingCommand(OutgoingCommand command) throws EnetException
     {
-        Channel channel = this.channels.get(command.command.channelID());
-        this.outgoingDataTotal += command.command.length() + (command.fragmentLength & 0xFFFF);
-        if (command.command.channelID() == 0xFF)
+        int channelID = command.command.channelID();
+        Channel channel = channelID < this.channelCount ? this.channels.get(channelID) : null;
+        this.outgoingDataTotal += command.command.size() + (command.fragmentLength & 0xFFFF);
+        if (channelID == 0xFF)
         {
             this.outgoingReliableSequenceNumber++;
             command.reliableSequenceNumber = this.outgoingReliableSequenceNumber;
             command.unreliableSequenceNumber = 0;
         }
-        else if (command.command.flags().contains(Protocol.CommandFlag.Acknowledge))
+        else if (command.command.hasFlag(Protocol.CommandFlag.Acknowledge))
         {
             channel.outgoingReliableSequenceNumber++;
             channel.outgoingUnreliableSequenceNumber = 0;
             command.reliableSequenceNumber = channel.outgoingReliableSequenceNumber;
             command.unreliableSequenceNumber = 0;
         }
-        else if (command.command.flags().contains(Protocol.CommandFlag.Unsequenced))
+        else if (command.command.hasFlag(Protocol.CommandFlag.Unsequenced))
         {
             this.outgoingUnsequencedGroup++;
             command.reliableSequenceNumber = 0;
@@ -238,25 +508,42 @@ public class Peer extends ListNode<Peer>
         switch (command.command.command())
         {
         case SendUnreliable:
-            ((Protocol.SendUnreliable) command.command).setUnreliableSequenceNumber(command.unreliableSequenceNumber);
+            this.sendUnreliable.wrap(command.commandData, 0);
+            this.sendUnreliable.setUnreliableSequenceNumber(command.unreliableSequenceNumber);
             break;
             
         case SendUnsequenced:
-            ((Protocol.SendUnsequenced) command.command).setUnsequencedGroup(this.outgoingUnsequencedGroup);
+            this.sendUnsequenced.wrap(command.commandData, 0);
+            this.sendUnsequenced.setUnsequencedGroup(this.outgoingUnsequencedGroup);
             break;
         }
         
-        if (command.command.flags().contains(Protocol.CommandFlag.Acknowledge))
+        countQueued(command, 1);
+        if (command.command.hasFlag(Protocol.CommandFlag.Acknowledge))
             this.outgoingReliableCommands.add(command);
         else
             this.outgoingUnreliableCommands.add(command);
     }
 
-    OutgoingCommand enqueueOutgoingCommand(Protocol.CommandHeader command, Packet packet, int offset, short length)
+    /**
+     * Queues a command whose storage the caller has already filled in;
+     * sequence numbers are assigned here.
+     */
+    OutgoingCommand enqueueOutgoingCommand(OutgoingCommand outgoingCommand, Packet packet, int offset, short length)
+        throws EnetException
+    {
+        return enqueueRetainedCommand(outgoingCommand, packet != null ? packet.retain() : null, offset, length);
+    }
+    
+    /**
+     * Queues a command whose reference to the packet the caller has already
+     * taken.
+     */
+    private OutgoingCommand enqueueRetainedCommand(OutgoingCommand outgoingCommand, Packet packet, int offset,
+                                                   short length)
         throws EnetException
     {
-        OutgoingCommand outgoingCommand = new OutgoingCommand();
-        outgoingCommand.command = command;
+        outgoingCommand.peer = this;
         outgoingCommand.fragmentOffset = offset;
         outgoingCommand.fragmentLength = length;
         outgoingCommand.packet = packet;
@@ -264,8 +551,22 @@ public class Peer extends ListNode<Peer>
         return outgoingCommand;
     }
     
+    /**
+     * Disconnects the peer at once, without waiting for it to acknowledge.
+     * Like every request from a thread other than the one servicing the
+     * host, this is carried out on the service thread.
+     */
     public void disconnectNow(int data)
         throws IOException
+    {
+        if (this.host.enterDirect())
+            queueDisconnectNow(data);
+        else
+            this.host.submit(RequestRing.Kind.DISCONNECT_NOW, this, null, data, 0, 0);
+    }
+    
+    void queueDisconnectNow(int data)
+        throws IOException
     {
         if (this.state == State.DISCONNECTED)
             return;
@@ -274,154 +575,1061 @@ public class Peer extends ListNode<Peer>
             && this.state != State.DISCONNECTING)
         {
             this.resetQueues();
-            Protocol.Disconnect disconnect = new Protocol.Disconnect();
+            OutgoingCommand outgoingCommand = this.host.outgoingCommandPool.take();
+            Protocol.Disconnect disconnect = new Protocol.Disconnect(outgoingCommand.commandData, 0);
             disconnect.setCommand(Protocol.Command.Disconnect);
-            disconnect.setFlags(EnumSet.of(Protocol.CommandFlag.Unsequenced));
+            disconnect.setFlag(Protocol.CommandFlag.Unsequenced);
+            disconnect.setChannelID(0xFF);
             disconnect.setData(data);
-            this.enqueueOutgoingCommand(disconnect, null, 0, (short) 0);
-            this.host.flush();
+            this.enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
+            this.host.flushCommands();
         }
         
         this.reset();
     }
     
+    public void disconnect(int data)
+        throws IOException
+    {
+        if (this.host.enterDirect())
+            queueDisconnect(data);
+        else
+            this.host.submit(RequestRing.Kind.DISCONNECT, this, null, data, 0, 0);
+    }
+    
+    void queueDisconnect(int data)
+        throws IOException
+    {
+        if (this.state == State.DISCONNECTING
+            || this.state == State.DISCONNECTED
+            || this.state == State.ACKNOWLEDGING_DISCONNECT
+            || this.state == State.ZOMBIE)
+            return;
+        
+        this.resetQueues();
+        
+        OutgoingCommand outgoingCommand = this.host.outgoingCommandPool.take();
+        Protocol.Disconnect disconnect = new Protocol.Disconnect(outgoingCommand.commandData, 0);
+        disconnect.setCommand(Protocol.Command.Disconnect);
+        disconnect.setChannelID(0xFF);
+        disconnect.setData(data);
+        if (this.state == State.CONNECTED || this.state == State.DISCONNECT_LATER)
+            disconnect.setFlag(Protocol.CommandFlag.Acknowledge);
+        else
+            disconnect.setFlag(Protocol.CommandFlag.Unsequenced);
+        this.enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
+        
+        if (this.state == State.CONNECTED || this.state == State.DISCONNECT_LATER)
+            this.state = State.DISCONNECTING;
+        else
+        {
+            this.host.flushCommands();
+            this.reset();
+        }
+    }
+    
+    public void disconnectLater(int data)
+        throws IOException
+    {
+        if (this.host.enterDirect())
+            queueDisconnectLater(data);
+        else
+            this.host.submit(RequestRing.Kind.DISCONNECT_LATER, this, null, data, 0, 0);
+    }
+    
+    void queueDisconnectLater(int data)
+        throws IOException
+    {
+        if ((this.state == State.CONNECTED || this.state == State.DISCONNECT_LATER)
+            && !(this.outgoingReliableCommands.isEmpty()
+                 && this.outgoingUnreliableCommands.isEmpty()
+                 && this.sentReliableCommands.isEmpty()))
+        {
+            this.state = State.DISCONNECT_LATER;
+            this.eventData = data;
+        }
+        else
+            this.queueDisconnect(data);
+    }
+    
     public void ping()
         throws EnetException
+    {
+        if (this.host.enterDirect())
+            queuePing();
+        else
+        {
+            if (this.state != State.CONNECTED)
+                throw new EnetException("peer is not connected");
+            this.host.submit(RequestRing.Kind.PING, this, null, 0, 0, 0);
+        }
+    }
+    
+    void queuePing()
+        throws EnetException
     {
         if (this.state != State.CONNECTED)
             throw new EnetException("peer is not connected");
         
-        Protocol.Ping ping = new Protocol.Ping();
-        ping.setCommand(Protocol.Command.Ping);
-        ping.setChannelID(0xFF);
-        enqueueOutgoingCommand(ping, null, 0, (short) 0);
+        OutgoingCommand outgoingCommand = this.host.outgoingCommandPool.take();
+        outgoingCommand.command.setCommand(Protocol.Command.Ping);
+        outgoingCommand.command.setFlag(Protocol.CommandFlag.Acknowledge);
+        outgoingCommand.command.setChannelID(0xFF);
+        enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
     }
     
+    /**
+     * Takes the next packet dispatched to this peer, as ENet's
+     * enet_peer_receive does, or returns null if there is none. Threads
+     * that would rather wait for one use
+     * {@link #receive(int[], long, TimeUnit)}.
+     */
     public Packet receive(int[] channelID)
         throws EnetException
     {
-        if (this.dispatchedCommands.isEmpty())
+        IncomingCommand command = this.dispatchedCommands.poll();
+        if (command == null)
             return null;
         
-        IncomingCommand command = this.dispatchedCommands.remove();
         if (channelID != null)
-            channelID[0] = command.command.channelID();
+            channelID[0] = command.channelID;
         Packet packet = command.packet;
+        command.packet = null;
+        this.host.incomingCommandPool.recycle(command);
         return packet;
     }
     
-    public void send(int channelID, Packet packet)
+    /**
+     * Returns the publisher of the packets arriving on a channel, as
+     * {@link #publisher(int, Executor)} does, delivering on the common
+     * fork-join pool.
+     */
+    public Flow.Publisher<Packet> publisher(int channelID)
         throws EnetException
     {
-        if (this.state != State.CONNECTED)
-            throw new EnetException("peer not connected");
-        if (channelID < 0 || channelID >= this.channelCount)
-            throw new IllegalArgumentException("invalid channel ID");
+        return publisher(channelID, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Returns the publisher of the packets arriving on a channel, creating
+     * it on first use. From then on the channel's packets go to the
+     * publisher's one subscriber, on the given executor, rather than to
+     * {@link #receive} or RECEIVE events; ask for it while handling the
+     * peer's CONNECT event so that none are missed.
+     * 
+     * The subscriber's demand is the peer's backpressure. While the packets
+     * it has not asked for fill the buffer, sized by the enet.publisherbuffer
+     * preference, the channel's reliable packets wait in the channel and
+     * its unreliable ones are dropped, and the peer is told at once to
+     * shrink its window to the least there is. Up to enet.heldcommands
+     * reliable packets wait in the channel; past that the peer's are left
+     * unacknowledged, so a subscriber that stalls for longer than the
+     * peer's timeout disconnects it. The subscriber is completed when the
+     * peer disconnects.
+     */
+    public Flow.Publisher<Packet> publisher(int channelID, Executor executor)
+        throws EnetException
+    {
+        List<Channel> channels = this.channels;
+        if (channels == null || channelID < 0 || channelID >= channels.size())
+            throw new EnetException("no such channel: " + channelID);
         Channel channel = channels.get(channelID);
-        int fragmentLength = this.mtu - Protocol.Header.length() - Protocol.SendFragment.length();
-        if (this.host.checksum != null)
-            fragmentLength -= 4;
-        if (packet.length() > fragmentLength)
-        {
-            int fragmentCount = (packet.length() + fragmentLength + 1) / fragmentLength;
-            int fragmentNumber;
-            int fragmentOffset;
-            short startSequenceNumber;
-            List<OutgoingCommand> fragments = new ArrayList<OutgoingCommand>(fragmentCount);
-            Protocol.Command command = null;
-            EnumSet<Protocol.CommandFlag> flags = null;
-            if (!packet.flags().contains(Packet.Flag.RELIABLE)
-                && packet.flags().contains(Packet.Flag.UNRELIABLE_FRAGMENT)
-                && (channel.outgoingUnreliableSequenceNumber & 0xFFFF) < 0xFFFF)
+        synchronized (channel)
+        {
+            if (channel.publisher == null)
             {
-                command = Protocol.Command.SendUnreliable;
-                flags = EnumSet.noneOf(Protocol.CommandFlag.class);
-                startSequenceNumber = channel.outgoingUnreliableSequenceNumber;
+                channel.publisher = new ChannelPublisher(this, channelID, executor, this.host.publisherBufferSize);
+                this.publishersAdded = true;
             }
+            return channel.publisher;
+        }
+    }
+    
+    /**
+     * Holds packets dispatched to this peer for
+     * {@link #receive(int[], long, TimeUnit)} instead of returning them as
+     * RECEIVE events. Called while handling the peer's CONNECT event, or
+     * before connecting, no packet is returned as an event.
+     */
+    public void holdForReceive()
+    {
+        this.receiving = true;
+    }
+    
+    /**
+     * Waits up to the given time for the next packet dispatched to this
+     * peer. This is for threads other than the one servicing the host, such
+     * as one virtual thread per peer; waiting parks the thread rather than
+     * polling. Once any thread has called this, the peer's packets are held
+     * for it instead of being returned as RECEIVE events from
+     * {@link Host#service(int)}; call {@link #holdForReceive()} first to be
+     * sure none are returned as events.
+     * 
+     * @param channelID If not null, its first element is set to the
+     *  channel the packet arrived on.
+     * @return The packet, or null if none arrived in time.
+     * @throws EnetException once the peer has disconnected and every packet
+     *  dispatched before then has been received.
+     */
+    public Packet receive(int[] channelID, long timeout, TimeUnit unit)
+        throws EnetException, InterruptedException
+    {
+        holdForReceive();
+        IncomingCommand command = this.inbox.poll(unit.toNanos(timeout));
+        if (command == null)
+            return null;
+        
+        if (channelID != null)
+            channelID[0] = command.channelID;
+        Packet packet = command.packet;
+        command.packet = null;
+        this.host.incomingCommandPool.recycle(command);
+        return packet;
+    }
+    
+    Acknowledgement queueAcknowledgement(Protocol.CommandHeader command, int sentTime)
+    {
+        int channelID = command.channelID();
+        int reliableSequenceNumber = command.reliableSequenceNumber();
+        if (channelID < this.channelCount)
+        {
+            Channel channel = this.channels.get(channelID);
+            int incomingReliableSequenceNumber = channel.incomingReliableSequenceNumber & 0xFFFF;
+            int reliableWindow = reliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+            int currentWindow = incomingReliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+            
+            if (reliableSequenceNumber < incomingReliableSequenceNumber)
+                reliableWindow += RELIABLE_WINDOWS;
+            
+            if (reliableWindow >= currentWindow + FREE_RELIABLE_WINDOWS - 1
+                && reliableWindow <= currentWindow + FREE_RELIABLE_WINDOWS)
+                return null;
+        }
+        
+        Acknowledgement acknowledgement = this.host.acknowledgementPool.take();
+        if (this.acknowledgementCount++ == 0)
+            this.acknowledgementTime = this.host.serviceTime;
+        this.outgoingDataTotal += Protocol.Acknowledge.length();
+        acknowledgement.sentTime = sentTime;
+        acknowledgement.command = command.buffer.get(command.offset);
+        acknowledgement.channelID = channelID;
+        acknowledgement.reliableSequenceNumber = reliableSequenceNumber;
+        this.acknowledgements.add(acknowledgement);
+        return acknowledgement;
+    }
+    
+    /**
+     * Removes an acknowledged command from the sent (or, if it was queued
+     * for resending, the outgoing) reliable commands.
+     * 
+     * @return The command that was acknowledged, or {@link Command#None}.
+     */
+    Command removeSentReliableCommand(int reliableSequenceNumber, int channelID)
+        throws EnetException
+    {
+        OutgoingCommand outgoingCommand = sentCommands(channelID).get(reliableSequenceNumber);
+        if (outgoingCommand == null || outgoingCommand.command.channelID() != channelID)
+            return Command.None;
+        sentCommands(channelID).remove(reliableSequenceNumber);
+        
+        // Sent commands wait in the timing wheel; those that timed out have
+        // left it for the outgoing queue.
+        boolean wasSent = this.host.timeouts.isScheduled(outgoingCommand);
+        if (wasSent)
+        {
+            this.sentReliableCommands.remove(outgoingCommand);
+            this.host.timeouts.cancel(outgoingCommand);
+        }
+        else
+            removeOutgoingReliableCommand(outgoingCommand);
+        
+        if (channelID < this.channelCount)
+        {
+            Channel channel = this.channels.get(channelID);
+            int reliableWindow = reliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+            if (channel.reliableWindows[reliableWindow] > 0)
+            {
+                channel.reliableWindows[reliableWindow]--;
+                if (channel.reliableWindows[reliableWindow] == 0)
+                    channel.usedReliableWindows &= ~(1 << reliableWindow);
+            }
+        }
+        
+        Command commandNumber = outgoingCommand.command.command();
+        if (outgoingCommand.packet != null && wasSent)
+            this.reliableDataInTransit -= outgoingCommand.fragmentLength & 0xFFFF;
+        this.host.outgoingCommandPool.recycle(outgoingCommand);
+        
+        OutgoingCommand front = this.sentReliableCommands.peek();
+        if (front != null)
+            this.nextTimeout = front.sentTime + front.roundTripTimeout;
+        return commandNumber;
+    }
+    
+    /**
+     * Keeps a channel's count of queued commands, which metrics report, in
+     * step with the outgoing queues.
+     */
+    void countQueued(OutgoingCommand outgoingCommand, int delta)
+    {
+        int channelID = outgoingCommand.command.channelID();
+        if (channelID < this.channelCount)
+            this.channels.get(channelID).queuedCommands += delta;
+    }
+    
+    /**
+     * Returns the index of the reliable commands sent on a channel, or of
+     * those sent on none.
+     */
+    SentCommandRing sentCommands(int channelID)
+    {
+        if (channelID < this.channelCount)
+            return this.channels.get(channelID).sentReliableCommands;
+        return this.sentControlCommands;
+    }
+    
+    /**
+     * Takes a command out of the outgoing reliable commands, keeping track
+     * of the last of those waiting to be resent.
+     */
+    void removeOutgoingReliableCommand(OutgoingCommand outgoingCommand)
+    {
+        countQueued(outgoingCommand, -1);
+        if (outgoingCommand == this.lastResend)
+            this.lastResend = outgoingCommand.queuePrevious;
+        this.outgoingReliableCommands.remove(outgoingCommand);
+    }
+    
+    private void scheduleDispatch()
+    {
+        if (!this.needsDispatch)
+        {
+            this.host.dispatchQueue.add(this);
+            this.needsDispatch = true;
+        }
+    }
+    
+    /**
+     * Offers a command's packet to the channel's publisher, holding the
+     * channel if it has no room.
+     */
+    private boolean publish(Channel channel, ChannelPublisher publisher, IncomingCommand incomingCommand)
+        throws EnetException
+    {
+        if (publisher.offer(incomingCommand.packet))
+        {
+            incomingCommand.packet = null;
+            return true;
+        }
+        if (!channel.held)
+        {
+            channel.held = true;
+            if (this.heldChannels++ == 0)
+                this.host.advertiseBandwidthLimit(this);
+        }
+        return false;
+    }
+    
+    /**
+     * Moves packets dispatched before their channel had a publisher over to
+     * it, in order; called on the service thread.
+     */
+    void publishDispatched()
+    {
+        this.publishersAdded = false;
+        for (Iterator<IncomingCommand> it = this.dispatchedCommands.iterator(); it.hasNext(); )
+        {
+            IncomingCommand incomingCommand = it.next();
+            ChannelPublisher publisher = this.channels.get(incomingCommand.channelID).publisher;
+            if (publisher == null)
+                continue;
+            it.remove();
+            publisher.add(incomingCommand.packet);
+            incomingCommand.packet = null;
+            this.host.incomingCommandPool.recycle(incomingCommand);
+        }
+    }
+    
+    /**
+     * Carries on dispatching a held channel once its subscriber has made
+     * room; called on the service thread.
+     */
+    void resumeChannel(int channelID)
+        throws EnetException
+    {
+        if (channelID >= this.channelCount)
+            return;
+        Channel channel = this.channels.get(channelID);
+        if (channel.held)
+        {
+            channel.held = false;
+            if (--this.heldChannels == 0)
+                this.host.advertiseBandwidthLimit(this);
+        }
+        dispatchIncomingReliableCommands(channel);
+        dispatchIncomingUnreliableCommands(channel);
+    }
+    
+    void dispatchIncomingReliableCommands(Channel channel)
+        throws EnetException
+    {
+        boolean dispatched = false;
+        IncomingCommand incomingCommand;
+        while ((incomingCommand = channel.incomingReliableCommands.get((channel.incomingReliableSequenceNumber + 1) & 0xFFFF)) != null)
+        {
+            if (incomingCommand.fragmentsRemaining > 0)
+                break;
+            
+            // Left queued, with the window where it is, while the
+            // subscriber catches up.
+            ChannelPublisher publisher = channel.publisher;
+            if (publisher != null && !publish(channel, publisher, incomingCommand))
+                break;
+            
+            channel.incomingReliableCommands.remove(incomingCommand.reliableSequenceNumber & 0xFFFF);
+            channel.incomingReliableSequenceNumber = incomingCommand.reliableSequenceNumber;
+            if (incomingCommand.fragmentCount > 0)
+                channel.incomingReliableSequenceNumber += incomingCommand.fragmentCount - 1;
+            
+            if (publisher != null)
+                this.host.incomingCommandPool.recycle(incomingCommand);
             else
+                this.dispatchedCommands.add(incomingCommand);
+            dispatched = true;
+        }
+        
+        if (!dispatched)
+            return;
+        
+        channel.incomingUnreliableSequenceNumber = 0;
+        scheduleDispatch();
+        
+        if (!channel.incomingUnreliableCommands.isEmpty())
+            dispatchIncomingUnreliableCommands(channel);
+    }
+    
+    void dispatchIncomingUnreliableCommands(Channel channel)
+        throws EnetException
+    {
+        int incomingReliableSequenceNumber = channel.incomingReliableSequenceNumber & 0xFFFF;
+        boolean dispatched = false;
+        
+        for (Iterator<IncomingCommand> it = channel.incomingUnreliableCommands.iterator(); it.hasNext(); )
+        {
+            IncomingCommand incomingCommand = it.next();
+            int reliableSequenceNumber = incomingCommand.reliableSequenceNumber & 0xFFFF;
+            
+            if ((incomingCommand.command & Protocol.COMMAND_MASK) != Command.SendUnsequenced.value)
             {
-                command = Protocol.Command.SendFragment;
-                flags = EnumSet.of(Protocol.CommandFlag.Acknowledge);
-                startSequenceNumber = channel.outgoingReliableSequenceNumber;
+                if (reliableSequenceNumber == incomingReliableSequenceNumber)
+                {
+                    // Incomplete fragments wait here; anything newer that is
+                    // delivered past them makes them stale (see below).
+                    if (incomingCommand.fragmentsRemaining > 0)
+                        continue;
+                    channel.incomingUnreliableSequenceNumber = incomingCommand.unreliableSequenceNumber;
+                }
+                else
+                {
+                    int reliableWindow = reliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+                    int currentWindow = incomingReliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+                    if (reliableSequenceNumber < incomingReliableSequenceNumber)
+                        reliableWindow += RELIABLE_WINDOWS;
+                    // Still waiting on the reliable command this one follows.
+                    if (reliableWindow >= currentWindow && reliableWindow < currentWindow + FREE_RELIABLE_WINDOWS - 1)
+                        break;
+                    it.remove();
+                    this.host.incomingCommandPool.recycle(incomingCommand);
+                    continue;
+                }
             }
             
-            fragmentOffset = 0;
-            for (fragmentNumber = 0; fragmentOffset < packet.length(); fragmentNumber++)
+            it.remove();
+            ChannelPublisher publisher = channel.publisher;
+            if (publisher != null)
             {
-                if (packet.length() - fragmentOffset < fragmentLength)
-                    fragmentLength = packet.length() - fragmentOffset;
-                OutgoingCommand fragment = new OutgoingCommand();
-                fragment.fragmentOffset = fragmentOffset;
-                fragment.fragmentLength = (short) fragmentLength;
-                fragment.packet = packet;
-                Protocol.SendFragment sendFragment = new Protocol.SendFragment();
-                sendFragment.setCommand(command);
-                sendFragment.setFlags(flags);
-                sendFragment.setChannelID(channelID);
-                sendFragment.setStartSequenceNumber(startSequenceNumber);
-                sendFragment.setDataLength(fragmentLength);
-                sendFragment.setFragmentCount(fragmentCount);
-                sendFragment.setFragmentNumber(fragmentNumber);
-                sendFragment.setTotalLength(packet.length());
-                sendFragment.setFragmentOffset(fragmentOffset);
-                fragment.command = sendFragment;
-                fragments.add(fragment);
-                fragmentOffset += fragmentLength;
+                // Dropped if the subscriber has no room, as if throttled.
+                publish(channel, publisher, incomingCommand);
+                this.host.incomingCommandPool.recycle(incomingCommand);
+            }
+            else
+                this.dispatchedCommands.add(incomingCommand);
+            dispatched = true;
+        }
+        
+        if (!dispatched)
+            return;
+        
+        scheduleDispatch();
+        
+        // Drop incomplete fragments that newer commands have overtaken.
+        for (Iterator<IncomingCommand> it = channel.incomingUnreliableCommands.iterator(); it.hasNext(); )
+        {
+            IncomingCommand incomingCommand = it.next();
+            if ((incomingCommand.reliableSequenceNumber & 0xFFFF) != incomingReliableSequenceNumber)
+                break;
+            if ((incomingCommand.unreliableSequenceNumber & 0xFFFF) <= (channel.incomingUnreliableSequenceNumber & 0xFFFF))
+            {
+                it.remove();
+                this.host.incomingCommandPool.recycle(incomingCommand);
+            }
+        }
+    }
+    
+    /**
+     * Checks an unsequenced group against the groups received, as ENet's
+     * handle_send_unsequenced does. The window covers
+     * UNSEQUENCED_WINDOW_SIZE groups from incomingUnsequencedGroup, one bit
+     * each; a group up to FREE_UNSEQUENCED_WINDOWS windows ahead moves the
+     * window to its own and clears the bitmap, older groups are dropped.
+     * The group is only marked received, by
+     * {@link #markUnsequencedGroup}, once its command has been queued.
+     *
+     * @return false if the group is a duplicate or out of window.
+     */
+    boolean acceptUnsequencedGroup(int unsequencedGroup)
+    {
+        int index = unsequencedGroup & (UNSEQUENCED_WINDOW_SIZE - 1);
+        int incomingGroup = this.incomingUnsequencedGroup & 0xFFFF;
+        
+        if (unsequencedGroup < incomingGroup)
+            unsequencedGroup += 0x10000;
+        if (unsequencedGroup >= incomingGroup + FREE_UNSEQUENCED_WINDOWS * UNSEQUENCED_WINDOW_SIZE)
+            return false;
+        
+        int windowGroup = (unsequencedGroup - index) & 0xFFFF;
+        if (windowGroup != incomingGroup)
+        {
+            this.incomingUnsequencedGroup = (short) windowGroup;
+            Arrays.fill(this.unsequencedWindow, 0);
+        }
+        else if ((this.unsequencedWindow[index >>> 5] & (1 << index)) != 0)
+            return false;
+        
+        return true;
+    }
+    
+    /**
+     * Marks a group that {@link #acceptUnsequencedGroup} accepted as
+     * received.
+     */
+    void markUnsequencedGroup(int unsequencedGroup)
+    {
+        int index = unsequencedGroup & (UNSEQUENCED_WINDOW_SIZE - 1);
+        this.unsequencedWindow[index >>> 5] |= 1 << index;
+    }
+    
+    /**
+     * Queues a received command on its channel in sequence order, copying
+     * its data out of the receive buffer, and dispatches whatever became
+     * deliverable. The first fragment of a packet queues a command whose
+     * packet is allocated at the total length, with data null; the
+     * fragments are then copied in by {@link #receiveFragment}.
+     * 
+     * @return The queued command, a shared placeholder if the command was
+     *  a duplicate or out of window, or null on error.
+     */
+    IncomingCommand queueIncomingCommand(Protocol.CommandHeader command, ByteBuffer data, int dataOffset, int dataLength,
+                                         Packet.Flag flag, int fragmentCount)
+        throws EnetException
+    {
+        Channel channel = this.channels.get(command.channelID());
+        int incomingReliableSequenceNumber = channel.incomingReliableSequenceNumber & 0xFFFF;
+        int reliableSequenceNumber = 0;
+        int unreliableSequenceNumber = 0;
+        Command commandNumber = command.command();
+        ListIterator<IncomingCommand> position = null;
+        
+        if (this.state == State.DISCONNECT_LATER)
+            return discardIncomingCommand(fragmentCount);
+        
+        if (commandNumber != Command.SendUnsequenced)
+        {
+            reliableSequenceNumber = command.reliableSequenceNumber();
+            int reliableWindow = reliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+            int currentWindow = incomingReliableSequenceNumber / RELIABLE_WINDOW_SIZE;
+            
+            if (reliableSequenceNumber < incomingReliableSequenceNumber)
+                reliableWindow += RELIABLE_WINDOWS;
+            
+            if (reliableWindow < currentWindow || reliableWindow >= currentWindow + FREE_RELIABLE_WINDOWS - 1)
+                return discardIncomingCommand(fragmentCount);
+        }
+        
+        switch (commandNumber)
+        {
+        case SendFragment:
+        case SendReliable:
+            if (reliableSequenceNumber == incomingReliableSequenceNumber
+                || channel.incomingReliableCommands.get(reliableSequenceNumber) != null)
+                return discardIncomingCommand(fragmentCount);
+            // A channel with a publisher keeps no more than enet.heldcommands
+            // waiting here, whether for its subscriber or for a gap; the rest
+            // go unacknowledged, for the peer to resend, and a peer left
+            // unacknowledged past its timeout disconnects. The next command
+            // in order is always taken, as it is what frees the rest.
+            if (channel.publisher != null
+                && channel.incomingReliableCommands.size() >= this.host.heldCommandLimit
+                && reliableSequenceNumber != ((incomingReliableSequenceNumber + 1) & 0xFFFF))
+            {
+                this.host.commandRefused = true;
+                return discardedCommand;
+            }
+            break;
+        
+        case SendUnreliable:
+        case SendUnreliableFragment:
+            if (commandNumber == Command.SendUnreliable)
+                unreliableSequenceNumber = ((Protocol.SendUnreliable) command).unreliableSequenceNumber();
+            else
+                unreliableSequenceNumber = ((Protocol.SendFragment) command).startSequenceNumber();
+            
+            if (reliableSequenceNumber == incomingReliableSequenceNumber
+                && unreliableSequenceNumber <= (channel.incomingUnreliableSequenceNumber & 0xFFFF))
+                return discardIncomingCommand(fragmentCount);
+            
+            position = channel.incomingUnreliableCommands.listIterator(channel.incomingUnreliableCommands.size());
+            while (position.hasPrevious())
+            {
+                IncomingCommand incomingCommand = position.previous();
+                int sequenceNumber = incomingCommand.reliableSequenceNumber & 0xFFFF;
+                
+                if ((incomingCommand.command & Protocol.COMMAND_MASK) == Command.SendUnsequenced.value)
+                    continue;
+                
+                if (reliableSequenceNumber >= incomingReliableSequenceNumber)
+                {
+                    if (sequenceNumber < incomingReliableSequenceNumber)
+                        continue;
+                }
+                else if (sequenceNumber >= incomingReliableSequenceNumber)
+                {
+                    position.next();
+                    break;
+                }
+                
+                if (sequenceNumber < reliableSequenceNumber)
+                {
+                    position.next();
+                    break;
+                }
+                
+                if (sequenceNumber > reliableSequenceNumber)
+                    continue;
+                
+                if ((incomingCommand.unreliableSequenceNumber & 0xFFFF) <= unreliableSequenceNumber)
+                {
+                    if ((incomingCommand.unreliableSequenceNumber & 0xFFFF) < unreliableSequenceNumber)
+                    {
+                        position.next();
+                        break;
+                    }
+                    return discardIncomingCommand(fragmentCount);
+                }
+            }
+            break;
+        
+        case SendUnsequenced:
+            position = channel.incomingUnreliableCommands.listIterator(channel.incomingUnreliableCommands.size());
+            break;
+        
+        default:
+            return discardIncomingCommand(fragmentCount);
+        }
+        
+        IncomingCommand incomingCommand = this.host.incomingCommandPool.take();
+        incomingCommand.reliableSequenceNumber = (short) command.reliableSequenceNumber();
+        incomingCommand.unreliableSequenceNumber = (short) unreliableSequenceNumber;
+        incomingCommand.command = command.buffer.get(command.offset);
+        incomingCommand.channelID = command.channelID();
+        incomingCommand.fragmentCount = fragmentCount;
+        incomingCommand.fragmentsRemaining = fragmentCount;
+        if (fragmentCount > 0)
+        {
+            int words = (fragmentCount + 31) / 32;
+            if (incomingCommand.fragments == null || incomingCommand.fragments.length < words)
+                incomingCommand.fragments = new int[words];
+            else
+                Arrays.fill(incomingCommand.fragments, 0, words, 0);
+        }
+        incomingCommand.packet = new Packet(this.host.packetArena, dataLength, flag);
+        if (data != null)
+            copyIn(incomingCommand.packet.buffer, 0, data, dataOffset, dataLength);
+        if (position != null)
+            position.add(incomingCommand);
+        else if (!channel.incomingReliableCommands.put(incomingCommand,
+                                                       (reliableSequenceNumber - incomingReliableSequenceNumber) & 0xFFFF))
+        {
+            this.host.incomingCommandPool.recycle(incomingCommand);
+            return discardIncomingCommand(fragmentCount);
+        }
+        
+        switch (commandNumber)
+        {
+        case SendFragment:
+        case SendReliable:
+            dispatchIncomingReliableCommands(channel);
+            break;
+        
+        default:
+            dispatchIncomingUnreliableCommands(channel);
+            break;
+        }
+        
+        return incomingCommand;
+    }
+    
+    /**
+     * Copies a fragment into the packet that startCommand is reassembling,
+     * unless its bit shows it has already arrived, and dispatches the packet
+     * once the last fragment is in.
+     */
+    void receiveFragment(IncomingCommand startCommand, int fragmentNumber, int fragmentOffset,
+                         ByteBuffer data, int dataOffset, int fragmentLength)
+        throws EnetException
+    {
+        int word = fragmentNumber >>> 5;
+        int bit = 1 << (fragmentNumber & 31);
+        if ((startCommand.fragments[word] & bit) != 0)
+            return;
+        
+        startCommand.fragments[word] |= bit;
+        startCommand.fragmentsRemaining--;
+        
+        ByteBuffer packetData = startCommand.packet.buffer;
+        copyIn(packetData, fragmentOffset, data, dataOffset, Math.min(fragmentLength, packetData.capacity() - fragmentOffset));
+        
+        if (startCommand.fragmentsRemaining > 0)
+            return;
+        
+        Channel channel = this.channels.get(startCommand.channelID);
+        if ((startCommand.command & Protocol.COMMAND_MASK) == Command.SendFragment.value)
+            dispatchIncomingReliableCommands(channel);
+        else
+            dispatchIncomingUnreliableCommands(channel);
+    }
+    
+    /**
+     * Copies length bytes of data into a packet's buffer at offset, leaving
+     * the buffer's position and the data's limit as they were.
+     */
+    private static void copyIn(ByteBuffer packetData, int offset, ByteBuffer data, int dataOffset, int length)
+    {
+        int limit = data.limit();
+        data.limit(dataOffset + length);
+        data.position(dataOffset);
+        packetData.position(offset);
+        packetData.put(data);
+        packetData.position(0);
+        data.limit(limit);
+    }
+    
+    private IncomingCommand discardIncomingCommand(int fragmentCount)
+    {
+        if (fragmentCount > 0)
+            return null;
+        return discardedCommand;
+    }
+    
+    /**
+     * Queues a packet on a channel. From the thread servicing the host the
+     * packet is queued at once; from any other thread the request is handed
+     * to the service thread, which queues it unless the peer has
+     * disconnected in the meantime.
+     */
+    public void send(int channelID, Packet packet)
+        throws EnetException
+    {
+        if (this.host.enterDirect())
+            queuePacket(channelID, packet);
+        else
+        {
+            checkSend(channelID, packet);
+            this.host.submit(RequestRing.Kind.SEND, this, packet, channelID, 0, 0);
+        }
+    }
+    
+    /**
+     * Queues a packet as {@link #send} does, returning a future completed
+     * once the service thread has queued it, or completed exceptionally if
+     * it could not, for instance because the peer disconnected first. The
+     * caller does not wait for the service thread.
+     */
+    public CompletableFuture<Void> sendAsync(int channelID, Packet packet)
+    {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        try
+        {
+            if (this.host.enterDirect())
+            {
+                queuePacket(channelID, packet);
+                future.complete(null);
+            }
+            else
+            {
+                checkSend(channelID, packet);
+                this.host.submit(RequestRing.Kind.SEND, this, packet, channelID, 0, 0, future);
             }
+        }
+        catch (EnetException e)
+        {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    /**
+     * Called on the caller's thread before a send is submitted, and again on
+     * the service thread when it is queued, since the peer may disconnect in
+     * between. Reads the state first; see {@link #state}.
+     */
+    private void checkSend(int channelID, Packet packet)
+        throws EnetException
+    {
+        if (this.state != State.CONNECTED)
+            throw new EnetException("peer not connected");
+        if (channelID < 0 || channelID >= this.channelCount)
+            throw new IllegalArgumentException("invalid channel ID");
+        int fragmentLength = fragmentLength();
+        if (((long) packet.length() + fragmentLength - 1) / fragmentLength > Protocol.MAXIMUM_FRAGMENT_COUNT)
+            throw new EnetException("packet too large");
+    }
+    
+    private int fragmentLength()
+    {
+        int fragmentLength = this.mtu - Protocol.Header.length() - Protocol.SendFragment.length();
+        if (this.host.checksum != null)
+            fragmentLength -= Protocol.CHECKSUM_SIZE;
+        return fragmentLength;
+    }
+    
+    void queuePacket(int channelID, Packet packet)
+        throws EnetException
+    {
+        checkSend(channelID, packet);
+        Channel channel = channels.get(channelID);
+        int packetLength = packet.length();
+        int fragmentLength = fragmentLength();
+        if (packetLength > fragmentLength)
+        {
+            int fragmentCount = (packetLength + fragmentLength - 1) / fragmentLength;
+            Protocol.Command command = sendCommand(packet, channel, true);
+            int startSequenceNumber = startSequenceNumber(command, channel);
             
-            for (OutgoingCommand cmd : fragments)
+            // Fragments are views of the packet; their data is copied
+            // straight from it into each datagram they go out in.
+            int fragmentOffset = 0;
+            for (int fragmentNumber = 0; fragmentOffset < packetLength; fragmentNumber++)
             {
-                this.setupOutgoingCommand(cmd);
+                if (packetLength - fragmentOffset < fragmentLength)
+                    fragmentLength = packetLength - fragmentOffset;
+                OutgoingCommand fragment = this.host.outgoingCommandPool.take();
+                encodeFragment(fragment.commandData, 0, command, channelID, fragmentCount, fragmentNumber,
+                               fragmentLength, packetLength, fragmentOffset);
+                this.sendFragment.setStartSequenceNumber(startSequenceNumber);
+                enqueueOutgoingCommand(fragment, packet, fragmentOffset, (short) fragmentLength);
+                fragmentOffset += fragmentLength;
             }
             return;
         }
-        Protocol.CommandHeader command = null;
+        OutgoingCommand outgoingCommand = this.host.outgoingCommandPool.take();
+        encodeSend(outgoingCommand.commandData, 0, sendCommand(packet, channel, false), channelID, packetLength);
+        this.enqueueOutgoingCommand(outgoingCommand, packet, 0, (short) packetLength);
+    }
+    
+    /**
+     * Queues a packet being broadcast, copying commands encoded once for
+     * every peer that shares this peer's fragment layout; only the sequence
+     * numbers are this peer's own. As in ENet, a peer the packet cannot go
+     * to is skipped.
+     * 
+     * @return The template to pass on to the next peer.
+     */
+    CommandTemplate queueBroadcast(CommandTemplate template, int channelID, Packet packet)
+        throws EnetException
+    {
+        if (this.state != State.CONNECTED || channelID < 0 || channelID >= this.channelCount)
+            return template;
+        int fragmentLength = fragmentLength();
+        // Peers nearly always share an MTU; if not, the layout is redone.
+        if (template == null || template.fragmentLength != fragmentLength)
+            template = new CommandTemplate(packet, channelID, fragmentLength);
+        if (template.fragmentCount > Protocol.MAXIMUM_FRAGMENT_COUNT)
+            return template;
+        
+        Channel channel = this.channels.get(channelID);
+        int packetLength = packet.length();
+        boolean fragmented = template.fragmentCount > 0;
+        Protocol.Command command = sendCommand(packet, channel, fragmented);
+        byte[] encoded = template.encoded(command);
+        if (encoded == null)
+            encoded = encodeTemplate(template, command);
         
-        if (packet.flags().contains(Packet.Flag.UNSEQUENCED)
-            && !packet.flags().contains(Packet.Flag.RELIABLE))
+        if (!fragmented)
         {
-            Protocol.SendUnsequenced sendUnsequenced = new Protocol.SendUnsequenced();
-            sendUnsequenced.setCommand(Protocol.Command.SendUnsequenced);
-            sendUnsequenced.setFlags(EnumSet.of(Protocol.CommandFlag.Unsequenced));
-            sendUnsequenced.setDataLength(packet.length());
-            command = sendUnsequenced;
+            OutgoingCommand outgoingCommand = this.host.outgoingCommandPool.take();
+            System.arraycopy(encoded, 0, outgoingCommand.commandData.array(), 0, encoded.length);
+            enqueueOutgoingCommand(outgoingCommand, packet, 0, (short) packetLength);
+            return template;
         }
-        else if (packet.flags().contains(Packet.Flag.RELIABLE)
-                 && (channel.outgoingUnreliableSequenceNumber & 0xFFFF) < 0xFFFF)
+        
+        int startSequenceNumber = startSequenceNumber(command, channel);
+        int size = Protocol.SendFragment.length();
+        // The broadcast holds a reference throughout, so the fragments'
+        // references can be taken in one step.
+        packet.retain(template.fragmentCount);
+        int fragmentOffset = 0;
+        for (int fragmentNumber = 0; fragmentNumber < template.fragmentCount; fragmentNumber++)
         {
-            Protocol.SendReliable sendReliable = new Protocol.SendReliable();
-            sendReliable.setCommand(Protocol.Command.SendReliable);
-            sendReliable.setFlags(EnumSet.of(Protocol.CommandFlag.Acknowledge));
-            sendReliable.setDataLength(packet.length());
-            command = sendReliable;
+            OutgoingCommand fragment = this.host.outgoingCommandPool.take();
+            System.arraycopy(encoded, fragmentNumber * size, fragment.commandData.array(), 0, size);
+            this.sendFragment.wrap(fragment.commandData, 0);
+            this.sendFragment.setStartSequenceNumber(startSequenceNumber);
+            fragmentLength = Math.min(template.fragmentLength, packetLength - fragmentOffset);
+            enqueueRetainedCommand(fragment, packet, fragmentOffset, (short) fragmentLength);
+            fragmentOffset += fragmentLength;
+        }
+        return template;
+    }
+    
+    private byte[] encodeTemplate(CommandTemplate template, Protocol.Command command)
+    {
+        int packetLength = template.packet.length();
+        ByteBuffer buffer;
+        if (template.fragmentCount == 0)
+        {
+            buffer = ByteBuffer.allocate(Protocol.commandSize(command.value));
+            encodeSend(buffer, 0, command, template.channelID, packetLength);
         }
         else
         {
-            Protocol.SendUnreliable sendUnreliable = new Protocol.SendUnreliable();
-            sendUnreliable.setCommand(Protocol.Command.SendUnreliable);
-            sendUnreliable.setFlags(EnumSet.noneOf(Protocol.CommandFlag.class));
-            sendUnreliable.setDataLength(packet.length());
-            command = sendUnreliable;
+            int size = Protocol.SendFragment.length();
+            buffer = ByteBuffer.allocate(template.fragmentCount * size);
+            for (int fragmentNumber = 0; fragmentNumber < template.fragmentCount; fragmentNumber++)
+            {
+                int fragmentOffset = fragmentNumber * template.fragmentLength;
+                encodeFragment(buffer, fragmentNumber * size, command, template.channelID, template.fragmentCount,
+                               fragmentNumber, Math.min(template.fragmentLength, packetLength - fragmentOffset),
+                               packetLength, fragmentOffset);
+            }
         }
+        template.setEncoded(command, buffer.array());
+        return buffer.array();
+    }
+    
+    /**
+     * Picks the command a packet is sent as, as enet_peer_send does:
+     * unreliable packets go reliable once the channel's unreliable sequence
+     * numbers run out.
+     */
+    private static Protocol.Command sendCommand(Packet packet, Channel channel, boolean fragmented)
+    {
+        boolean reliable = packet.flags.contains(Packet.Flag.RELIABLE);
+        boolean unreliableExhausted = (channel.outgoingUnreliableSequenceNumber & 0xFFFF) >= 0xFFFF;
+        if (fragmented)
+        {
+            if (!reliable && packet.flags.contains(Packet.Flag.UNRELIABLE_FRAGMENT) && !unreliableExhausted)
+                return Protocol.Command.SendUnreliableFragment;
+            return Protocol.Command.SendFragment;
+        }
+        if (packet.flags.contains(Packet.Flag.UNSEQUENCED) && !reliable)
+            return Protocol.Command.SendUnsequenced;
+        if (reliable || unreliableExhausted)
+            return Protocol.Command.SendReliable;
+        return Protocol.Command.SendUnreliable;
+    }
+    
+    private static int startSequenceNumber(Protocol.Command command, Channel channel)
+    {
+        if (command == Protocol.Command.SendUnreliableFragment)
+            return (channel.outgoingUnreliableSequenceNumber + 1) & 0xFFFF;
+        return (channel.outgoingReliableSequenceNumber + 1) & 0xFFFF;
+    }
+    
+    /**
+     * Encodes an unfragmented send command; sequence numbers are filled in
+     * when it is queued.
+     */
+    private void encodeSend(ByteBuffer buffer, int offset, Protocol.Command command, int channelID, int dataLength)
+    {
+        switch (command)
+        {
+        case SendUnsequenced:
+            this.sendUnsequenced.wrap(buffer, offset);
+            this.sendUnsequenced.setCommand(command);
+            this.sendUnsequenced.setFlag(Protocol.CommandFlag.Unsequenced);
+            this.sendUnsequenced.setChannelID(channelID);
+            this.sendUnsequenced.setDataLength(dataLength);
+            break;
+        
+        case SendReliable:
+            this.sendReliable.wrap(buffer, offset);
+            this.sendReliable.setCommand(command);
+            this.sendReliable.setFlag(Protocol.CommandFlag.Acknowledge);
+            this.sendReliable.setChannelID(channelID);
+            this.sendReliable.setDataLength(dataLength);
+            break;
         
-        command.setChannelID(channelID);
-        this.enqueueOutgoingCommand(command, packet, 0, (short) packet.length());
+        default:
+            this.sendUnreliable.wrap(buffer, offset);
+            this.sendUnreliable.setCommand(command);
+            this.sendUnreliable.setChannelID(channelID);
+            this.sendUnreliable.setDataLength(dataLength);
+            break;
+        }
+    }
+    
+    /**
+     * Encodes a fragment, leaving sendFragment pointing at it so that the
+     * start sequence number can be filled in.
+     */
+    private void encodeFragment(ByteBuffer buffer, int offset, Protocol.Command command, int channelID,
+                                int fragmentCount, int fragmentNumber, int dataLength, int totalLength,
+                                int fragmentOffset)
+    {
+        Protocol.SendFragment sendFragment = this.sendFragment;
+        sendFragment.wrap(buffer, offset);
+        sendFragment.setCommand(command);
+        if (command == Protocol.Command.SendFragment)
+            sendFragment.setFlag(Protocol.CommandFlag.Acknowledge);
+        sendFragment.setChannelID(channelID);
+        sendFragment.setDataLength(dataLength);
+        sendFragment.setFragmentCount(fragmentCount);
+        sendFragment.setFragmentNumber(fragmentNumber);
+        sendFragment.setTotalLength(totalLength);
+        sendFragment.setFragmentOffset(fragmentOffset);
+    }
+    
+    void removeSentUnreliableCommands()
+    {
+        recycleOutgoingCommands(this.sentUnreliableCommands);
     }
     
     public void throttleConfigure(int interval, int acceleration, int deceleration)
         throws EnetException
+    {
+        if (this.host.enterDirect())
+            queueThrottleConfigure(interval, acceleration, deceleration);
+        else
+            this.host.submit(RequestRing.Kind.THROTTLE_CONFIGURE, this, null, interval, acceleration, deceleration);
+    }
+    
+    void queueThrottleConfigure(int interval, int acceleration, int deceleration)
+        throws EnetException
     {
         this.packetThrottleInterval = interval;
         this.packetThrottleAcceleration = acceleration;
         this.packetThrottleDeceleration = deceleration;
         
-        Protocol.ThrottleConfigure command = new Protocol.ThrottleConfigure();
+        OutgoingCommand outgoingCommand = this.host.outgoingCommandPool.take();
+        Protocol.ThrottleConfigure command = new Protocol.ThrottleConfigure(outgoingCommand.commandData, 0);
         command.setCommand(Protocol.Command.ThrottleConfigure);
+        command.setFlag(Protocol.CommandFlag.Acknowledge);
         command.setChannelID(0xFF);
         command.setPacketThrottleInterval(interval);
         command.setPacketThrottleAcceleration(acceleration);
         command.setPacketThrottleDeceleration(deceleration);
-        this.enqueueOutgoingCommand(command, null, 0, (short) 0);
+        this.enqueueOutgoingCommand(outgoingCommand, null, 0, (short) 0);
     }
     
     public int throttle(int rtt)
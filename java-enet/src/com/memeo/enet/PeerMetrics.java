@@ -0,0 +1,182 @@
+package com.memeo.enet;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A snapshot of one peer's link statistics, taken by the host's service
+ * thread.
+ *
+ * @see HostMetrics
+ */
+public class PeerMetrics
+{
+    private final int peerID;
+    private final InetSocketAddress address;
+    private final Peer.State state;
+    private final int roundTripTime;
+    private final int roundTripTimeVariance;
+    private final int packetLoss;
+    private final int packetLossVariance;
+    private final int packetThrottle;
+    private final int packetThrottleLimit;
+    private final int reliableDataInTransit;
+    private final int windowSize;
+    private final int mtu;
+    private final int incomingBandwidth;
+    private final int outgoingBandwidth;
+    private final int[] incomingQueueDepths;
+    private final int[] outgoingQueueDepths;
+    private final int[] retransmissions;
+    
+    /**
+     * Copies the peer's statistics; called on the service thread.
+     */
+    PeerMetrics(Peer peer)
+    {
+        this.peerID = peer.incomingPeerID;
+        this.address = peer.address;
+        this.state = peer.state;
+        this.roundTripTime = peer.roundTripTime;
+        this.roundTripTimeVariance = peer.roundTripTimeVariance;
+        this.packetLoss = peer.packetLoss;
+        this.packetLossVariance = peer.packetLossVariance;
+        this.packetThrottle = peer.packetThrottle;
+        this.packetThrottleLimit = peer.packetThrottleLimit;
+        this.reliableDataInTransit = peer.reliableDataInTransit;
+        this.windowSize = peer.windowSize;
+        this.mtu = peer.mtu;
+        this.incomingBandwidth = peer.incomingBandwidth;
+        this.outgoingBandwidth = peer.outgoingBandwidth;
+        
+        int channelCount = peer.channels != null ? peer.channels.size() : 0;
+        this.incomingQueueDepths = new int[channelCount];
+        this.outgoingQueueDepths = new int[channelCount];
+        this.retransmissions = new int[channelCount];
+        for (int i = 0; i < channelCount; i++)
+        {
+            Peer.Channel channel = peer.channels.get(i);
+            this.incomingQueueDepths[i] = channel.incomingReliableCommands.size()
+                                          + channel.incomingUnreliableCommands.size();
+            this.outgoingQueueDepths[i] = channel.queuedCommands;
+            this.retransmissions[i] = channel.retransmissions;
+        }
+    }
+    
+    /** The peer's incoming peer ID on this host. */
+    public int getPeerID()
+    {
+        return peerID;
+    }
+    
+    public String getAddress()
+    {
+        return String.valueOf(address);
+    }
+    
+    public Peer.State getState()
+    {
+        return state;
+    }
+    
+    /** Mean round trip time of reliable commands, in milliseconds. */
+    public int getRoundTripTime()
+    {
+        return roundTripTime;
+    }
+    
+    public int getRoundTripTimeVariance()
+    {
+        return roundTripTimeVariance;
+    }
+    
+    /** Mean loss of reliable commands, from 0 to 1. */
+    public double getPacketLoss()
+    {
+        return (double) packetLoss / Peer.PACKET_LOSS_SCALE;
+    }
+    
+    public double getPacketLossVariance()
+    {
+        return (double) packetLossVariance / Peer.PACKET_LOSS_SCALE;
+    }
+    
+    /**
+     * The share of unreliable commands sent, out of {@link
+     * #getPacketThrottleScale()}; below the scale the peer is throttled.
+     */
+    public int getPacketThrottle()
+    {
+        return packetThrottle;
+    }
+    
+    public int getPacketThrottleLimit()
+    {
+        return packetThrottleLimit;
+    }
+    
+    public int getPacketThrottleScale()
+    {
+        return Peer.PACKET_THROTTLE_SCALE;
+    }
+    
+    public boolean isThrottled()
+    {
+        return packetThrottle < Peer.PACKET_THROTTLE_SCALE;
+    }
+    
+    /** Bytes of reliable commands sent and not yet acknowledged. */
+    public int getReliableDataInTransit()
+    {
+        return reliableDataInTransit;
+    }
+    
+    public int getWindowSize()
+    {
+        return windowSize;
+    }
+    
+    public int getMtu()
+    {
+        return mtu;
+    }
+    
+    /** The peer's own incoming bandwidth in bytes per second, or 0 if unlimited. */
+    public int getIncomingBandwidth()
+    {
+        return incomingBandwidth;
+    }
+    
+    public int getOutgoingBandwidth()
+    {
+        return outgoingBandwidth;
+    }
+    
+    /**
+     * Per channel, commands received and not yet dispatched to the
+     * application.
+     */
+    public int[] getIncomingQueueDepths()
+    {
+        return incomingQueueDepths.clone();
+    }
+    
+    /** Per channel, commands queued and not yet sent. */
+    public int[] getOutgoingQueueDepths()
+    {
+        return outgoingQueueDepths.clone();
+    }
+    
+    /** Per channel, reliable commands sent again after timing out. */
+    public int[] getRetransmissions()
+    {
+        return retransmissions.clone();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format("peer %d %s %s: rtt %d ms, loss %.2f%%, throttle %d/%d, in transit %d",
+                             peerID, address, state, roundTripTime, getPacketLoss() * 100,
+                             packetThrottle, Peer.PACKET_THROTTLE_SCALE, reliableDataInTransit);
+    }
+}
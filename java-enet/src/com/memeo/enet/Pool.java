@@ -0,0 +1,67 @@
+package com.memeo.enet;
+
+/**
+ * A bounded free list of reusable objects, linked through their list nodes.
+ *
+ * Objects taken from a pool belong to the taker until they are handed back
+ * with {@link #recycle(ListNode)}; nothing may hold on to an object after
+ * recycling it. Pools are used on the service thread, except that
+ * {@link Peer#receive} recycles incoming commands on the application's
+ * thread, {@link ShardedHost} hands events to its caller to recycle, and a
+ * shard takes forwarded datagrams from the pool of the shard it forwards
+ * to. Access is synchronized for those callers.
+ *
+ * @param <T> The pooled type.
+ */
+abstract class Pool<T extends ListNode<T>>
+{
+    private final int capacity;
+    private ListNode<T> free;
+    private int size;
+    
+    Pool(int capacity)
+    {
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Creates a new object when the pool is empty.
+     */
+    abstract T create();
+    
+    /**
+     * Clears an object's state before it goes back in the pool.
+     */
+    abstract void reset(T object);
+    
+    @SuppressWarnings("unchecked")
+    synchronized T take()
+    {
+        ListNode<T> node = this.free;
+        if (node == null)
+            return create();
+        this.free = node.next;
+        node.next = null;
+        this.size--;
+        return (T) node;
+    }
+    
+    void recycle(T object)
+    {
+        reset(object);
+        synchronized (this)
+        {
+            if (this.size >= this.capacity)
+                return;
+            object.previous = null;
+            object.next = this.free;
+            this.free = object;
+            this.size++;
+        }
+    }
+    
+    synchronized int size()
+    {
+        return this.size;
+    }
+}
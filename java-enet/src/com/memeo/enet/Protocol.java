@@ -1,7 +1,6 @@
 package com.memeo.enet;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.EnumSet;
 
 /**
@@ -19,6 +18,13 @@ final class Protocol
     static final int MINIMUM_CHANNEL_COUNT = 1;
     static final int MAXIMUM_CHANNEL_COUNT = 255;
     static final int MAXIMUM_PEER_ID = 0xFFF;
+    static final int MAXIMUM_FRAGMENT_COUNT = 1024 * 1024;
+    static final int COMMAND_MASK = 0x0F;
+    static final int HEADER_FLAG_MASK = (1 << 14) | (1 << 15);
+    static final int HEADER_SESSION_MASK = 3 << 12;
+    static final int HEADER_SESSION_SHIFT = 12;
+    static final int MAXIMUM_COMMAND_SIZE = 48;
+    static final int CHECKSUM_SIZE = 4;
 	
 	static enum Command
 	{
@@ -61,6 +67,33 @@ final class Protocol
 		}
 	}
 	
+	/**
+	 * Wire size of each command, indexed by command number.
+	 */
+	private static final int[] commandSizes = {
+		0,
+		Acknowledge.length(),
+		Connect.length(),
+		VerifyConnect.length(),
+		Disconnect.length(),
+		Ping.length(),
+		SendReliable.length(),
+		SendUnreliable.length(),
+		SendFragment.length(),
+		SendUnsequenced.length(),
+		BandwidthLimit.length(),
+		ThrottleConfigure.length(),
+		SendFragment.length()
+	};
+	
+	static int commandSize(int command)
+	{
+		command &= COMMAND_MASK;
+		if (command >= commandSizes.length)
+			return 0;
+		return commandSizes[command];
+	}
+	
 	static enum CommandFlag
 	{
 	    Acknowledge (1 << 7),
@@ -126,131 +159,175 @@ final class Protocol
 	
 	static class Header
 	{
-		private final ByteBuffer buffer;
+		private ByteBuffer buffer;
+		private int offset;
 		
-		Header()
+		Header(ByteBuffer buffer, int offset)
 		{
-		    this.buffer = ByteBuffer.allocate(Header.length());
+			wrap(buffer, offset);
 		}
 		
-		Header(ByteBuffer buffer)
+		static int length()
 		{
-			this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+			return 4;
 		}
 		
-		static int length()
+		/**
+		 * The sent time is only present on the wire when the
+		 * {@link HeaderFlag#SentTime} flag is set.
+		 */
+		static int length(int flags)
 		{
-			return 4;
+			return (flags & HeaderFlag.SentTime.value) != 0 ? 4 : 2;
 		}
 		
-		ByteBuffer buffer()
+		/**
+		 * Points this header at the given offset of a big-endian buffer.
+		 */
+		Header wrap(ByteBuffer buffer, int offset)
 		{
-		    return buffer.slice();
+			this.buffer = buffer;
+			this.offset = offset;
+			return this;
 		}
 		
 		int peerID()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset) & 0xFFFF;
 		}
 		
 		int sentTime()
 		{
-			return buffer.getShort(2) & 0xFFFF;
+			return buffer.getShort(offset + 2) & 0xFFFF;
 		}
 		
 		void setPeerID(int peerID)
 		{
-			buffer.putShort(0, (short) peerID);
+			buffer.putShort(offset, (short) peerID);
 		}
 		
 		void setSentTime(int sentTime)
 		{
-			buffer.putShort(2, (short) sentTime);
+			buffer.putShort(offset + 2, (short) sentTime);
 		}
 	}
 	
 	static class CommandHeader
 	{
-		private final ByteBuffer buffer;
+		ByteBuffer buffer;
+		int offset;
 		
-		CommandHeader()
+		CommandHeader(ByteBuffer buffer, int offset)
 		{
-		    this(ByteBuffer.allocate(CommandHeader.length()));
+			wrap(buffer, offset);
 		}
 		
-		public CommandHeader(ByteBuffer buffer)
+		static int length()
 		{
-			this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+			return 4;
 		}
 		
-		static int length()
+		/**
+		 * Points this command at the given offset of a big-endian buffer, so
+		 * that one instance can decode every command of a datagram in place.
+		 */
+		CommandHeader wrap(ByteBuffer buffer, int offset)
 		{
-			return 4;
+			this.buffer = buffer;
+			this.offset = offset;
+			return this;
 		}
 		
-		ByteBuffer buffer()
+		/**
+		 * Copies this command, excluding any payload, to the current
+		 * position of dst.
+		 */
+		void copyTo(ByteBuffer dst)
 		{
-		    return buffer.slice();
+		    int size = size();
+		    if (buffer.hasArray())
+		        dst.put(buffer.array(), buffer.arrayOffset() + offset, size);
+		    else
+		    {
+		        for (int i = 0; i < size; i++)
+		            dst.put(buffer.get(offset + i));
+		    }
 		}
 		
 		Command command() throws EnetException
 		{
-			return Command.forValue(buffer.get(0) & 0x0F);
+			return Command.forValue(commandNumber());
+		}
+		
+		int commandNumber()
+		{
+			return buffer.get(offset) & COMMAND_MASK;
+		}
+		
+		/**
+		 * Returns the wire size of this command, excluding any payload.
+		 */
+		int size()
+		{
+			return commandSize(buffer.get(offset));
 		}
 		
 		int channelID()
 		{
-			return buffer.get(1) & 0xFF;
+			return buffer.get(offset + 1) & 0xFF;
 		}
 		
 		EnumSet<CommandFlag> flags()
 		{
-		    return CommandFlag.setOf(buffer.get(0) & 0xF0);
+		    return CommandFlag.setOf(buffer.get(offset) & 0xF0);
+		}
+		
+		boolean hasFlag(CommandFlag flag)
+		{
+		    return (buffer.get(offset) & flag.value) != 0;
 		}
 		
 		int reliableSequenceNumber()
 		{
-			return buffer.getShort(2) & 0xFFFF;
+			return buffer.getShort(offset + 2) & 0xFFFF;
 		}
 		
+		/**
+		 * Sets the command number and clears the flags.
+		 */
 		void setCommand(Command command)
 		{
-		    byte value = buffer.get(0);
-		    value = (byte) ((value & ~0xF) | command.value);
-			buffer.put(0, value);
+			buffer.put(offset, command.value);
+		}
+		
+		void setFlag(CommandFlag flag)
+		{
+		    buffer.put(offset, (byte) (buffer.get(offset) | flag.value));
 		}
 		
 		void setFlags(EnumSet<CommandFlag> flags)
 		{
-		    byte value = buffer.get(0);
+		    byte value = buffer.get(offset);
 		    value = (byte) ((value & 0xF) | CommandFlag.valueOf(flags));
-		    buffer.put(0, value);
+		    buffer.put(offset, value);
 		}
 		
 		void setChannelID(int channelID)
 		{
-			buffer.put(1, (byte) channelID);
+			buffer.put(offset + 1, (byte) channelID);
 		}
 		
 		void setReliableSequenceNumber(int reliableSequenceNumber)
 		{
-			buffer.putShort(2, (short) reliableSequenceNumber);
+			buffer.putShort(offset + 2, (short) reliableSequenceNumber);
 		}
 	}
 	
 	static class Acknowledge extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		public Acknowledge()
-        {
-		    this(ByteBuffer.allocate(Acknowledge.length()));
-        }
-		
-		public Acknowledge(ByteBuffer buffer)
+		public Acknowledge(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 		
 		static int length()
@@ -260,38 +337,30 @@ final class Protocol
 
 		int receivedReliableSequenceNumber()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset + 4) & 0xFFFF;
 		}
 		
 		int receivedSentTime()
 		{
-			return buffer.getShort(2) & 0xFFFF;
+			return buffer.getShort(offset + 6) & 0xFFFF;
 		}
 		
 		void setReceivedReliableSequenceNumber(int receivedReliableSequenceNumber)
 		{
-			buffer.putShort(0, (short) receivedReliableSequenceNumber);
+			buffer.putShort(offset + 4, (short) receivedReliableSequenceNumber);
 		}
 		
 		void setReceivedSentTime(int receivedSentTime)
 		{
-			buffer.putShort(2, (short) receivedSentTime);
+			buffer.putShort(offset + 6, (short) receivedSentTime);
 		}
 	}
 	
 	static class Connect extends VerifyConnect
 	{
-		private final ByteBuffer buffer;
-		
-		Connect()
-		{
-		    this(ByteBuffer.allocate(Connect.length()));
-		}
-		
-		Connect(ByteBuffer buffer)
+		Connect(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(VerifyConnect.length())).slice();
+			super(buffer, offset);
 		}
 		
 		static int length()
@@ -301,28 +370,20 @@ final class Protocol
 		
 		int data()
 		{
-			return buffer.getInt(0);
+			return buffer.getInt(offset + 44);
 		}
 		
 		void setData(int data)
 		{
-			buffer.putInt(0, data);
+			buffer.putInt(offset + 44, data);
 		}
 	}
 	
 	static class VerifyConnect extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		VerifyConnect()
+		VerifyConnect(ByteBuffer buffer, int offset)
 		{
-		    this(ByteBuffer.allocate(VerifyConnect.length()));
-		}
-		
-		VerifyConnect(ByteBuffer buffer)
-		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 
 		static int length()
@@ -332,138 +393,130 @@ final class Protocol
 		
 		int outgoingPeerID()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset + 4) & 0xFFFF;
 		}
 		
 		void setOutgoingPeerID(int outgoingPeerID)
 		{
-			buffer.putShort(0, (short) outgoingPeerID);
+			buffer.putShort(offset + 4, (short) outgoingPeerID);
 		}
 		
 		int incomingSessionID()
 		{
-			return buffer.get(2) & 0xFF;
+			return buffer.get(offset + 6) & 0xFF;
 		}
 		
 		void setIncomingSessionID(int incomingSessionID)
 		{
-			buffer.put(2, (byte) incomingSessionID);
+			buffer.put(offset + 6, (byte) incomingSessionID);
 		}
 		
 		int outgoingSessionID()
 		{
-			return buffer.get(3) & 0xFF;
+			return buffer.get(offset + 7) & 0xFF;
 		}
 		
 		void setOutgoingSessionID(int outgoingSessionID)
 		{
-			buffer.put(3, (byte) outgoingSessionID);
+			buffer.put(offset + 7, (byte) outgoingSessionID);
 		}
 		
 		int mtu()
 		{
-			return buffer.getInt(4);
+			return buffer.getInt(offset + 8);
 		}
 
 		void setMtu(int mtu)
 		{
-			buffer.putInt(4, mtu);
+			buffer.putInt(offset + 8, mtu);
 		}
 		
 		int windowSize()
 		{
-			return buffer.getInt(8);
+			return buffer.getInt(offset + 12);
 		}
 		
 		void setWindowSize(int windowSize)
 		{
-			buffer.putInt(8, windowSize);
+			buffer.putInt(offset + 12, windowSize);
 		}
 		
 		int channelCount()
 		{
-			return buffer.getInt(12);
+			return buffer.getInt(offset + 16);
 		}
 		
 		void setChannelCount(int channelCount)
 		{
-			buffer.putInt(12, channelCount);
+			buffer.putInt(offset + 16, channelCount);
 		}
 		
 		int incomingBandwidth()
 		{
-			return buffer.getInt(16);
+			return buffer.getInt(offset + 20);
 		}
 		
 		void setIncomingBandwidth(int incomingBandwidth)
 		{
-			buffer.putInt(16, incomingBandwidth);
+			buffer.putInt(offset + 20, incomingBandwidth);
 		}
 		
 		int outgoingBandwidth()
 		{
-			return buffer.getInt(20);
+			return buffer.getInt(offset + 24);
 		}
 		
 		void setOutgoingBandwidth(int outgoingBandwidth)
 		{
-			buffer.putInt(20, outgoingBandwidth);
+			buffer.putInt(offset + 24, outgoingBandwidth);
 		}
 		
 		int packetThrottleInterval()
 		{
-			return buffer.getInt(24);
+			return buffer.getInt(offset + 28);
 		}
 		
 		void setPacketThrottleInterval(int packetThrottleInterval)
 		{
-			buffer.putInt(24, packetThrottleInterval);
+			buffer.putInt(offset + 28, packetThrottleInterval);
 		}
 		
 		int packetThrottleAcceleration()
 		{
-			return buffer.getInt(28);
+			return buffer.getInt(offset + 32);
 		}
 		
 		void setPacketThrottleAcceleration(int packetThrottleAcceleration)
 		{
-			buffer.putInt(28, packetThrottleAcceleration);
+			buffer.putInt(offset + 32, packetThrottleAcceleration);
 		}
 		
 		int packetThrottleDeceleration()
 		{
-			return buffer.getInt(32);
+			return buffer.getInt(offset + 36);
 		}
 		
 		void setPacketThrottleDeceleration(int packetThrottleDeceleration)
 		{
-			buffer.putInt(32, packetThrottleDeceleration);
+			buffer.putInt(offset + 36, packetThrottleDeceleration);
 		}
 		
 		int connectID()
 		{
-			return buffer.getInt(36);
+			return buffer.getInt(offset + 40);
 		}
 		
 		void setConnectID(int connectID)
 		{
-			buffer.putInt(36, connectID);
+			buffer.putInt(offset + 40, connectID);
 		}
 	}
 	
 	static class BandwidthLimit extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		BandwidthLimit()
+		BandwidthLimit(ByteBuffer buffer, int offset)
 		{
-		    this(ByteBuffer.allocate(length()));
-		}
-		
-		BandwidthLimit(ByteBuffer buffer)
-		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 		
 		static int length()
@@ -473,38 +526,30 @@ final class Protocol
 
 		int incomingBandwidth()
 		{
-			return buffer.getInt(0);
+			return buffer.getInt(offset + 4);
 		}
 		
 		void setIncomingBandwidth(int incomingBandwidth)
 		{
-			buffer.putInt(0, incomingBandwidth);
+			buffer.putInt(offset + 4, incomingBandwidth);
 		}
 		
 		int outgoingBandwidth()
 		{
-			return buffer.getInt(4);
+			return buffer.getInt(offset + 8);
 		}
 		
 		void setOutgoingBandwidth(int outgoingBandwidth)
 		{
-			buffer.putInt(4, outgoingBandwidth);
+			buffer.putInt(offset + 8, outgoingBandwidth);
 		}
 	}
 	
 	static class ThrottleConfigure extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		ThrottleConfigure()
-        {
-		    this(ByteBuffer.allocate(length()));
-        }
-		
-		ThrottleConfigure(ByteBuffer buffer)
+		ThrottleConfigure(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 
 		static int length()
@@ -514,48 +559,40 @@ final class Protocol
 		
 		int packetThrottleInterval()
 		{
-			return buffer.getInt(0);
+			return buffer.getInt(offset + 4);
 		}
 		
 		void setPacketThrottleInterval(int packetThrottleInterval)
 		{
-			buffer.putInt(0, packetThrottleInterval);
+			buffer.putInt(offset + 4, packetThrottleInterval);
 		}
 		
 		int packetThrottleAcceleration()
 		{
-			return buffer.getInt(4);
+			return buffer.getInt(offset + 8);
 		}
 		
 		void setPacketThrottleAcceleration(int packetThrottleAcceleration)
 		{
-			buffer.putInt(4, packetThrottleAcceleration);
+			buffer.putInt(offset + 8, packetThrottleAcceleration);
 		}
 		
 		int packetThrottleDeceleration()
 		{
-			return buffer.getInt(8);
+			return buffer.getInt(offset + 12);
 		}
 		
 		void setPacketThrottleDeceleration(int packetThrottleDeceleration)
 		{
-			buffer.putInt(8, packetThrottleDeceleration);
+			buffer.putInt(offset + 12, packetThrottleDeceleration);
 		}
 	}
 	
 	static class Disconnect extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		Disconnect()
-		{
-		    this(ByteBuffer.allocate(length()));
-		}
-		
-		Disconnect(ByteBuffer buffer)
+		Disconnect(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 
 		static int length()
@@ -565,41 +602,28 @@ final class Protocol
 		
 		int data()
 		{
-			return buffer.getInt(0);
+			return buffer.getInt(offset + 4);
 		}
 		
 		void setData(int data)
 		{
-			buffer.putInt(0, data);
+			buffer.putInt(offset + 4, data);
 		}
 	}
 	
 	static class Ping extends CommandHeader
 	{
-	    Ping()
-	    {
-	        this(ByteBuffer.allocate(length()));
-	    }
-	    
-		Ping(ByteBuffer buffer)
+		Ping(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
+			super(buffer, offset);
 		}
 	}
 	
 	static class SendReliable extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-
-		SendReliable()
-		{
-		    this(ByteBuffer.allocate(length()));
-		}
-		
-		SendReliable(ByteBuffer buffer)
+		SendReliable(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 		
 		static int length()
@@ -609,28 +633,20 @@ final class Protocol
 
 		int dataLength()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset + 4) & 0xFFFF;
 		}
 		
 		void setDataLength(int dataLength)
 		{
-			buffer.putShort(0, (short) dataLength);
+			buffer.putShort(offset + 4, (short) dataLength);
 		}
 	}
 	
 	static class SendUnreliable extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		SendUnreliable()
-		{
-		    this(ByteBuffer.allocate(length()));
-		}
-		
-		SendUnreliable(ByteBuffer buffer)
+		SendUnreliable(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 
 		static int length()
@@ -640,38 +656,30 @@ final class Protocol
 		
 		int unreliableSequenceNumber()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset + 4) & 0xFFFF;
 		}
 		
 		void setUnreliableSequenceNumber(int unreliableSequenceNumber)
 		{
-			buffer.putShort((short) unreliableSequenceNumber);
+			buffer.putShort(offset + 4, (short) unreliableSequenceNumber);
 		}
 		
 		int dataLength()
 		{
-			return buffer.getShort(2) & 0xFFFF;
+			return buffer.getShort(offset + 6) & 0xFFFF;
 		}
 		
 		void setDataLength(int dataLength)
 		{
-			buffer.putShort((short) dataLength);
+			buffer.putShort(offset + 6, (short) dataLength);
 		}
 	}
 	
 	static class SendUnsequenced extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		SendUnsequenced()
-		{
-		    this(ByteBuffer.allocate(length()));
-		}
-		
-		SendUnsequenced(ByteBuffer buffer)
+		SendUnsequenced(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 		
 		static int length()
@@ -681,38 +689,30 @@ final class Protocol
 
 		int unsequencedGroup()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset + 4) & 0xFFFF;
 		}
 		
 		void setUnsequencedGroup(int unsequencedGroup)
 		{
-			buffer.putShort((short) unsequencedGroup);
+			buffer.putShort(offset + 4, (short) unsequencedGroup);
 		}
 		
 		int dataLength()
 		{
-			return buffer.getShort(2) & 0xFFFF;
+			return buffer.getShort(offset + 6) & 0xFFFF;
 		}
 		
 		void setDataLength(int dataLength)
 		{
-			buffer.putShort((short) dataLength);
+			buffer.putShort(offset + 6, (short) dataLength);
 		}
 	}
 	
 	static class SendFragment extends CommandHeader
 	{
-		private final ByteBuffer buffer;
-		
-		SendFragment()
-		{
-		    this(ByteBuffer.allocate(length()));
-		}
-		
-		SendFragment(ByteBuffer buffer)
+		SendFragment(ByteBuffer buffer, int offset)
 		{
-			super(buffer);
-			this.buffer = ((ByteBuffer) buffer.order(ByteOrder.BIG_ENDIAN).position(CommandHeader.length())).slice();
+			super(buffer, offset);
 		}
 		
 		static int length()
@@ -722,62 +722,62 @@ final class Protocol
 
 		int startSequenceNumber()
 		{
-			return buffer.getShort(0) & 0xFFFF;
+			return buffer.getShort(offset + 4) & 0xFFFF;
 		}
 		
 		void setStartSequenceNumber(int startSequenceNumber)
 		{
-			buffer.putShort(0, (short) startSequenceNumber);
+			buffer.putShort(offset + 4, (short) startSequenceNumber);
 		}
 		
 		int dataLength()
 		{
-			return buffer.getShort(2) & 0xFFFF;
+			return buffer.getShort(offset + 6) & 0xFFFF;
 		}
 		
 		void setDataLength(int dataLength)
 		{
-			buffer.putShort(2, (short) dataLength);
+			buffer.putShort(offset + 6, (short) dataLength);
 		}
 		
 		int fragmentCount()
 		{
-			return buffer.getInt(4);
+			return buffer.getInt(offset + 8);
 		}
 		
 		void setFragmentCount(int fragmentCount)
 		{
-			buffer.putInt(4, fragmentCount);
+			buffer.putInt(offset + 8, fragmentCount);
 		}
 		
 		int fragmentNumber()
 		{
-			return buffer.getInt(8);
+			return buffer.getInt(offset + 12);
 		}
 		
 		void setFragmentNumber(int fragmentNumber)
 		{
-			buffer.putInt(8, fragmentNumber);
+			buffer.putInt(offset + 12, fragmentNumber);
 		}
 		
 		int totalLength()
 		{
-			return buffer.getInt(12);
+			return buffer.getInt(offset + 16);
 		}
 		
 		void setTotalLength(int totalLength)
 		{
-			buffer.putInt(12, totalLength);
+			buffer.putInt(offset + 16, totalLength);
 		}
 		
 		int fragmentOffset()
 		{
-			return buffer.getInt(16);
+			return buffer.getInt(offset + 20);
 		}
 		
 		void setFragmentOffset(int fragmentOffset)
 		{
-			buffer.putInt(16, fragmentOffset);
+			buffer.putInt(offset + 20, fragmentOffset);
 		}
 	}
 }
@@ -0,0 +1,528 @@
+package com.memeo.enet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adaptive order-2 PPM range coder, ported from ENet's
+ * enet_range_coder_compress and enet_range_coder_decompress. It has only
+ * been checked against itself, not against output of the C library, so
+ * it must not be relied on to interoperate with ENet peers that compress
+ * until it passes RangeCoderVectors, in the benchmarks, on vectors the C
+ * library produced.
+ *
+ * Each datagram is coded independently. Symbols are kept in parallel arrays
+ * instead of ENet's symbol structs; a symbol's left and right children and
+ * a context's symbol tree are stored as absolute indices, with 0 meaning
+ * none, since index 0 is always the root context. Unsigned 16-bit fields
+ * are masked wherever ENet relies on them wrapping.
+ */
+public class RangeCoder implements Compressor
+{
+    private static final int SYMBOL_COUNT = 4096;
+    
+    private static final long MASK = 0xFFFFFFFFL;
+    private static final long TOP = 1 << 24;
+    private static final long BOTTOM = 1 << 16;
+    
+    private static final int CONTEXT_SYMBOL_DELTA = 3;
+    private static final int CONTEXT_SYMBOL_MINIMUM = 1;
+    private static final int CONTEXT_ESCAPE_MINIMUM = 1;
+    
+    private static final int SUBCONTEXT_ORDER = 2;
+    private static final int SUBCONTEXT_SYMBOL_DELTA = 2;
+    private static final int SUBCONTEXT_ESCAPE_DELTA = 5;
+    
+    /** Parent marker meaning the predicted context rather than a symbol. */
+    private static final int PREDICTED = -1;
+    
+    // Binary tree of symbols within a context.
+    private final int[] value = new int[SYMBOL_COUNT];
+    private final int[] count = new int[SYMBOL_COUNT];
+    private final int[] under = new int[SYMBOL_COUNT];
+    private final int[] left = new int[SYMBOL_COUNT];
+    private final int[] right = new int[SYMBOL_COUNT];
+    
+    // Context defined by each symbol.
+    private final int[] symbols = new int[SYMBOL_COUNT];
+    private final int[] escapes = new int[SYMBOL_COUNT];
+    private final int[] total = new int[SYMBOL_COUNT];
+    private final int[] parent = new int[SYMBOL_COUNT];
+    
+    private int nextSymbol;
+    private int root;
+    private int predicted;
+    private int order;
+    
+    // Result of the last context walk.
+    private int foundSymbol;
+    private int foundValue;
+    private int foundUnder;
+    private int foundCount;
+    
+    // Coder state for the current call.
+    private long low;
+    private long range;
+    private long code;
+    private ByteBuffer in;
+    private int inPosition;
+    private int inEnd;
+    private ByteBuffer out;
+    private int outPosition;
+    private int outEnd;
+    
+    public int compress(ByteBuffer in, int inOffset, int inLength, ByteBuffer out, int outOffset, int outLimit)
+    {
+        if (inLength <= 0)
+            return 0;
+        
+        this.out = out;
+        this.outPosition = outOffset;
+        this.outEnd = outOffset + outLimit;
+        this.low = 0;
+        this.range = MASK;
+        start();
+        
+        try
+        {
+            for (int i = inOffset; i < inOffset + inLength; i++)
+            {
+                int value = in.get(i) & 0xFF;
+                int parent = PREDICTED;
+                boolean coded = false;
+                
+                for (int subcontext = this.predicted; subcontext != this.root; subcontext = this.parent[subcontext])
+                {
+                    encodeContext(subcontext, value, SUBCONTEXT_SYMBOL_DELTA, 0);
+                    parent = link(parent, this.foundSymbol);
+                    int total = this.total[subcontext];
+                    if (this.foundCount > 0)
+                    {
+                        if (!encode(this.escapes[subcontext] + this.foundUnder, this.foundCount, total))
+                            return 0;
+                    }
+                    else
+                    {
+                        if (this.escapes[subcontext] > 0 && this.escapes[subcontext] < total
+                            && !encode(0, this.escapes[subcontext], total))
+                            return 0;
+                        this.escapes[subcontext] = (this.escapes[subcontext] + SUBCONTEXT_ESCAPE_DELTA) & 0xFFFF;
+                        this.total[subcontext] = (this.total[subcontext] + SUBCONTEXT_ESCAPE_DELTA) & 0xFFFF;
+                    }
+                    this.total[subcontext] = (this.total[subcontext] + SUBCONTEXT_SYMBOL_DELTA) & 0xFFFF;
+                    if (this.foundCount > 0xFF - 2 * SUBCONTEXT_SYMBOL_DELTA || this.total[subcontext] > BOTTOM - 0x100)
+                        rescaleContext(subcontext, 0);
+                    if (this.foundCount > 0)
+                    {
+                        coded = true;
+                        break;
+                    }
+                }
+                
+                if (!coded)
+                {
+                    encodeContext(this.root, value, CONTEXT_SYMBOL_DELTA, CONTEXT_SYMBOL_MINIMUM);
+                    link(parent, this.foundSymbol);
+                    if (!encode(this.escapes[this.root] + this.foundUnder, this.foundCount, this.total[this.root]))
+                        return 0;
+                    this.total[this.root] = (this.total[this.root] + CONTEXT_SYMBOL_DELTA) & 0xFFFF;
+                    if (this.foundCount > 0xFF - 2 * CONTEXT_SYMBOL_DELTA + CONTEXT_SYMBOL_MINIMUM
+                        || this.total[this.root] > BOTTOM - 0x100)
+                        rescaleContext(this.root, CONTEXT_SYMBOL_MINIMUM);
+                }
+                
+                next();
+            }
+            
+            while (this.low != 0)
+            {
+                if (!output((int) (this.low >>> 24)))
+                    return 0;
+                this.low = (this.low << 8) & MASK;
+            }
+            return this.outPosition - outOffset;
+        }
+        finally
+        {
+            this.out = null;
+        }
+    }
+    
+    public int decompress(ByteBuffer in, int inOffset, int inLength, ByteBuffer out, int outOffset, int outLimit)
+    {
+        if (inLength <= 0)
+            return 0;
+        
+        this.in = in;
+        this.inPosition = inOffset;
+        this.inEnd = inOffset + inLength;
+        this.out = out;
+        this.outPosition = outOffset;
+        this.outEnd = outOffset + outLimit;
+        this.low = 0;
+        this.code = 0;
+        this.range = MASK;
+        start();
+        
+        try
+        {
+            for (int shift = 24; shift >= 0; shift -= 8)
+            {
+                if (this.inPosition < this.inEnd)
+                    this.code |= (long) (in.get(this.inPosition++) & 0xFF) << shift;
+            }
+            
+            for (;;)
+            {
+                int value = 0;
+                int parent = PREDICTED;
+                int bottom;
+                int subcontext;
+                boolean decoded = false;
+                
+                for (subcontext = this.predicted; subcontext != this.root; subcontext = this.parent[subcontext])
+                {
+                    int escapes = this.escapes[subcontext];
+                    if (escapes <= 0)
+                        continue;
+                    int total = this.total[subcontext];
+                    if (escapes >= total)
+                        continue;
+                    int code = read(total);
+                    if (code < escapes)
+                    {
+                        decode(0, escapes);
+                        continue;
+                    }
+                    if (!decodeContext(subcontext, code - escapes, SUBCONTEXT_SYMBOL_DELTA, 0, false))
+                        return 0;
+                    decode(escapes + this.foundUnder, this.foundCount);
+                    this.total[subcontext] = (this.total[subcontext] + SUBCONTEXT_SYMBOL_DELTA) & 0xFFFF;
+                    if (this.foundCount > 0xFF - 2 * SUBCONTEXT_SYMBOL_DELTA || this.total[subcontext] > BOTTOM - 0x100)
+                        rescaleContext(subcontext, 0);
+                    decoded = true;
+                    break;
+                }
+                
+                if (!decoded)
+                {
+                    int escapes = this.escapes[this.root];
+                    int total = this.total[this.root];
+                    int code = read(total);
+                    if (code < escapes)
+                    {
+                        decode(0, escapes);
+                        break;
+                    }
+                    decodeContext(this.root, code - escapes, CONTEXT_SYMBOL_DELTA, CONTEXT_SYMBOL_MINIMUM, true);
+                    decode(escapes + this.foundUnder, this.foundCount);
+                    this.total[this.root] = (this.total[this.root] + CONTEXT_SYMBOL_DELTA) & 0xFFFF;
+                    if (this.foundCount > 0xFF - 2 * CONTEXT_SYMBOL_DELTA + CONTEXT_SYMBOL_MINIMUM
+                        || this.total[this.root] > BOTTOM - 0x100)
+                        rescaleContext(this.root, CONTEXT_SYMBOL_MINIMUM);
+                }
+                value = this.foundValue;
+                bottom = this.foundSymbol;
+                
+                // Teach the value to the higher order contexts that escaped.
+                for (int patch = this.predicted; patch != subcontext; patch = this.parent[patch])
+                {
+                    encodeContext(patch, value, SUBCONTEXT_SYMBOL_DELTA, 0);
+                    parent = link(parent, this.foundSymbol);
+                    if (this.foundCount <= 0)
+                    {
+                        this.escapes[patch] = (this.escapes[patch] + SUBCONTEXT_ESCAPE_DELTA) & 0xFFFF;
+                        this.total[patch] = (this.total[patch] + SUBCONTEXT_ESCAPE_DELTA) & 0xFFFF;
+                    }
+                    this.total[patch] = (this.total[patch] + SUBCONTEXT_SYMBOL_DELTA) & 0xFFFF;
+                    if (this.foundCount > 0xFF - 2 * SUBCONTEXT_SYMBOL_DELTA || this.total[patch] > BOTTOM - 0x100)
+                        rescaleContext(patch, 0);
+                }
+                link(parent, bottom);
+                
+                if (!output(value))
+                    return 0;
+                
+                next();
+            }
+            return this.outPosition - outOffset;
+        }
+        finally
+        {
+            this.in = null;
+            this.out = null;
+        }
+    }
+    
+    private void start()
+    {
+        this.nextSymbol = 0;
+        this.root = createContext(CONTEXT_ESCAPE_MINIMUM, CONTEXT_SYMBOL_MINIMUM);
+        this.predicted = 0;
+        this.order = 0;
+    }
+    
+    /**
+     * Moves the prediction on after a byte, starting over once the symbol
+     * table is nearly full.
+     */
+    private void next()
+    {
+        if (this.order >= SUBCONTEXT_ORDER)
+            this.predicted = this.parent[this.predicted];
+        else
+            this.order++;
+        if (this.nextSymbol >= SYMBOL_COUNT - SUBCONTEXT_ORDER)
+            start();
+    }
+    
+    /**
+     * Points the given parent at symbol, and returns symbol as the next
+     * parent to fill in.
+     */
+    private int link(int parent, int symbol)
+    {
+        if (parent == PREDICTED)
+            this.predicted = symbol;
+        else
+            this.parent[parent] = symbol;
+        return symbol;
+    }
+    
+    private int createSymbol(int value, int count)
+    {
+        int symbol = this.nextSymbol++;
+        this.value[symbol] = value;
+        this.count[symbol] = count;
+        this.under[symbol] = count;
+        this.left[symbol] = 0;
+        this.right[symbol] = 0;
+        this.symbols[symbol] = 0;
+        this.escapes[symbol] = 0;
+        this.total[symbol] = 0;
+        this.parent[symbol] = 0;
+        return symbol;
+    }
+    
+    private int createContext(int escapes, int minimum)
+    {
+        int context = createSymbol(0, 0);
+        this.escapes[context] = escapes;
+        this.total[context] = escapes + 256 * minimum;
+        return context;
+    }
+    
+    private int rescale(int symbol)
+    {
+        int total = 0;
+        for (;;)
+        {
+            this.count[symbol] -= this.count[symbol] >> 1;
+            this.under[symbol] = this.count[symbol];
+            if (this.left[symbol] != 0)
+                this.under[symbol] = (this.under[symbol] + rescale(this.left[symbol])) & 0xFFFF;
+            total = (total + this.under[symbol]) & 0xFFFF;
+            if (this.right[symbol] == 0)
+                break;
+            symbol = this.right[symbol];
+        }
+        return total;
+    }
+    
+    private void rescaleContext(int context, int minimum)
+    {
+        int total = this.symbols[context] != 0 ? rescale(this.symbols[context]) : 0;
+        this.escapes[context] -= this.escapes[context] >> 1;
+        this.total[context] = (total + this.escapes[context] + 256 * minimum) & 0xFFFF;
+    }
+    
+    /**
+     * Finds or adds value in a context, leaving the symbol and its
+     * cumulative frequency range in the found fields.
+     */
+    private void encodeContext(int context, int value, int update, int minimum)
+    {
+        int under = value * minimum;
+        int count = minimum;
+        int symbol;
+        if (this.symbols[context] == 0)
+        {
+            symbol = createSymbol(value, update);
+            this.symbols[context] = symbol;
+        }
+        else
+        {
+            int node = this.symbols[context];
+            for (;;)
+            {
+                if (value < this.value[node])
+                {
+                    this.under[node] = (this.under[node] + update) & 0xFFFF;
+                    if (this.left[node] != 0)
+                    {
+                        node = this.left[node];
+                        continue;
+                    }
+                    symbol = createSymbol(value, update);
+                    this.left[node] = symbol;
+                }
+                else if (value > this.value[node])
+                {
+                    under = (under + this.under[node]) & 0xFFFF;
+                    if (this.right[node] != 0)
+                    {
+                        node = this.right[node];
+                        continue;
+                    }
+                    symbol = createSymbol(value, update);
+                    this.right[node] = symbol;
+                }
+                else
+                {
+                    count = (count + this.count[node]) & 0xFFFF;
+                    under = (under + this.under[node] - this.count[node]) & 0xFFFF;
+                    this.under[node] = (this.under[node] + update) & 0xFFFF;
+                    this.count[node] = (this.count[node] + update) & 0xFF;
+                    symbol = node;
+                }
+                break;
+            }
+        }
+        this.foundSymbol = symbol;
+        this.foundValue = value;
+        this.foundUnder = under;
+        this.foundCount = count;
+    }
+    
+    /**
+     * Finds the symbol whose frequency range holds code. Only the root
+     * context, where every value has a minimum frequency, can add a missing
+     * symbol; elsewhere a miss means the data is corrupt.
+     *
+     * @return false if the data is corrupt.
+     */
+    private boolean decodeContext(int context, int code, int update, int minimum, boolean root)
+    {
+        int under = 0;
+        int count = minimum;
+        int value;
+        int symbol;
+        if (this.symbols[context] == 0)
+        {
+            if (!root)
+                return false;
+            value = (code / minimum) & 0xFF;
+            under = code - code % minimum;
+            symbol = createSymbol(value, update);
+            this.symbols[context] = symbol;
+        }
+        else
+        {
+            int node = this.symbols[context];
+            for (;;)
+            {
+                int after = (under + this.under[node] + (this.value[node] + 1) * minimum) & 0xFFFF;
+                int before = (this.count[node] + minimum) & 0xFFFF;
+                if (code >= after)
+                {
+                    under = (under + this.under[node]) & 0xFFFF;
+                    if (this.right[node] != 0)
+                    {
+                        node = this.right[node];
+                        continue;
+                    }
+                    if (!root)
+                        return false;
+                    value = (this.value[node] + 1 + (code - after) / minimum) & 0xFF;
+                    under = (code - (code - after) % minimum) & 0xFFFF;
+                    symbol = createSymbol(value, update);
+                    this.right[node] = symbol;
+                }
+                else if (code < after - before)
+                {
+                    this.under[node] = (this.under[node] + update) & 0xFFFF;
+                    if (this.left[node] != 0)
+                    {
+                        node = this.left[node];
+                        continue;
+                    }
+                    if (!root)
+                        return false;
+                    value = (this.value[node] - 1 - (after - before - code - 1) / minimum) & 0xFF;
+                    under = (code - (after - before - code - 1) % minimum) & 0xFFFF;
+                    symbol = createSymbol(value, update);
+                    this.left[node] = symbol;
+                }
+                else
+                {
+                    value = this.value[node];
+                    count = (count + this.count[node]) & 0xFFFF;
+                    under = (after - before) & 0xFFFF;
+                    this.under[node] = (this.under[node] + update) & 0xFFFF;
+                    this.count[node] = (this.count[node] + update) & 0xFF;
+                    symbol = node;
+                }
+                break;
+            }
+        }
+        this.foundSymbol = symbol;
+        this.foundValue = value;
+        this.foundUnder = under;
+        this.foundCount = count;
+        return true;
+    }
+    
+    private boolean output(int value)
+    {
+        if (this.outPosition >= this.outEnd)
+            return false;
+        this.out.put(this.outPosition++, (byte) value);
+        return true;
+    }
+    
+    private boolean encode(int under, int count, int total)
+    {
+        this.range /= total;
+        this.low = (this.low + under * this.range) & MASK;
+        this.range = (this.range * count) & MASK;
+        for (;;)
+        {
+            if ((this.low ^ ((this.low + this.range) & MASK)) >= TOP)
+            {
+                if (this.range >= BOTTOM)
+                    break;
+                this.range = -this.low & (BOTTOM - 1);
+            }
+            if (!output((int) (this.low >>> 24)))
+                return false;
+            this.range = (this.range << 8) & MASK;
+            this.low = (this.low << 8) & MASK;
+        }
+        return true;
+    }
+    
+    private int read(int total)
+    {
+        this.range /= total;
+        return (int) (((this.code - this.low) & MASK) / this.range) & 0xFFFF;
+    }
+    
+    private void decode(int under, int count)
+    {
+        this.low = (this.low + under * this.range) & MASK;
+        this.range = (this.range * count) & MASK;
+        for (;;)
+        {
+            if ((this.low ^ ((this.low + this.range) & MASK)) >= TOP)
+            {
+                if (this.range >= BOTTOM)
+                    break;
+                this.range = -this.low & (BOTTOM - 1);
+            }
+            this.code = (this.code << 8) & MASK;
+            if (this.inPosition < this.inEnd)
+                this.code |= this.in.get(this.inPosition++) & 0xFF;
+            this.range = (this.range << 8) & MASK;
+            this.low = (this.low << 8) & MASK;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.memeo.enet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded multi-producer, single-consumer ring of requests from
+ * application threads to the thread servicing a host. Producers claim a
+ * slot with one compare-and-set on the tail and publish it by advancing
+ * the slot's sequence number, as in Dmitry Vyukov's bounded queue; the
+ * consumer needs no atomic operations beyond reading that number.
+ *
+ * Requests are stored field by field in parallel arrays, so nothing is
+ * allocated per request.
+ */
+class RequestRing
+{
+    static enum Kind
+    {
+        CONNECT,
+        SEND,
+        BROADCAST,
+        PING,
+        DISCONNECT,
+        DISCONNECT_LATER,
+        DISCONNECT_NOW,
+        THROTTLE_CONFIGURE,
+        RESUME,
+        METRICS
+    }
+    
+    /**
+     * A request as read by the consumer; reused from one to the next.
+     */
+    static class Request
+    {
+        Kind kind;
+        Peer peer;
+        Packet packet;
+        int a;
+        int b;
+        int c;
+        // Completed once the request has been carried out, if anyone asked.
+        CompletableFuture<Void> future;
+        
+        void clear()
+        {
+            kind = null;
+            peer = null;
+            packet = null;
+            future = null;
+        }
+    }
+    
+    private final int mask;
+    // Slot i is free for the producer at position p when it holds p, and
+    // full for the consumer at position p when it holds p + 1.
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    
+    private final Kind[] kinds;
+    private final Peer[] peers;
+    private final Packet[] packets;
+    private final int[] as;
+    private final int[] bs;
+    private final int[] cs;
+    private final CompletableFuture<Void>[] futures;
+    
+    @SuppressWarnings("unchecked")
+    RequestRing(int capacity)
+    {
+        capacity = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) * 2 - 1);
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            this.sequences.set(i, i);
+        this.kinds = new Kind[capacity];
+        this.peers = new Peer[capacity];
+        this.packets = new Packet[capacity];
+        this.as = new int[capacity];
+        this.bs = new int[capacity];
+        this.cs = new int[capacity];
+        this.futures = (CompletableFuture<Void>[]) new CompletableFuture<?>[capacity];
+    }
+    
+    int capacity()
+    {
+        return this.mask + 1;
+    }
+    
+    /**
+     * Adds a request; called from any thread.
+     *
+     * @return false if the ring is full.
+     */
+    boolean offer(Kind kind, Peer peer, Packet packet, int a, int b, int c, CompletableFuture<Void> future)
+    {
+        long position = this.tail.get();
+        int index;
+        for (;;)
+        {
+            index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (this.tail.compareAndSet(position, position + 1))
+                    break;
+                position = this.tail.get();
+            }
+            else if (difference < 0)
+                return false;
+            else
+                position = this.tail.get();
+        }
+        
+        this.kinds[index] = kind;
+        this.peers[index] = peer;
+        this.packets[index] = packet;
+        this.as[index] = a;
+        this.bs[index] = b;
+        this.cs[index] = c;
+        this.futures[index] = future;
+        // A volatile write rather than lazySet, so that the caller's read of
+        // whether the consumer is blocked cannot be ordered before it.
+        this.sequences.set(index, position + 1);
+        return true;
+    }
+    
+    /**
+     * Takes the oldest request; called only by the consumer.
+     *
+     * @return false if the ring is empty.
+     */
+    boolean poll(Request request)
+    {
+        int index = (int) this.head & this.mask;
+        if (this.sequences.get(index) != this.head + 1)
+            return false;
+        
+        request.kind = this.kinds[index];
+        request.peer = this.peers[index];
+        request.packet = this.packets[index];
+        request.a = this.as[index];
+        request.b = this.bs[index];
+        request.c = this.cs[index];
+        request.future = this.futures[index];
+        this.kinds[index] = null;
+        this.peers[index] = null;
+        this.packets[index] = null;
+        this.futures[index] = null;
+        this.sequences.lazySet(index, this.head + this.mask + 1);
+        this.head++;
+        return true;
+    }
+    
+    /**
+     * Whether the ring is empty; exact only on the consumer's thread.
+     */
+    boolean isEmpty()
+    {
+        return this.sequences.get((int) this.head & this.mask) != this.head + 1;
+    }
+}
@@ -0,0 +1,91 @@
+package com.memeo.enet;
+
+import java.util.Arrays;
+
+/**
+ * A channel's reliable commands sent and not yet acknowledged, indexed by
+ * reliable sequence number modulo a power of two, so that an
+ * acknowledgement finds its command in O(1).
+ *
+ * A command is indexed from when it is first sent until it is
+ * acknowledged, including while it waits to be resent. The sequence
+ * numbers in flight on a channel span less than 0x10000, so the ring
+ * doubles whenever two of them share a slot and never needs to grow past
+ * that.
+ *
+ * Only touched by the thread servicing the host.
+ */
+class SentCommandRing
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = 0x10000;
+    
+    private OutgoingCommand[] commands;
+    private int mask = -1;
+    private int size;
+    
+    /**
+     * @return The command sent with the sequence number, or null.
+     */
+    OutgoingCommand get(int reliableSequenceNumber)
+    {
+        if (this.size == 0)
+            return null;
+        OutgoingCommand outgoingCommand = this.commands[reliableSequenceNumber & this.mask];
+        if (outgoingCommand == null || (outgoingCommand.reliableSequenceNumber & 0xFFFF) != reliableSequenceNumber)
+            return null;
+        return outgoingCommand;
+    }
+    
+    void put(OutgoingCommand outgoingCommand)
+    {
+        int reliableSequenceNumber = outgoingCommand.reliableSequenceNumber & 0xFFFF;
+        while (this.mask < 0
+               || (this.commands[reliableSequenceNumber & this.mask] != null && this.mask < MAXIMUM_CAPACITY - 1))
+            grow();
+        this.commands[reliableSequenceNumber & this.mask] = outgoingCommand;
+        this.size++;
+    }
+    
+    /**
+     * Takes the command sent with the sequence number, if any.
+     */
+    OutgoingCommand remove(int reliableSequenceNumber)
+    {
+        OutgoingCommand outgoingCommand = get(reliableSequenceNumber);
+        if (outgoingCommand != null)
+        {
+            this.commands[reliableSequenceNumber & this.mask] = null;
+            this.size--;
+        }
+        return outgoingCommand;
+    }
+    
+    /**
+     * Forgets every command; the commands themselves are recycled with the
+     * queues they are in.
+     */
+    void clear()
+    {
+        if (this.size == 0)
+            return;
+        Arrays.fill(this.commands, null);
+        this.size = 0;
+    }
+    
+    private void grow()
+    {
+        int capacity = this.commands != null ? this.commands.length * 2 : INITIAL_CAPACITY;
+        OutgoingCommand[] commands = new OutgoingCommand[capacity];
+        if (this.commands != null)
+        {
+            for (OutgoingCommand outgoingCommand : this.commands)
+            {
+                if (outgoingCommand != null)
+                    commands[outgoingCommand.reliableSequenceNumber & (capacity - 1)] = outgoingCommand;
+            }
+        }
+        this.commands = commands;
+        this.mask = capacity - 1;
+    }
+}
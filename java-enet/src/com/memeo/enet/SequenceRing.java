@@ -0,0 +1,117 @@
+package com.memeo.enet;
+
+/**
+ * A channel's reliable commands received ahead of the next one to dispatch,
+ * indexed by reliable sequence number modulo a power of two.
+ *
+ * Commands are only accepted up to FREE_RELIABLE_WINDOWS - 1 windows ahead
+ * of the last dispatched sequence number, so while the ring is larger than
+ * that distance no two queued commands share a slot, and inserting, finding
+ * a duplicate and taking the next command in order are O(1). Since the
+ * capacity divides 0x10000, the index carries on across the wraparound of
+ * the 16-bit sequence numbers. The ring starts small and doubles when a
+ * command arrives further ahead than it covers.
+ *
+ * Only touched by the thread servicing the host.
+ */
+class SequenceRing
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = Peer.FREE_RELIABLE_WINDOWS * Peer.RELIABLE_WINDOW_SIZE;
+    
+    private IncomingCommand[] commands;
+    private int mask = -1;
+    private int size;
+    
+    /**
+     * @return The command queued with the sequence number, or null.
+     */
+    IncomingCommand get(int reliableSequenceNumber)
+    {
+        if (this.size == 0)
+            return null;
+        IncomingCommand incomingCommand = this.commands[reliableSequenceNumber & this.mask];
+        if (incomingCommand == null || (incomingCommand.reliableSequenceNumber & 0xFFFF) != reliableSequenceNumber)
+            return null;
+        return incomingCommand;
+    }
+    
+    /**
+     * Queues a command, unless it is further ahead than the largest ring
+     * covers or its slot is taken. The window check in
+     * Peer#queueIncomingCommand should rule both out, but a command that
+     * gets past it is dropped rather than overwriting another.
+     *
+     * @param distance How far the command's sequence number is ahead of the
+     *  last one dispatched.
+     * @return false if the command was not queued.
+     */
+    boolean put(IncomingCommand incomingCommand, int distance)
+    {
+        if (distance > this.mask)
+        {
+            if (distance >= MAXIMUM_CAPACITY)
+                return false;
+            grow(distance);
+        }
+        int index = incomingCommand.reliableSequenceNumber & this.mask;
+        if (this.commands[index] != null)
+            return false;
+        this.commands[index] = incomingCommand;
+        this.size++;
+        return true;
+    }
+    
+    /**
+     * Takes the command queued with the sequence number, if any.
+     */
+    IncomingCommand remove(int reliableSequenceNumber)
+    {
+        IncomingCommand incomingCommand = get(reliableSequenceNumber);
+        if (incomingCommand != null)
+        {
+            this.commands[reliableSequenceNumber & this.mask] = null;
+            this.size--;
+        }
+        return incomingCommand;
+    }
+    
+    int size()
+    {
+        return this.size;
+    }
+    
+    /**
+     * Empties the ring into the pool.
+     */
+    void recycle(Pool<IncomingCommand> pool)
+    {
+        if (this.size == 0)
+            return;
+        for (int i = 0; i < this.commands.length; i++)
+        {
+            if (this.commands[i] != null)
+            {
+                pool.recycle(this.commands[i]);
+                this.commands[i] = null;
+            }
+        }
+        this.size = 0;
+    }
+    
+    private void grow(int distance)
+    {
+        int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(distance) << 1);
+        IncomingCommand[] commands = new IncomingCommand[capacity];
+        if (this.commands != null)
+        {
+            for (IncomingCommand incomingCommand : this.commands)
+            {
+                if (incomingCommand != null)
+                    commands[incomingCommand.reliableSequenceNumber & (capacity - 1)] = incomingCommand;
+            }
+        }
+        this.commands = commands;
+        this.mask = capacity - 1;
+    }
+}
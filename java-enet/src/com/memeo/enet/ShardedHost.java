@@ -0,0 +1,382 @@
+package com.memeo.enet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+/**
+ * A host spread over several cores. Each shard is a {@link Host} with its
+ * own service thread and its own channel, bound to the same port with
+ * SO_REUSEPORT so the kernel spreads remote addresses across the shards.
+ * Shards own disjoint ranges of peer IDs; a datagram that the kernel steers
+ * to the wrong shard is passed on to the shard owning its peer ID. Peers a
+ * shard connects out to get sockets of their own in the same group, so the
+ * replies to them are steered to that shard too.
+ *
+ * Each shard hands its events to a ring of its own, and
+ * {@link #service(int)} reads from the rings in turn. Bandwidth limits are
+ * split evenly between shards.
+ */
+public class ShardedHost
+{
+    /**
+     * How long each service thread waits in one call to Host#service; the
+     * shard wakes sooner for its own timers, for requests and for close().
+     */
+    private static final int SERVICE_TIMEOUT = 1000;
+    /** Events each shard may have waiting before its thread holds off. */
+    private static final int EVENT_RING_CAPACITY = 1024;
+    
+    private final Host[] shards;
+    private final Thread[] threads;
+    private final int peersPerShard;
+    private final EventRing[] events;
+    // The ring service(int) reads first, rotated so no shard is starved;
+    // a racy hint.
+    private int nextRing;
+    // Readers park on this while every ring is empty; shard threads only
+    // take the lock when waiters shows someone may be parked.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private volatile int waiters;
+    private volatile boolean running;
+    private volatile IOException failure;
+    
+    public ShardedHost(InetSocketAddress address, int shardCount, int peerCount, int channelLimit,
+                       int incomingBandwidth, int outgoingBandwidth)
+        throws IOException
+    {
+        shardCount = Math.max(1, Math.min(shardCount, Host.MAXIMUM_PEER_ID));
+        this.peersPerShard = Math.max(1, Math.min((peerCount + shardCount - 1) / shardCount,
+                                                  Host.MAXIMUM_PEER_ID / shardCount));
+        this.shards = new Host[shardCount];
+        this.threads = new Thread[shardCount];
+        this.events = new EventRing[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            this.events[i] = new EventRing(EVENT_RING_CAPACITY);
+        
+        try
+        {
+            for (int i = 0; i < shardCount; i++)
+            {
+                this.shards[i] = new Host(address, this.peersPerShard, channelLimit,
+                                          incomingBandwidth / shardCount, outgoingBandwidth / shardCount,
+                                          this, i * this.peersPerShard);
+                // The first shard picks the port when asked for any.
+                address = this.shards[0].address();
+            }
+        }
+        catch (IOException e)
+        {
+            for (Host shard : this.shards)
+            {
+                if (shard != null)
+                    shard.close();
+            }
+            throw e;
+        }
+        
+        this.running = true;
+        for (int i = 0; i < shardCount; i++)
+        {
+            final Host shard = this.shards[i];
+            final EventRing events = this.events[i];
+            this.threads[i] = new Thread("enet-shard-" + i)
+            {
+                public void run()
+                {
+                    serviceShard(shard, events);
+                }
+            };
+            this.threads[i].setDaemon(true);
+            shard.serviceThread = this.threads[i];
+            this.threads[i].start();
+        }
+    }
+    
+    public InetSocketAddress address()
+    {
+        return this.shards[0].address();
+    }
+    
+    public int shardCount()
+    {
+        return this.shards.length;
+    }
+    
+    public void broadcast(int channelID, Packet packet)
+        throws IOException
+    {
+        // Held so that no shard frees the packet before the rest send it.
+        packet.retain();
+        try
+        {
+            for (Host shard : this.shards)
+                shard.broadcast(channelID, packet);
+        }
+        finally
+        {
+            packet.release();
+        }
+    }
+    
+    /**
+     * @see Host#createPacket(int, EnumSet)
+     */
+    public Packet createPacket(int length, EnumSet<Packet.Flag> flags)
+    {
+        return this.shards[0].createPacket(length, flags);
+    }
+    
+    /**
+     * Returns a metrics snapshot of each shard.
+     *
+     * @see Host#metrics()
+     */
+    public HostMetrics[] metrics()
+    {
+        HostMetrics[] metrics = new HostMetrics[this.shards.length];
+        for (int i = 0; i < this.shards.length; i++)
+            metrics[i] = this.shards[i].metrics();
+        return metrics;
+    }
+    
+    /**
+     * Registers an MBean for each shard, as
+     * com.memeo.enet:type=Host,address="host:port",shard=n.
+     *
+     * @see Host#registerMBean()
+     */
+    public void registerMBeans() throws EnetException
+    {
+        String address = ObjectName.quote(address().toString());
+        for (int i = 0; i < this.shards.length; i++)
+            this.shards[i].registerMBean("type=Host,address=" + address + ",shard=" + i);
+    }
+    
+    /**
+     * Gives every shard its own range coder.
+     *
+     * @see Host#compressWithRangeCoder()
+     */
+    public void compressWithRangeCoder()
+    {
+        for (Host shard : this.shards)
+            shard.compressWithRangeCoder();
+    }
+    
+    /**
+     * Gives every shard its own CRC32C checksum.
+     *
+     * @see Host#checksumWithCrc32c()
+     */
+    public void checksumWithCrc32c()
+    {
+        for (Host shard : this.shards)
+            shard.checksumWithCrc32c();
+    }
+    
+    /**
+     * Connects through the shard chosen by the remote address, or the next
+     * one with room if it is full. Peers connected to the same address
+     * share a shard, and with it the socket that their replies arrive on.
+     */
+    public Peer connect(InetSocketAddress address, int channelCount, int data)
+        throws IOException
+    {
+        return connect(address, channelCount, data, null);
+    }
+    
+    /**
+     * Connects as {@link #connect(InetSocketAddress, int, int)} does,
+     * returning a future completed with the peer once the connection is
+     * verified.
+     * 
+     * @see Host#connectAsync(InetSocketAddress, int, int)
+     */
+    public CompletableFuture<Peer> connectAsync(InetSocketAddress address, int channelCount, int data)
+    {
+        CompletableFuture<Peer> future = new CompletableFuture<Peer>();
+        try
+        {
+            connect(address, channelCount, data, future);
+        }
+        catch (IOException e)
+        {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    private Peer connect(InetSocketAddress address, int channelCount, int data,
+                         CompletableFuture<Peer> connected)
+        throws IOException
+    {
+        EnetException full = null;
+        int first = Math.floorMod(address.hashCode(), this.shards.length);
+        for (int i = 0; i < this.shards.length; i++)
+        {
+            Host shard = this.shards[(first + i) % this.shards.length];
+            try
+            {
+                return shard.connect(address, channelCount, data, connected);
+            }
+            catch (EnetException e)
+            {
+                full = e;
+            }
+        }
+        throw full;
+    }
+    
+    /**
+     * Waits up to timeout milliseconds for an event from any shard.
+     *
+     * @return The next event, or null if the timeout expired first. Pass
+     *  it to {@link #recycle(Event)} once it has been handled.
+     */
+    public Event service(int timeout) throws IOException
+    {
+        if (this.failure != null)
+            throw new EnetException("shard failed", this.failure);
+        Event event = pollEvents();
+        if (event != null || timeout <= 0)
+            return event;
+        
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.lock.lock();
+        try
+        {
+            this.waiters++;
+            try
+            {
+                while ((event = pollEvents()) == null && remaining > 0 && this.failure == null)
+                    remaining = this.notEmpty.awaitNanos(remaining);
+            }
+            finally
+            {
+                this.waiters--;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        return event;
+    }
+    
+    private Event pollEvents()
+    {
+        int first = this.nextRing;
+        for (int i = 0; i < this.events.length; i++)
+        {
+            int ring = (first + i) % this.events.length;
+            Event event = this.events[ring].poll();
+            if (event != null)
+            {
+                this.nextRing = (ring + 1) % this.events.length;
+                return event;
+            }
+        }
+        return null;
+    }
+    
+    private void signalWaiters()
+    {
+        if (this.waiters == 0)
+            return;
+        this.lock.lock();
+        try
+        {
+            this.notEmpty.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns an event to the shard that produced it.
+     */
+    public void recycle(Event event)
+    {
+        if (event.peer != null)
+            event.peer.host.recycle(event);
+    }
+    
+    /**
+     * Stops the service threads and closes every shard.
+     */
+    public void close() throws IOException
+    {
+        this.running = false;
+        for (Host shard : this.shards)
+            shard.wakeup();
+        try
+        {
+            for (Thread thread : this.threads)
+                thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Host shard : this.shards)
+            shard.close();
+    }
+    
+    /**
+     * Passes a datagram received by one shard to the shard owning its peer
+     * ID; datagrams for IDs no shard owns are dropped.
+     */
+    void forward(int peerID, InetSocketAddress address, ByteBuffer datagram, int length)
+    {
+        int shard = peerID / this.peersPerShard;
+        if (shard < this.shards.length)
+            this.shards[shard].forward(address, datagram, length);
+    }
+    
+    private void serviceShard(Host shard, EventRing events)
+    {
+        try
+        {
+            while (this.running)
+            {
+                Event event = shard.service(SERVICE_TIMEOUT);
+                if (event == null)
+                    continue;
+                while (!events.offer(event))
+                {
+                    // Readers are behind; wait for them rather than queue
+                    // without bound.
+                    if (!this.running)
+                        return;
+                    Thread.yield();
+                }
+                signalWaiters();
+            }
+        }
+        catch (IOException e)
+        {
+            this.failure = e;
+            signalWaiters();
+        }
+        catch (ClosedSelectorException e)
+        {
+            // Closed under us; nothing left to service.
+        }
+    }
+}
@@ -1,18 +1,46 @@
 package com.memeo.enet;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 public class Time
 {
-    private static AtomicInteger timeBase = new AtomicInteger(0);
+    /**
+     * Differences larger than this are treated as the clock having wrapped.
+     */
+    static final int OVERFLOW = 86400000;
+    
+    // Times count from when the class was loaded, so they start small.
+    private static final long ORIGIN = System.nanoTime();
     
+    /**
+     * Returns milliseconds on the JVM's monotonic clock, which the wall
+     * clock being stepped or slewed does not disturb.
+     */
     static int get()
     {
-        return (int) (System.currentTimeMillis() - timeBase.get());
+        return (int) ((System.nanoTime() - ORIGIN) / 1000000L);
+    }
+    
+    static boolean less(int a, int b)
+    {
+        return ((a - b) & 0xFFFFFFFFL) >= OVERFLOW;
+    }
+    
+    static boolean greater(int a, int b)
+    {
+        return ((b - a) & 0xFFFFFFFFL) >= OVERFLOW;
+    }
+    
+    static boolean lessEqual(int a, int b)
+    {
+        return !greater(a, b);
+    }
+    
+    static boolean greaterEqual(int a, int b)
+    {
+        return !less(a, b);
     }
     
-    static void set(int newTimeBase)
+    static int difference(int a, int b)
     {
-        timeBase.set((int) (System.currentTimeMillis() - newTimeBase));
+        return less(a, b) ? b - a : a - b;
     }
 }
@@ -0,0 +1,202 @@
+package com.memeo.enet;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of reliable commands awaiting acknowledgement.
+ *
+ * Four levels of 64 slots each cover 64 milliseconds, 4 seconds, 4 minutes
+ * and 4.6 hours at millisecond resolution. Commands are linked into their
+ * slot through their list nodes, so scheduling and cancelling are O(1).
+ * Each level keeps a bit per slot that may hold commands, and advancing the
+ * clock jumps from one such slot to the next, so an idle gap costs nothing
+ * however long it is. Entries in a higher level are cascaded down when
+ * their slot comes round.
+ */
+class TimingWheel
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final int MAXIMUM_DELAY = (SLOTS - 1) << (SLOT_BITS * (LEVELS - 1));
+    
+    private final ListNode<OutgoingCommand>[][] slots;
+    // Per level, a bit for each slot that commands were scheduled in; a
+    // bit may outlive the commands, which are cancelled without clearing it.
+    private final long[] occupied = new long[LEVELS];
+    private final ListNode<OutgoingCommand> expired;
+    private int currentTime;
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    TimingWheel(int currentTime)
+    {
+        this.slots = new ListNode[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++)
+        {
+            for (int slot = 0; slot < SLOTS; slot++)
+                this.slots[level][slot] = sentinel();
+        }
+        this.expired = sentinel();
+        this.currentTime = currentTime;
+    }
+    
+    /**
+     * Moves the wheel to a new time, as when the host's clock is replaced;
+     * nothing may be scheduled.
+     */
+    void reset(int currentTime)
+    {
+        this.currentTime = currentTime;
+        Arrays.fill(this.occupied, 0);
+    }
+    
+    private static ListNode<OutgoingCommand> sentinel()
+    {
+        ListNode<OutgoingCommand> sentinel = new ListNode<OutgoingCommand>();
+        sentinel.previous = sentinel;
+        sentinel.next = sentinel;
+        return sentinel;
+    }
+    
+    /**
+     * Schedules a command to expire at the given time. The command must not
+     * already be scheduled.
+     */
+    void schedule(OutgoingCommand outgoingCommand, int timeout)
+    {
+        int delay = timeout - this.currentTime;
+        if (delay <= 0)
+        {
+            this.expired.previous.insert(outgoingCommand);
+            return;
+        }
+        if (delay > MAXIMUM_DELAY)
+            timeout = this.currentTime + MAXIMUM_DELAY;
+        outgoingCommand.timeout = timeout;
+        
+        int level = 0;
+        while (level < LEVELS - 1
+               && (timeout >>> (SLOT_BITS * (level + 1))) != (this.currentTime >>> (SLOT_BITS * (level + 1))))
+            level++;
+        int slot = (timeout >>> (SLOT_BITS * level)) & SLOT_MASK;
+        this.slots[level][slot].previous.insert(outgoingCommand);
+        this.occupied[level] |= 1L << slot;
+    }
+    
+    /**
+     * Whether a command is in the wheel, scheduled or expired and not yet
+     * polled.
+     */
+    boolean isScheduled(OutgoingCommand outgoingCommand)
+    {
+        return outgoingCommand.next != null;
+    }
+    
+    /**
+     * Removes a command from the wheel; does nothing if it is not scheduled.
+     */
+    void cancel(OutgoingCommand outgoingCommand)
+    {
+        if (!isScheduled(outgoingCommand))
+            return;
+        outgoingCommand.remove();
+        outgoingCommand.previous = null;
+        outgoingCommand.next = null;
+    }
+    
+    /**
+     * Advances the wheel to the given time, moving every command that has
+     * come due to the expired list.
+     */
+    void advance(int time)
+    {
+        while (this.currentTime - time < 0)
+        {
+            int next = nextSlotTime();
+            if (next - time > 0)
+            {
+                this.currentTime = time;
+                return;
+            }
+            this.currentTime = next;
+            
+            int level = 0;
+            while (level < LEVELS - 1 && ((this.currentTime >>> (SLOT_BITS * level)) & SLOT_MASK) == 0)
+                level++;
+            for (; level > 0; level--)
+                cascade(level, (this.currentTime >>> (SLOT_BITS * level)) & SLOT_MASK);
+            
+            int index = this.currentTime & SLOT_MASK;
+            ListNode<OutgoingCommand> slot = this.slots[0][index];
+            while (slot.next != slot)
+            {
+                OutgoingCommand outgoingCommand = (OutgoingCommand) slot.next;
+                outgoingCommand.remove();
+                this.expired.previous.insert(outgoingCommand);
+            }
+            this.occupied[0] &= ~(1L << index);
+        }
+    }
+    
+    /**
+     * Returns when the next command may come due; an expired command is due
+     * at once. The time may be early, as cancelled commands leave their
+     * slots marked, or more than MAXIMUM_DELAY away if nothing is scheduled.
+     */
+    int nextTime()
+    {
+        if (this.expired.next != this.expired)
+            return this.currentTime;
+        return nextSlotTime();
+    }
+    
+    /**
+     * Returns when the wheel next reaches a slot that may hold commands, or
+     * a time more than MAXIMUM_DELAY away if none do. A level's slots come
+     * round in order until the level above moves on, so the first marked
+     * slot after the current one, at the lowest level that has one, is the
+     * next; the top level alone wraps around.
+     */
+    private int nextSlotTime()
+    {
+        for (int level = 0; level < LEVELS; level++)
+        {
+            int shift = SLOT_BITS * level;
+            int index = (this.currentTime >>> shift) & SLOT_MASK;
+            long pending = this.occupied[level] & (-2L << index);
+            if (pending != 0)
+                return ((this.currentTime >>> shift) - index + Long.numberOfTrailingZeros(pending)) << shift;
+        }
+        int shift = SLOT_BITS * (LEVELS - 1);
+        int index = (this.currentTime >>> shift) & SLOT_MASK;
+        long pending = this.occupied[LEVELS - 1];
+        if (pending != 0)
+            return ((this.currentTime >>> shift) - index + SLOTS + Long.numberOfTrailingZeros(pending)) << shift;
+        return this.currentTime + MAXIMUM_DELAY + 1;
+    }
+    
+    private void cascade(int level, int index)
+    {
+        ListNode<OutgoingCommand> slot = this.slots[level][index];
+        this.occupied[level] &= ~(1L << index);
+        while (slot.next != slot)
+        {
+            OutgoingCommand outgoingCommand = (OutgoingCommand) slot.next;
+            outgoingCommand.remove();
+            schedule(outgoingCommand, outgoingCommand.timeout);
+        }
+    }
+    
+    /**
+     * Removes and returns the next expired command, or null if none are due.
+     */
+    OutgoingCommand poll()
+    {
+        if (this.expired.next == this.expired)
+            return null;
+        OutgoingCommand outgoingCommand = (OutgoingCommand) this.expired.next;
+        cancel(outgoingCommand);
+        return outgoingCommand;
+    }
+}